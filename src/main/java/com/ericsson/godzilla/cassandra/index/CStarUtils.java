@@ -8,19 +8,20 @@ package com.ericsson.godzilla.cassandra.index;
 
 import com.ericsson.godzilla.cassandra.index.CellElement.CollectionValue;
 import com.ericsson.godzilla.cassandra.index.config.IndexConfig;
+import com.ericsson.godzilla.cassandra.index.config.IndexConfig.IndexerElection;
 import org.apache.cassandra.config.CFMetaData;
 import org.apache.cassandra.config.ColumnDefinition;
 import org.apache.cassandra.config.DatabaseDescriptor;
 import org.apache.cassandra.cql3.CQL3Type;
+import org.apache.cassandra.db.Clustering;
 import org.apache.cassandra.db.ColumnFamilyStore;
 import org.apache.cassandra.db.ReadCommand;
 import org.apache.cassandra.db.filter.RowFilter;
 import org.apache.cassandra.db.marshal.*;
 import org.apache.cassandra.db.rows.Cell;
-import org.apache.cassandra.db.rows.Row;
 import org.apache.cassandra.dht.Token;
 import org.apache.cassandra.exceptions.InvalidRequestException;
-import org.apache.cassandra.serializers.TimestampSerializer;
+import org.apache.cassandra.serializers.MarshalException;
 import org.apache.cassandra.service.StorageService;
 import org.apache.cassandra.utils.ByteBufferUtil;
 import org.apache.cassandra.utils.FBUtilities;
@@ -40,49 +41,6 @@ import static java.nio.charset.StandardCharsets.UTF_8;
 /** Some utils to process Cassandra CFs */
 public class CStarUtils {
 
-  /**
-   * Convert a rowKey to a map of column names and put corresponding values in the map. It includes
-   * partition keys and clustering columns.
-   *
-   * @param rowKey can't be null
-   * @param tableMetadata can't be null, table metadata, not index metadata
-   * @return never null, left is pkName, right is pkValue
-   */
-  @Nonnull
-  static List<Pair<String, String>> getPartitionKeys(
-      @Nonnull ByteBuffer rowKey, @Nonnull CFMetaData tableMetadata)
-      throws CharacterCodingException {
-    List<Pair<String, String>> partitionKeys = new ArrayList<>(1);
-
-    List<ColumnDefinition> columns = tableMetadata.partitionKeyColumns();
-    ColumnDefinition[] pkColDefinitions = columns.toArray(new ColumnDefinition[0]);
-
-    AbstractType<?> pkValidator = tableMetadata.getKeyValidator();
-
-    // PK is composite we need to extract sub-keys
-    if (pkValidator instanceof CompositeType) {
-
-      int pos = 0;
-      for (ByteBuffer key : CompositeType.splitName(rowKey)) {
-        CompositeType type = (CompositeType) pkValidator;
-        String pkName = ByteBufferUtil.string(pkColDefinitions[pos].name.bytes);
-        String pkValue = type.types.get(pos).getString(key);
-
-        partitionKeys.add(Pair.create(pkName, pkValue));
-        pos++;
-      }
-
-    } else { // PK is a single column
-      ColumnDefinition pkDefinition = pkColDefinitions[0];
-      String pkName = ByteBufferUtil.string(pkDefinition.name.bytes);
-      String pkValue = pkValidator.getString(rowKey);
-
-      partitionKeys.add(Pair.create(pkName, pkValue));
-    }
-
-    return partitionKeys;
-  }
-
   /**
    * Build a ByteBuffer from ES strings.
    *
@@ -120,166 +78,37 @@ public class CStarUtils {
   }
 
   /**
-   * Convert a cell's value to a String according to metadata
+   * Build a clustering from ES strings
    *
-   * @param cell not null
-   * @return can be null
+   * @param keys not null, not empty
+   * @return null if a value is missing or can't be parsed
    */
   @Nullable
-  static String cellValueToString(@Nonnull Cell cell) throws IOException {
-    if (cell.isLive(FBUtilities.nowInSeconds())) {
-      return byteBufferToString(cell.column().type, cell.value()).left;
-    } else {
-      return null;
-    }
-  }
-
-  /**
-   * Convert a cell's (single) value to a String according to AbstractType<br>
-   *
-   * @param abstractType not null
-   * @param value not null
-   * @return may be null
-   * @throws IOException if type is unknown
-   */
-  @Nonnull
-  private static Pair<String, Boolean> byteBufferToString(
-      @Nonnull AbstractType<?> abstractType, @Nullable ByteBuffer value) throws IOException {
-
-    if (value == null) {
-      return Pair.create(null, Boolean.FALSE);
-
-    } else if (abstractType instanceof UTF8Type) {
-
-      UTF8Type type = (UTF8Type) abstractType;
-      return Pair.create(type.getString(value), Boolean.FALSE);
-
-    } else if (abstractType instanceof AsciiType) {
-
-      AsciiType type = (AsciiType) abstractType;
-      return Pair.create(type.getString(value), Boolean.FALSE);
-
-    } else if (abstractType instanceof TimestampType) {
-      Date date = TimestampSerializer.instance.deserialize(value);
-      return Pair.create(JsonUtils.getIso8601Date(date), Boolean.FALSE);
-
-    } else if (abstractType instanceof DateType) {
-      DateType type = (DateType) abstractType;
-      return Pair.create(type.getString(value), Boolean.FALSE);
-
-    } else if (abstractType instanceof UUIDType) {
-      UUIDType type = (UUIDType) abstractType;
-      return Pair.create(type.getString(value), Boolean.FALSE);
-
-    } else if (abstractType instanceof LexicalUUIDType) {
-      LexicalUUIDType type = (LexicalUUIDType) abstractType;
-      return Pair.create(type.getString(value), Boolean.FALSE);
-
-    } else if (abstractType instanceof TimeUUIDType) {
-      TimeUUIDType type = (TimeUUIDType) abstractType;
-      return Pair.create(type.getString(value), Boolean.FALSE);
-
-    } else if (abstractType instanceof DoubleType) {
-      DoubleType type = (DoubleType) abstractType;
-      return Pair.create(type.getString(value), Boolean.FALSE);
-
-    } else if (abstractType instanceof FloatType) {
-      FloatType type = (FloatType) abstractType;
-      return Pair.create(type.getString(value), Boolean.FALSE);
-
-    } else if (abstractType instanceof InetAddressType) {
-      InetAddressType type = (InetAddressType) abstractType;
-      return Pair.create(type.getString(value), Boolean.FALSE);
-
-    } else if (abstractType instanceof DecimalType) {
-      DecimalType type = (DecimalType) abstractType;
-      return Pair.create(type.getString(value), Boolean.FALSE);
-
-    } else if (abstractType instanceof Int32Type) {
-      Int32Type type = (Int32Type) abstractType;
-      return Pair.create(type.getString(value), Boolean.FALSE);
-
-    } else if (abstractType instanceof IntegerType) {
-      IntegerType type = (IntegerType) abstractType;
-      return Pair.create(type.getString(value), Boolean.FALSE);
-
-    } else if (abstractType instanceof LongType) {
-      LongType type = (LongType) abstractType;
-      return Pair.create(type.getString(value), Boolean.FALSE);
-
-    } else if (abstractType instanceof CounterColumnType) {
-      CounterColumnType type = (CounterColumnType) abstractType;
-      return Pair.create(type.getString(value), Boolean.FALSE);
-
-    } else if (abstractType instanceof BooleanType) {
-      BooleanType type = (BooleanType) abstractType;
-      return Pair.create(type.getString(value), Boolean.FALSE);
-
-    } else if (abstractType instanceof UserType) {
-      UserType type = (UserType) abstractType;
-
-      Map<String, String> mapValue = new HashMap<>();
-
-      ByteBuffer[] values = type.split(value);
-      for (int i = 0; i < values.length; i++) {
-        ByteBuffer fieldNameBytes = type.fieldName(i).bytes;
-        AbstractType<?> fieldValueType = type.fieldType(i);
-        ByteBuffer fieldValueBytes = values[i];
-
-        String fieldName = ByteBufferUtil.string(fieldNameBytes);
-        String valueString = byteBufferToString(fieldValueType, fieldValueBytes).left;
-
-        mapValue.put(fieldName, valueString);
-      }
-
-      return Pair.create(JsonUtils.stringMapToJson(mapValue), Boolean.TRUE);
-
-    } else if (abstractType instanceof TupleType) {
-      TupleType type = (TupleType) abstractType;
-      ByteBuffer[] values = type.split(value);
-
-      List<String> arrayList = new ArrayList<>(values.length);
-
-      for (int i = 0; i < values.length; i++) {
-        AbstractType<?> tupleValueType = type.type(i);
-        arrayList.add(byteBufferToString(tupleValueType, values[i]).left);
+  static Clustering getClustering(@Nonnull String[] keys, @Nonnull CFMetaData tableMetadata) {
+    ByteBuffer[] values = new ByteBuffer[keys.length];
+    try {
+      for (int i = 0; i < keys.length; i++) {
+        if (keys[i] == null) {
+          return null;
+        }
+        values[i] = tableMetadata.comparator.subtype(i).fromString(keys[i]);
       }
-
-      return Pair.create(JsonUtils.collectionToArray(arrayList), Boolean.TRUE);
-
-    } else if (abstractType instanceof MapType) {
-      MapType<?, ?> type = (MapType<?, ?>) abstractType;
-      AbstractType<?> valueType = type.getValuesType();
-      return byteBufferToString(valueType, value);
-
-    } else if (abstractType instanceof SetType) {
-      SetType<?> type = (SetType<?>) abstractType;
-      AbstractType<?> valueType = type.valueComparator();
-      return byteBufferToString(valueType, value);
-
-    } else if (abstractType instanceof ListType) {
-      ListType<?> type = (ListType<?>) abstractType;
-      AbstractType<?> valueType = type.valueComparator();
-      return byteBufferToString(valueType, value);
-
-    } else if (abstractType instanceof BytesType) {
-      return Pair.create(value.remaining() + " bytes", Boolean.FALSE);
-
-    } else if (abstractType instanceof EmptyType) {
-      return Pair.create("", Boolean.FALSE);
+    } catch (MarshalException e) {
+      return null;
     }
-
-    throw new IOException("Unsupported type:" + abstractType);
+    return Clustering.make(values);
   }
 
   /**
    * Get collection element from a cell
    *
    * @param cell not null
+   * @param codec codec of the column, converts the values of its elements
    * @return a CollectionValue
    */
   @Nonnull
-  static CollectionValue getCollectionElement(@Nonnull Cell cell) throws IOException {
+  static CollectionValue getCollectionElement(@Nonnull Cell cell, @Nonnull CellCodec codec)
+      throws IOException {
     final CollectionValue.CollectionType colType;
     final String key;
 
@@ -288,7 +117,7 @@ public class CStarUtils {
     if (abstractType instanceof MapType) {
       colType = CollectionValue.CollectionType.MAP;
       AbstractType keyType = ((MapType) abstractType).getKeysType();
-      key = byteBufferToString(keyType, cell.path().get(0)).left; // cell path contains map key name
+      key = CellCodec.of(keyType).toString(cell.path().get(0)); // cell path contains map key name
 
     } else if (abstractType instanceof SetType) {
       colType = CollectionValue.CollectionType.SET;
@@ -312,11 +141,11 @@ public class CStarUtils {
         FBUtilities
             .nowInSeconds())) { // isLive() is better than isTombstone in case of commitlog replay
                                 // or hints
-      Pair<String, Boolean> pair = byteBufferToString(abstractType, cell.value());
-      if (pair.right) {
-        return CollectionValue.create(key, pair.left, CollectionValue.CollectionType.JSON);
+      String value = codec.toString(cell.value());
+      if (codec.isJson()) {
+        return CollectionValue.create(key, value, CollectionValue.CollectionType.JSON);
       } else {
-        return CollectionValue.create(key, pair.left, colType);
+        return CollectionValue.create(key, value, colType);
       }
     } else {
       return CollectionValue.create(key, null, colType);
@@ -417,38 +246,6 @@ public class CStarUtils {
     return clusteringColumnsNames;
   }
 
-  /**
-   * Retrieve ClusteringKeys value from cell name
-   *
-   * @param row not null
-   * @param tableMetadata not null
-   * @param clusteringColumnsNames can be null
-   * @return null if ColumnFamily has no collections, a list else
-   */
-  @Nullable
-  static List<Pair<String, String>> getClusteringKeys(
-      @Nonnull Row row,
-      @Nonnull CFMetaData tableMetadata,
-      @Nonnull List<String> clusteringColumnsNames) {
-    int clusteringPrefixSize = row.clustering().size();
-    if (clusteringPrefixSize > 0) {
-      List<Pair<String, String>> keys = new ArrayList<>(clusteringPrefixSize);
-      try {
-        for (int prefixNb = 0; prefixNb < clusteringPrefixSize; prefixNb++) {
-          String name = clusteringColumnsNames.get(prefixNb);
-          AbstractType<?> subtype = tableMetadata.comparator.subtype(prefixNb);
-          ByteBuffer clusteringKeyBytes = row.clustering().get(prefixNb);
-          String value = byteBufferToString(subtype, clusteringKeyBytes).left;
-          keys.add(Pair.create(name, value));
-        }
-      } catch (IOException ignored) {
-      }
-      return keys;
-    } else {
-      return null;
-    }
-  }
-
   @Nonnull
   static String queryString(@Nonnull ReadCommand command) {
     RowFilter filter = command.rowFilter();
@@ -465,22 +262,17 @@ public class CStarUtils {
     }
   }
 
-  static boolean isOwner(@Nonnull ColumnFamilyStore cfs, @Nonnull Token token) {
-    // Get all live endpoints which was selected to replicate this data
-    List<InetAddress> addresses =
-        StorageService.instance.getLiveNaturalEndpoints(cfs.keyspace, token);
-    Map<String, InetAddress> indexers = new HashMap<>();
-
-    // Build DC-based map - select only single (first) node to index, because
-    // getLiveNaturalEndpoints returns same values for all nodes
-    for (InetAddress address : addresses) {
-      String datacenter = DatabaseDescriptor.getEndpointSnitch().getDatacenter(address);
-      if (!indexers.containsKey(datacenter)) {
-        indexers.put(datacenter, address);
-      }
-    }
-    return indexers.containsValue(
-        FBUtilities.getBroadcastAddress()); // Current node is not indexer (not first)
+  /** @return true if this node is the live replica of its datacenter elected to index the token */
+  static boolean isOwner(
+      @Nonnull ColumnFamilyStore cfs, @Nonnull Token token, @Nonnull IndexerElection election) {
+    return OwnershipTable.of(cfs.keyspace).isOwner(token, election);
+  }
+
+  /** @return the value of a Murmur3Partitioner token, null for other partitioners */
+  @Nullable
+  static Long numericToken(@Nonnull Token token) {
+    Object value = token.getTokenValue();
+    return value instanceof Long ? (Long) value : null;
   }
 
   public static String getLocalDC() {
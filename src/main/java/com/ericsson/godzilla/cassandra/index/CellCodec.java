@@ -0,0 +1,240 @@
+/*
+ * Copyright Ericsson AB 2019 - All Rights Reserved.
+ * The copyright to the computer program(s) herein is the property of Ericsson AB.
+ * The programs may be used and/or copied only with written permission from Ericsson AB
+ * or in accordance with the terms and conditions stipulated in the agreement/contract under which the program(s) have been supplied.
+ */
+package com.ericsson.godzilla.cassandra.index;
+
+import org.apache.cassandra.db.marshal.*;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.codehaus.jackson.JsonGenerator;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Converts cell values of one type, resolved once per column by the DocumentPlan of the table
+ * instead of for every cell.<br>
+ * Numbers and booleans are written to documents as native JSON values, other types as strings.
+ * Collection codecs convert the values of their elements.
+ */
+abstract class CellCodec {
+
+  private static final ConcurrentMap<AbstractType<?>, CellCodec> TYPE_CODECS =
+      new ConcurrentHashMap<>();
+
+  /**
+   * @param value not null, can be empty
+   * @return the value as a string, a JSON string for UDTs and tuples
+   * @throws IOException if type is unknown
+   */
+  @Nonnull
+  abstract String toString(@Nonnull ByteBuffer value) throws IOException;
+
+  /** Write the value as the next JSON value of the generator */
+  void write(@Nonnull JsonGenerator generator, @Nonnull ByteBuffer value) throws IOException {
+    generator.writeString(toString(value));
+  }
+
+  /** @return true if values are converted to JSON objects or arrays */
+  boolean isJson() {
+    return false;
+  }
+
+  /** @return the codec of a type, like columns, clustering keys or UDT fields */
+  @Nonnull
+  static CellCodec of(@Nonnull AbstractType<?> type) {
+    CellCodec codec = TYPE_CODECS.get(type);
+    if (codec == null) {
+      codec = create(type);
+      TYPE_CODECS.putIfAbsent(type, codec);
+    }
+    return codec;
+  }
+
+  @Nonnull
+  private static CellCodec create(@Nonnull AbstractType<?> type) {
+    if (type instanceof MapType) {
+      return of(((MapType<?, ?>) type).getValuesType());
+    } else if (type instanceof SetType) {
+      return of(((SetType<?>) type).valueComparator());
+    } else if (type instanceof ListType) {
+      return of(((ListType<?>) type).valueComparator());
+
+    } else if (type instanceof TimestampType) {
+      return new StringCodec(
+          value ->
+              value.hasRemaining() ? Iso8601Formatter.format(ByteBufferUtil.toLong(value)) : "");
+    } else if (type instanceof UTF8Type
+        || type instanceof AsciiType
+        || type instanceof DateType
+        || type instanceof UUIDType
+        || type instanceof LexicalUUIDType
+        || type instanceof TimeUUIDType
+        || type instanceof InetAddressType) {
+      return new StringCodec(type::getString);
+
+    } else if (type instanceof Int32Type) {
+      return new NativeCodec(type, (g, v) -> g.writeNumber(ByteBufferUtil.toInt(v)));
+    } else if (type instanceof LongType || type instanceof CounterColumnType) {
+      return new NativeCodec(type, (g, v) -> g.writeNumber(ByteBufferUtil.toLong(v)));
+    } else if (type instanceof DoubleType) {
+      return new NativeCodec(type, (g, v) -> writeNumber(g, ByteBufferUtil.toDouble(v)));
+    } else if (type instanceof FloatType) {
+      return new NativeCodec(type, (g, v) -> writeNumber(g, ByteBufferUtil.toFloat(v)));
+    } else if (type instanceof DecimalType) {
+      return new NativeCodec(type, (g, v) -> g.writeNumber(DecimalType.instance.compose(v)));
+    } else if (type instanceof IntegerType) {
+      return new NativeCodec(type, (g, v) -> g.writeNumber(IntegerType.instance.compose(v)));
+    } else if (type instanceof BooleanType) {
+      return new NativeCodec(type, (g, v) -> g.writeBoolean(v.get(v.position()) != 0));
+
+    } else if (type instanceof UserType) {
+      return new UserTypeCodec((UserType) type);
+    } else if (type instanceof TupleType) {
+      return new TupleCodec((TupleType) type);
+
+    } else if (type instanceof BytesType) {
+      return new StringCodec(value -> value.remaining() + " bytes");
+    } else if (type instanceof EmptyType) {
+      return new StringCodec(value -> "");
+    }
+
+    return new StringCodec(
+        value -> {
+          throw new IOException("Unsupported type:" + type);
+        });
+  }
+
+  /** NaN and infinity are not valid JSON numbers */
+  private static void writeNumber(@Nonnull JsonGenerator generator, double value)
+      throws IOException {
+    if (Double.isNaN(value) || Double.isInfinite(value)) {
+      generator.writeString(Double.toString(value));
+    } else {
+      generator.writeNumber(value);
+    }
+  }
+
+  @FunctionalInterface
+  private interface Converter {
+    @Nonnull
+    String convert(@Nonnull ByteBuffer value) throws IOException;
+  }
+
+  @FunctionalInterface
+  private interface NativeWriter {
+    void write(@Nonnull JsonGenerator generator, @Nonnull ByteBuffer value) throws IOException;
+  }
+
+  private static class StringCodec extends CellCodec {
+    private final Converter converter;
+
+    StringCodec(@Nonnull Converter converter) {
+      this.converter = converter;
+    }
+
+    @Override
+    @Nonnull
+    String toString(@Nonnull ByteBuffer value) throws IOException {
+      return converter.convert(value);
+    }
+  }
+
+  /** Numbers and booleans, empty values are written as strings like Cassandra displays them */
+  private static class NativeCodec extends CellCodec {
+    private final AbstractType<?> type;
+    private final NativeWriter writer;
+
+    NativeCodec(@Nonnull AbstractType<?> type, @Nonnull NativeWriter writer) {
+      this.type = type;
+      this.writer = writer;
+    }
+
+    @Override
+    @Nonnull
+    String toString(@Nonnull ByteBuffer value) {
+      return type.getString(value);
+    }
+
+    @Override
+    void write(@Nonnull JsonGenerator generator, @Nonnull ByteBuffer value) throws IOException {
+      if (value.hasRemaining()) {
+        writer.write(generator, value);
+      } else {
+        generator.writeString(toString(value));
+      }
+    }
+  }
+
+  /** UDTs are JSON objects of string fields */
+  private static class UserTypeCodec extends CellCodec {
+    private final UserType type;
+    private final String[] fieldNames;
+    private final CellCodec[] fieldCodecs;
+
+    UserTypeCodec(@Nonnull UserType type) {
+      this.type = type;
+      this.fieldNames = new String[type.size()];
+      this.fieldCodecs = new CellCodec[type.size()];
+      for (int i = 0; i < type.size(); i++) {
+        fieldNames[i] = type.fieldNameAsString(i);
+        fieldCodecs[i] = of(type.fieldType(i));
+      }
+    }
+
+    @Override
+    @Nonnull
+    String toString(@Nonnull ByteBuffer value) throws IOException {
+      Map<String, String> mapValue = new HashMap<>();
+      ByteBuffer[] values = type.split(value);
+      for (int i = 0; i < values.length; i++) {
+        mapValue.put(fieldNames[i], values[i] == null ? null : fieldCodecs[i].toString(values[i]));
+      }
+      return JsonUtils.stringMapToJson(mapValue);
+    }
+
+    @Override
+    boolean isJson() {
+      return true;
+    }
+  }
+
+  /** Tuples are JSON arrays of strings */
+  private static class TupleCodec extends CellCodec {
+    private final TupleType type;
+    private final CellCodec[] codecs;
+
+    TupleCodec(@Nonnull TupleType type) {
+      this.type = type;
+      this.codecs = new CellCodec[type.size()];
+      for (int i = 0; i < type.size(); i++) {
+        codecs[i] = of(type.type(i));
+      }
+    }
+
+    @Override
+    @Nonnull
+    String toString(@Nonnull ByteBuffer value) throws IOException {
+      ByteBuffer[] values = type.split(value);
+      List<String> arrayList = new ArrayList<>(values.length);
+      for (int i = 0; i < values.length; i++) {
+        arrayList.add(values[i] == null ? null : codecs[i].toString(values[i]));
+      }
+      return JsonUtils.collectionToArray(arrayList);
+    }
+
+    @Override
+    boolean isJson() {
+      return true;
+    }
+  }
+}
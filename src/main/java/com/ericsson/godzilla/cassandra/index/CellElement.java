@@ -7,9 +7,12 @@
 package com.ericsson.godzilla.cassandra.index;
 
 import org.apache.cassandra.utils.Pair;
+import org.codehaus.jackson.JsonGenerator;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.List;
 
 /**
@@ -20,8 +23,11 @@ public class CellElement {
 
   List<Pair<String, String>> clusteringKeys;
   public String name;
-  public String value;
+  public String value; // if not set from a cell, see setValue()
   CollectionValue collectionValue; // can be null if CF has no collections
+  DocumentPlan.Field field; // null if not created from a cell
+  private ByteBuffer bytes; // cell value, converted by its codec when needed
+  private CellCodec codec;
 
   public static CellElement create(
       @Nonnull String name, @Nullable String value, @Nullable CollectionValue collectionValue) {
@@ -36,6 +42,44 @@ public class CellElement {
     return collectionValue != null;
   }
 
+  /** Set the value of a cell, it is only converted when written or read as a string */
+  void setValue(@Nonnull ByteBuffer bytes, @Nonnull CellCodec codec) {
+    this.bytes = bytes;
+    this.codec = codec;
+    this.value = null;
+  }
+
+  boolean hasValue() {
+    return value != null || bytes != null;
+  }
+
+  /**
+   * @return the value as a string, null if there is no value
+   * @throws IOException if the cell type is not supported
+   */
+  @Nullable
+  String stringValue() throws IOException {
+    if (value == null && bytes != null) {
+      value = codec.toString(bytes);
+    }
+    return value;
+  }
+
+  /**
+   * Write the value as the next JSON value, with its native JSON type if it was set from a cell
+   *
+   * @throws IOException if the cell type is not supported
+   */
+  void writeValue(@Nonnull JsonGenerator generator) throws IOException {
+    if (bytes != null) {
+      codec.write(generator, bytes);
+    } else if (value != null) {
+      generator.writeString(value);
+    } else {
+      generator.writeNull();
+    }
+  }
+
   @Override
   public int hashCode() {
     return name == null ? 0 : name.hashCode();
@@ -0,0 +1,291 @@
+/*
+ * Copyright Ericsson AB 2019 - All Rights Reserved.
+ * The copyright to the computer program(s) herein is the property of Ericsson AB.
+ * The programs may be used and/or copied only with written permission from Ericsson AB
+ * or in accordance with the terms and conditions stipulated in the agreement/contract under which the program(s) have been supplied.
+ */
+package com.ericsson.godzilla.cassandra.index;
+
+import org.apache.cassandra.config.DatabaseDescriptor;
+import org.apache.cassandra.dht.IPartitioner;
+import org.apache.cassandra.dht.Range;
+import org.apache.cassandra.dht.Token;
+import org.apache.cassandra.utils.FBUtilities;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Token ranges with document writes that were lost, neither acknowledged by ES nor queued for
+ * replay, so that a repair re-indexes only these ranges instead of the whole table.<br>
+ * The ring is split in 4096 buckets tracked by a bitmap, with the time of the first lost write.
+ * The bitmap is saved in a file each time a new bucket gets dirty, so it survives restarts.
+ * Partitioners without numeric tokens are tracked as a single bucket.<br>
+ * Buckets with lost deletes are also tracked in a second bitmap: re-indexing the live rows does not
+ * remove their documents, the repair deletes the documents of these ranges first.
+ */
+class DirtyRanges {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(DirtyRanges.class);
+  private static final int VERSION = 2; // version 1 had no deletes bitmap
+  static final int BITS = 12;
+  static final int BUCKETS = 1 << BITS;
+
+  private final File file;
+  private final IPartitioner partitioner;
+
+  // Guarded by this
+  private final long[] words = new long[BUCKETS / Long.SIZE];
+  private final long[] deletes = new long[BUCKETS / Long.SIZE]; // buckets with lost deletes
+  private long sinceMicros = Long.MAX_VALUE; // time of the first lost write, MAX_VALUE if clean
+
+  DirtyRanges(@Nonnull File file, @Nonnull IPartitioner partitioner) {
+    this.file = file;
+    this.partitioner = partitioner;
+    load();
+  }
+
+  /** @return the dirty ranges of this index, in the saved caches directory */
+  @Nonnull
+  static DirtyRanges of(@Nonnull EsSecondaryIndex index) {
+    String fileName =
+        index.baseCfs.keyspace.getName()
+            + '-'
+            + index.baseCfs.name
+            + '-'
+            + index.getIndexMetadata().name
+            + "-dirty.bin";
+    return new DirtyRanges(
+        new File(DatabaseDescriptor.getSavedCachesLocation(), fileName),
+        index.baseCfs.getPartitioner());
+  }
+
+  /**
+   * Record a lost write of a partition
+   *
+   * @param isDelete true if the lost write is a delete of the partition
+   */
+  void mark(@Nonnull Token token, boolean isDelete) {
+    int bucket = bucket(token);
+    synchronized (this) {
+      long bit = 1L << bucket;
+      long[] bitmap = isDelete ? deletes : words;
+      if ((bitmap[bucket >>> 6] & bit) != 0) {
+        return; // already saved
+      }
+      words[bucket >>> 6] |= bit;
+      if (isDelete) {
+        deletes[bucket >>> 6] |= bit;
+      }
+      sinceMicros = Math.min(sinceMicros, FBUtilities.timestampMicros());
+      save();
+    }
+  }
+
+  synchronized boolean isEmpty() {
+    return sinceMicros == Long.MAX_VALUE;
+  }
+
+  /**
+   * Clear the dirty ranges to repair them, see restore() if the repair fails
+   *
+   * @return the dirty ranges, null if there are none
+   */
+  @Nullable
+  synchronized Snapshot take() {
+    if (isEmpty()) {
+      return null;
+    }
+    Snapshot snapshot = new Snapshot(words.clone(), deletes.clone(), sinceMicros);
+    clear();
+    return snapshot;
+  }
+
+  /** Mark again the ranges of a repair that failed */
+  synchronized void restore(@Nonnull Snapshot snapshot) {
+    for (int i = 0; i < words.length; i++) {
+      words[i] |= snapshot.words[i];
+      deletes[i] |= snapshot.deletes[i];
+    }
+    sinceMicros = Math.min(sinceMicros, snapshot.sinceMicros);
+    save();
+  }
+
+  // Must hold this
+  private void clear() {
+    Arrays.fill(words, 0);
+    Arrays.fill(deletes, 0);
+    sinceMicros = Long.MAX_VALUE;
+    if (file.exists() && !file.delete()) {
+      LOGGER.warn("Can't delete dirty ranges {}", file);
+    }
+  }
+
+  /** @return the bucket of a token, buckets are in token order */
+  int bucket(@Nonnull Token token) {
+    Object value = token.getTokenValue();
+    if (value instanceof Long) { // Murmur3Partitioner
+      return (int) (((Long) value ^ Long.MIN_VALUE) >>> (Long.SIZE - BITS));
+    } else if (value instanceof BigInteger) { // RandomPartitioner, 0 to 2^127
+      int bucket = ((BigInteger) value).shiftRight(127 - BITS).intValue();
+      return Math.max(0, Math.min(BUCKETS - 1, bucket));
+    }
+    return 0;
+  }
+
+  /** @return the ranges to repair, contiguous dirty buckets are merged, in token order */
+  @Nonnull
+  List<Range<Token>> ranges(@Nonnull Snapshot snapshot) {
+    return ranges(snapshot.words);
+  }
+
+  /** @return the ranges with lost deletes, a subset of ranges(), in token order */
+  @Nonnull
+  List<Range<Token>> deleteRanges(@Nonnull Snapshot snapshot) {
+    return ranges(snapshot.deletes);
+  }
+
+  /**
+   * Buckets cover the whole ring, a node can only re-index the ranges it replicates
+   *
+   * @param ranges dirty ranges
+   * @param local ranges replicated by this node
+   * @return the parts of the dirty ranges that are local, normalized
+   */
+  @Nonnull
+  static List<Range<Token>> intersect(
+      @Nonnull List<Range<Token>> ranges, @Nonnull Collection<Range<Token>> local) {
+    List<Range<Token>> parts = new ArrayList<>();
+    for (Range<Token> range : ranges) {
+      for (Range<Token> localRange : local) {
+        parts.addAll(range.intersectionWith(localRange));
+      }
+    }
+    return Range.normalize(parts);
+  }
+
+  @Nonnull
+  private List<Range<Token>> ranges(@Nonnull long[] bitmap) {
+    Token min = partitioner.getMinimumToken();
+    Object minValue = min.getTokenValue();
+    if (!(minValue instanceof Long || minValue instanceof BigInteger)) {
+      return isSet(bitmap, 0)
+          ? Collections.singletonList(new Range<>(min, min))
+          : Collections.emptyList();
+    }
+
+    List<Range<Token>> ranges = new ArrayList<>();
+    int first = -1;
+    for (int bucket = 0; bucket <= BUCKETS; bucket++) {
+      boolean dirty = bucket < BUCKETS && isSet(bitmap, bucket);
+      if (dirty && first < 0) {
+        first = bucket;
+      } else if (!dirty && first >= 0) {
+        Token left = first == 0 ? min : lastTokenBefore(first);
+        Token right = bucket == BUCKETS ? min : lastTokenBefore(bucket);
+        ranges.add(new Range<>(left, right));
+        first = -1;
+      }
+    }
+    return ranges;
+  }
+
+  private static boolean isSet(@Nonnull long[] bitmap, int bucket) {
+    return (bitmap[bucket >>> 6] & (1L << bucket)) != 0;
+  }
+
+  /** @return the token just before the first token of a bucket, ranges exclude their left bound */
+  @Nonnull
+  private Token lastTokenBefore(int bucket) {
+    String value;
+    if (partitioner.getMinimumToken().getTokenValue() instanceof Long) {
+      value = Long.toString(((long) bucket << (Long.SIZE - BITS) ^ Long.MIN_VALUE) - 1);
+    } else {
+      BigInteger start = BigInteger.valueOf(bucket).shiftLeft(127 - BITS);
+      value = start.subtract(BigInteger.ONE).toString();
+    }
+    return partitioner.getTokenFactory().fromString(value);
+  }
+
+  // Must hold this
+  private void load() {
+    if (!file.exists()) {
+      return;
+    }
+    try (DataInputStream in = new DataInputStream(Files.newInputStream(file.toPath()))) {
+      int version = in.readInt();
+      if (version < 1 || version > VERSION || in.readInt() != BITS) {
+        throw new IOException("Unknown format");
+      }
+      long since = in.readLong();
+      for (int i = 0; i < words.length; i++) {
+        words[i] = in.readLong();
+      }
+      for (int i = 0; version > 1 && i < deletes.length; i++) {
+        deletes[i] = in.readLong();
+      }
+      sinceMicros = since;
+      LOGGER.info("Found dirty ranges {} of writes lost since {}us", file, sinceMicros);
+    } catch (IOException e) {
+      Arrays.fill(words, 0);
+      Arrays.fill(deletes, 0);
+      LOGGER.error("Ignoring unreadable dirty ranges {}, rebuild the index", file, e);
+    }
+  }
+
+  // Must hold this, written atomically
+  private void save() {
+    try {
+      File dir = file.getAbsoluteFile().getParentFile();
+      if (!dir.exists() && !dir.mkdirs()) {
+        throw new IOException("Can't create directory " + dir);
+      }
+      File tmp = new File(dir, file.getName() + ".tmp");
+      try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(tmp.toPath()))) {
+        out.writeInt(VERSION);
+        out.writeInt(BITS);
+        out.writeLong(sinceMicros);
+        for (long word : words) {
+          out.writeLong(word);
+        }
+        for (long word : deletes) {
+          out.writeLong(word);
+        }
+      }
+      Files.move(
+          tmp.toPath(),
+          file.toPath(),
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      LOGGER.error("Can't save dirty ranges {}, a restart will forget them", file, e);
+    }
+  }
+
+  /** Dirty ranges taken for a repair */
+  static class Snapshot {
+    private final long[] words;
+    private final long[] deletes;
+    final long sinceMicros;
+
+    private Snapshot(@Nonnull long[] words, @Nonnull long[] deletes, long sinceMicros) {
+      this.words = words;
+      this.deletes = deletes;
+      this.sinceMicros = sinceMicros;
+    }
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright Ericsson AB 2019 - All Rights Reserved.
+ * The copyright to the computer program(s) herein is the property of Ericsson AB.
+ * The programs may be used and/or copied only with written permission from Ericsson AB
+ * or in accordance with the terms and conditions stipulated in the agreement/contract under which the program(s) have been supplied.
+ */
+package com.ericsson.godzilla.cassandra.index;
+
+import javax.annotation.Nonnull;
+import java.io.Writer;
+
+/**
+ * Per thread buffer documents are serialized into, so that indexing a row doesn't allocate a new
+ * writer and grow its buffer again. Request envelopes are written around the document in the same
+ * buffer, only the request payload is copied once.<br>
+ * A buffer is reused by the next document of the same thread, payloads must be taken before.
+ */
+final class DocumentBuffer extends Writer {
+
+  private static final int INITIAL_CAPACITY = 4 * 1024;
+  private static final int MAX_RETAINED_CAPACITY = 1024 * 1024; // not kept after huge documents
+  private static final ThreadLocal<DocumentBuffer> BUFFERS =
+      ThreadLocal.withInitial(DocumentBuffer::new);
+
+  private StringBuilder chars = new StringBuilder(INITIAL_CAPACITY);
+  private int documentStart;
+  private int documentEnd;
+
+  private DocumentBuffer() {}
+
+  /** @return the empty buffer of this thread */
+  @Nonnull
+  static DocumentBuffer get() {
+    DocumentBuffer buffer = BUFFERS.get();
+    buffer.reset();
+    return buffer;
+  }
+
+  private void reset() {
+    if (chars.capacity() > MAX_RETAINED_CAPACITY) {
+      chars = new StringBuilder(INITIAL_CAPACITY);
+    } else {
+      chars.setLength(0);
+    }
+    documentStart = 0;
+    documentEnd = 0;
+  }
+
+  /** The document starts after what was written so far, like an envelope */
+  void startDocument() {
+    documentStart = chars.length();
+  }
+
+  /** The document ends here, what is written next is the end of the envelope */
+  void endDocument() {
+    documentEnd = chars.length();
+  }
+
+  int documentLength() {
+    return documentEnd - documentStart;
+  }
+
+  /** @return the document without its envelope */
+  @Nonnull
+  String document() {
+    return chars.substring(documentStart, documentEnd);
+  }
+
+  /** @return the whole content, envelope included */
+  @Nonnull
+  String payload() {
+    return chars.toString();
+  }
+
+  @Override
+  public void write(@Nonnull char[] buffer, int offset, int length) {
+    chars.append(buffer, offset, length);
+  }
+
+  @Override
+  public void write(@Nonnull String str, int offset, int length) {
+    chars.append(str, offset, offset + length);
+  }
+
+  @Override
+  public void write(int c) {
+    chars.append((char) c);
+  }
+
+  @Override
+  public void flush() {
+    // nothing to flush
+  }
+
+  @Override
+  public void close() {
+    // reused, see get()
+  }
+}
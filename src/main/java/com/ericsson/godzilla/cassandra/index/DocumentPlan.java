@@ -0,0 +1,226 @@
+/*
+ * Copyright Ericsson AB 2019 - All Rights Reserved.
+ * The copyright to the computer program(s) herein is the property of Ericsson AB.
+ * The programs may be used and/or copied only with written permission from Ericsson AB
+ * or in accordance with the terms and conditions stipulated in the agreement/contract under which the program(s) have been supplied.
+ */
+package com.ericsson.godzilla.cassandra.index;
+
+import com.ericsson.godzilla.cassandra.index.config.IndexConfig;
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.config.ColumnDefinition;
+import org.apache.cassandra.db.Clustering;
+import org.apache.cassandra.db.PartitionColumns;
+import org.apache.cassandra.db.rows.Cell;
+import org.apache.cassandra.db.rows.Row;
+import org.apache.cassandra.utils.Pair;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * How the columns of a table are written to ES documents, resolved once per schema and index
+ * options instead of for every cell: field names, codecs and serialization of each column.<br>
+ * Fields are held in an array in the order of the static then regular columns of the table, the
+ * order of the cells of a row, so the field of each cell is found by resuming from the position of
+ * the previous one, without a map lookup.<br>
+ * A plan is immutable, a new one is built when options are reloaded or when a column it doesn't
+ * know is updated after a schema change.
+ */
+final class DocumentPlan {
+
+  /** How a column value is written to documents */
+  enum Serialization {
+    /** not in the JSON schema fields, not written */
+    SKIPPED,
+    /** value with its native JSON type */
+    NATIVE,
+    /** JSON serialized string, written as JSON */
+    JSON,
+    /** JSON serialized string, written as flattened JSON */
+    FLAT_JSON
+  }
+
+  static final class Field {
+    final String name; // empty for row markers
+    final CellCodec codec;
+    final Serialization serialization;
+
+    private Field(@Nonnull String name, @Nonnull CellCodec codec, @Nonnull Serialization ser) {
+      this.name = name;
+      this.codec = codec;
+      this.serialization = ser;
+    }
+  }
+
+  private final IndexConfig indexConfig;
+  private final ColumnDefinition[] columns; // static then regular columns, in cell order
+  private final Field[] fields; // field of each column
+  private final int firstRegular; // position of the first regular column
+  private final String[] clusteringNames;
+  private final CellCodec[] clusteringCodecs;
+
+  private DocumentPlan(@Nonnull CFMetaData metadata, @Nonnull IndexConfig indexConfig) {
+    this.indexConfig = indexConfig;
+    Set<String> schemaFields = indexConfig.getJsonSchemaFields();
+    Set<String> flatSerializedFields = indexConfig.getJsonFlatSerializedFields();
+    Set<String> serializedFields = indexConfig.getJsonSerializedFields();
+
+    PartitionColumns partitionColumns = metadata.partitionColumns();
+    firstRegular = partitionColumns.statics.size();
+    columns = new ColumnDefinition[partitionColumns.size()];
+    fields = new Field[columns.length];
+    int position = 0;
+    for (ColumnDefinition column : partitionColumns) { // statics first, both sorted like cells
+      columns[position] = column;
+      fields[position] = field(column, schemaFields, flatSerializedFields, serializedFields);
+      position++;
+    }
+
+    List<ColumnDefinition> clusteringColumns = metadata.clusteringColumns();
+    clusteringNames = new String[clusteringColumns.size()];
+    clusteringCodecs = new CellCodec[clusteringColumns.size()];
+    for (int i = 0; i < clusteringNames.length; i++) {
+      ColumnDefinition column = clusteringColumns.get(i);
+      clusteringNames[i] = column.name.toString();
+      clusteringCodecs[i] = CellCodec.of(column.type);
+    }
+  }
+
+  @Nonnull
+  static DocumentPlan create(@Nonnull CFMetaData metadata, @Nonnull IndexConfig indexConfig) {
+    return new DocumentPlan(metadata, indexConfig);
+  }
+
+  /**
+   * @param row a static or regular row
+   * @param nowInSec time of the write, dead cells are null values
+   * @param discardNullValues true if null values are not indexed
+   * @param strict true to fail on a column unknown to this plan, false to resolve its field for
+   *     this row only, like a column dropped since the row was written
+   * @return the cells of the row to index without the row marker, null if strict and the row has
+   *     a column added or altered after this plan was built
+   */
+  @Nullable
+  List<CellElement> toElements(
+      @Nonnull Row row, int nowInSec, boolean discardNullValues, boolean strict)
+      throws IOException {
+    List<CellElement> elements = new ArrayList<>();
+    List<Pair<String, String>> clusteringKeys = getClusteringKeys(row);
+    int position = row.isStatic() ? 0 : firstRegular;
+
+    for (Cell cell : row.cells()) {
+      if (cell.isLive(nowInSec) || !discardNullValues) { // optionally ignore null values
+        int found = position(cell.column(), position);
+        Field field;
+        if (found >= 0) {
+          position = found;
+          field = fields[found];
+        } else if (strict) {
+          return null;
+        } else {
+          field = newField(cell.column());
+        }
+
+        if (!field.name.isEmpty()) { // Skip the cells with empty name (row marker)
+          CellElement element = new CellElement();
+          element.name = field.name;
+          element.field = field;
+          element.clusteringKeys = clusteringKeys;
+
+          if (CStarUtils.isCollection(cell)) {
+            element.collectionValue = CStarUtils.getCollectionElement(cell, field.codec);
+          } else if (cell.isLive(nowInSec)) {
+            element.setValue(cell.value(), field.codec);
+          }
+          elements.add(element);
+        }
+      }
+    }
+    return elements;
+  }
+
+  /**
+   * @param from position of the previous cell of the row, cells are sorted like plan columns
+   * @return position of the column, -1 if the column is unknown to this plan
+   */
+  private int position(@Nonnull ColumnDefinition column, int from) {
+    for (int i = from; i < columns.length; i++) {
+      if (columns[i] == column) { // definitions are replaced when the schema changes
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /** @return the field of a column unknown to this plan, not cached */
+  @Nonnull
+  private Field newField(@Nonnull ColumnDefinition column) {
+    return field(
+        column,
+        indexConfig.getJsonSchemaFields(),
+        indexConfig.getJsonFlatSerializedFields(),
+        indexConfig.getJsonSerializedFields());
+  }
+
+  /**
+   * Clustering keys of a row, decoded once for all the cells of the row
+   *
+   * @return name and value of each clustering key, null if the row has no clustering
+   */
+  @Nullable
+  List<Pair<String, String>> getClusteringKeys(@Nonnull Row row) {
+    Clustering clustering = row.clustering();
+    int size = Math.min(clustering.size(), clusteringNames.length);
+    if (size == 0) {
+      return null;
+    }
+
+    List<Pair<String, String>> keys = new ArrayList<>(size);
+    try {
+      for (int i = 0; i < size; i++) {
+        ByteBuffer value = clustering.get(i);
+        keys.add(
+            Pair.create(
+                clusteringNames[i], value == null ? null : clusteringCodecs[i].toString(value)));
+      }
+    } catch (IOException ignored) { // unsupported types are only missing from the document id
+    }
+    return keys;
+  }
+
+  /** @return how a field is written, for elements not created from a column */
+  @Nonnull
+  static Serialization serialization(
+      @Nonnull String name,
+      @Nonnull Set<String> schemaFields,
+      @Nonnull Set<String> flatSerializedFields,
+      @Nonnull Set<String> serializedFields) {
+    if (!schemaFields.contains(name)) {
+      return Serialization.SKIPPED;
+    } else if (flatSerializedFields.contains(name)) {
+      return Serialization.FLAT_JSON;
+    } else if (serializedFields.contains(name)) {
+      return Serialization.JSON;
+    }
+    return Serialization.NATIVE;
+  }
+
+  @Nonnull
+  private static Field field(
+      @Nonnull ColumnDefinition column,
+      @Nonnull Set<String> schemaFields,
+      @Nonnull Set<String> flatSerializedFields,
+      @Nonnull Set<String> serializedFields) {
+    String name = column.name.toString();
+    return new Field(
+        name,
+        CellCodec.of(column.type),
+        serialization(name, schemaFields, flatSerializedFields, serializedFields));
+  }
+}
@@ -1,14 +1,24 @@
 package com.ericsson.godzilla.cassandra.index;
 
 import com.ericsson.godzilla.cassandra.index.config.IndexConfig;
+import com.ericsson.godzilla.cassandra.index.monitor.EsIndexMetrics;
 import com.ericsson.godzilla.cassandra.index.monitor.EsJmxBridge;
+import com.ericsson.godzilla.cassandra.index.requests.BulkWriter;
+import com.ericsson.godzilla.cassandra.index.requests.CircuitBreaker;
+import com.ericsson.godzilla.cassandra.index.requests.DeferredWrite;
 import com.ericsson.godzilla.cassandra.index.requests.ElasticClientFactory;
+import com.ericsson.godzilla.cassandra.index.requests.EsRequestExecutionException;
 import com.ericsson.godzilla.cassandra.index.requests.ResponseHandler;
+import com.ericsson.godzilla.cassandra.index.requests.UnparsedSearch;
+import com.ericsson.godzilla.cassandra.index.requests.UnparsedSearchScroll;
 import com.ericsson.godzilla.cassandra.index.requests.UpdatePipeline;
+import com.ericsson.godzilla.cassandra.index.requests.WriteQueueReplayer;
 import com.google.gson.Gson;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
 import io.searchbox.action.Action;
+import io.searchbox.action.BulkableAction;
 import io.searchbox.client.JestClient;
 import io.searchbox.client.JestClientFactory;
 import io.searchbox.client.JestResult;
@@ -29,10 +39,15 @@ import io.searchbox.indices.settings.UpdateSettings;
 import org.apache.cassandra.config.ColumnDefinition;
 import org.apache.cassandra.config.DatabaseDescriptor;
 import org.apache.cassandra.cql3.Operator;
+import org.apache.cassandra.db.DecoratedKey;
 import org.apache.cassandra.db.filter.RowFilter;
 import org.apache.cassandra.db.marshal.UTF8Type;
+import org.apache.cassandra.dht.IPartitioner;
+import org.apache.cassandra.dht.Range;
+import org.apache.cassandra.dht.Token;
 import org.apache.cassandra.exceptions.CassandraException;
 import org.apache.cassandra.exceptions.ConfigurationException;
+import org.apache.cassandra.exceptions.ExceptionCode;
 import org.apache.cassandra.exceptions.InvalidRequestException;
 import org.apache.cassandra.utils.FBUtilities;
 import org.apache.cassandra.utils.Pair;
@@ -45,14 +60,18 @@ import org.apache.http.ssl.SSLContextBuilder;
 import org.apache.http.ssl.TrustStrategy;
 import org.codehaus.jackson.JsonFactory;
 import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonNode;
 import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.ObjectNode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.net.ssl.SSLContext;
+import java.io.File;
 import java.io.IOException;
-import java.io.StringWriter;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.ByteBuffer;
@@ -60,12 +79,17 @@ import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
 
 import static com.ericsson.godzilla.cassandra.index.EsSecondaryIndex.DEBUG_SHOW_VALUES;
 import static io.searchbox.params.Parameters.EXPLAIN;
 import static io.searchbox.params.Parameters.RETRY_ON_CONFLICT;
+import static io.searchbox.params.Parameters.SCROLL;
+import static io.searchbox.params.Parameters.SIZE;
 import static org.json.simple.JSONValue.escape;
 
 /** ES client based on Jest */
@@ -74,10 +98,10 @@ public class ElasticIndex implements IndexInterface {
   private static final Logger LOGGER = LoggerFactory.getLogger(ElasticIndex.class);
 
   // ES constants
-  private static final String ES_HITS = "hits";
-  private static final String ES_SOURCE = "_source";
-  private static final String ES_ID = "_id";
   private static final String ES_PIPELINE = "pipeline";
+  private static final Gson GSON = new Gson();
+  private static final int HTTP_ACCEPTED = 202; // writes queued while the circuit breaker is open
+  private static final String WRITE_QUEUE_DIR = "esindex-queue"; // in saved caches
   private static final String ES_LOCALHOST = "http://localhost:";
   private static final String ES_CREDENTIALS = "ESCREDENTIALS";
 
@@ -88,9 +112,13 @@ public class ElasticIndex implements IndexInterface {
       !Boolean.getBoolean(IndexConfig.ES_CONFIG_PREFIX + "disable-index-date");
   private static final long DISCOVERY_FREQ =
       Long.getLong(IndexConfig.ES_CONFIG_PREFIX + "discovery-frequency", 5);
+  private static final int REBUILD_IN_FLIGHT_BULKS = 4; // rebuild workers wait beyond that
+  private static final String SCROLL_KEEP_ALIVE = "1m"; // between two pages of a search
+  private static final int SETUP_STEPS = 5; // chained requests of an index setup, see setupIndex()
 
   // Special fields
   private static final String TTL_FIELD = "_cassandraTtl";
+  static final String TOKEN_FIELD = "_cassandraToken"; // partition token, Murmur3Partitioner only
   private static final String INDEXATION_DATE = "IndexationDate";
 
   // Wrapped queries
@@ -100,10 +128,13 @@ public class ElasticIndex implements IndexInterface {
   private static final String QUERY_WRAPPER_WITH_QUOTES =
       "{\"query\":{\"query_string\":{\"query\":\"%s\"}}}";
   static final String DOC_AS_UPSERT = "{\"doc\":%s,\"doc_as_upsert\":true}";
+  private static final String DOC_AS_UPSERT_PREFIX = "{\"doc\":"; // DOC_AS_UPSERT without copy
+  private static final String DOC_AS_UPSERT_SUFFIX = ",\"doc_as_upsert\":true}";
   private static final String MATCH_ALL = "*";
   private static final String MATCH_LTE =
       "{\"conflicts\":\"proceed\",\"query\":{\"range\":{\"" + TTL_FIELD + "\":{\"lte\":%d}}}}";
   private static final String JSON_PREFIX = "{";
+  private static final int MAX_DELETED_RANGES = 512; // below the max clause count of ES
 
   private static EsJmxBridge jmxMon;
 
@@ -140,22 +171,59 @@ public class ElasticIndex implements IndexInterface {
     }
   }
 
+  /** Reads the live rows of a partition on this node, lost writes are replayed from them */
+  interface PartitionReader {
+    /**
+     * @param key partition key
+     * @param rows receives the cells of each live row, like indexRebuild()
+     * @throws IOException if the partition can't be read now
+     */
+    void read(@Nonnull ByteBuffer key, @Nonnull RowWriter rows) throws IOException;
+
+    /**
+     * A lost write dropped from the write queue since its partition could not be read, its
+     * document stays stale until it is repaired
+     *
+     * @param key partition key
+     * @param isDelete true if the lost write was a delete
+     */
+    void unreadable(@Nonnull ByteBuffer key, boolean isDelete);
+  }
+
+  /** Receives the cells of a row read by a PartitionReader */
+  @FunctionalInterface
+  interface RowWriter {
+    void write(
+        @Nonnull List<Pair<String, String>> partitionKeys,
+        @Nonnull DecoratedKey decoratedKey,
+        @Nonnull List<CellElement> elements,
+        long expirationTime)
+        throws IOException;
+  }
+
   final String typeName;
   final IndexManager indexManager;
 
   private final JestClient client;
   private final IndexConfig indexConfig;
+  private final PartitionReader partitionReader;
   private final JsonFactory jsonFactory = new JsonFactory();
   private final ObjectMapper mapper = new ObjectMapper();
   private final AtomicBoolean newIndex = new AtomicBoolean();
   private final Set<String> pkIncludePattern;
   private final List<String> partitionKeysNames;
   private final List<String> clusteringColumnsNames;
-  private final boolean hasClusteringColumns;
+  private final SearchResponseReader responseReader;
+  private final EsIndexMetrics metrics;
+  private final long requestTimeout; // ms, deadline of admin requests
+  private final long readTimeout; // ms, deadline of searches
+  private final long writeTimeout; // ms, deadline of document writes
+  private final long truncateTimeout; // ms, deadline of deletes by query
 
   private boolean usePipeline;
   private int ttlShift;
-  private boolean isConcurrentLock;
+  private volatile StripedLock locks; // null if concurrent-lock is disabled
+  private StripedLock lockTable; // locks when enabled, created once
   private Set<String> jsonSchemaFields;
   private Set<String> jsonFlatSerializedFields;
   private Set<String> jsonSerializedFields;
@@ -165,20 +233,32 @@ public class ElasticIndex implements IndexInterface {
   private boolean isAsyncWrite;
   private boolean insertOnly;
   private int httpPort;
+  private volatile BulkWriter bulkWriter; // null if bulk-write is disabled
+  private volatile WriteCoalescer coalescer; // null if coalesce-window is 0
+  private volatile InFlightLimiter inFlightLimiter; // null if max-in-flight-writes is 0
+  private volatile WriteQueueReplayer writeQueue; // null if write-queue is disabled
+  private volatile CircuitBreaker circuitBreaker; // null if circuit-breaker is disabled
+  private volatile SearchCache searchCache; // null if search-cache-bytes is 0
+  private BulkWriter rebuildWriter; // guarded by this, created by the first rebuilt document
+  private int coalesceWindow;
+  private boolean writeQueuePipeline; // guarded by this, pipeline of the write queue
 
   ElasticIndex(
       @Nonnull IndexConfig indexConfig,
       @Nonnull String indexName,
       @Nonnull String tableName,
       @Nonnull List<String> partitionKeysNames,
-      @Nonnull List<String> clusteringColumnsNames)
+      @Nonnull List<String> clusteringColumnsNames,
+      @Nonnull PartitionReader partitionReader)
       throws ConfigurationException {
     this.indexConfig = indexConfig;
+    this.partitionReader = partitionReader;
     this.partitionKeysNames = partitionKeysNames;
     this.clusteringColumnsNames = clusteringColumnsNames;
     this.typeName = tableName;
 
     this.indexManager = getIndexManager(indexConfig, indexName);
+    this.metrics = new EsIndexMetrics(indexManager.getAliasName() + "/" + typeName);
     updateIndexConfigOptions();
 
     String unicastHosts = indexConfig.getUnicastHosts();
@@ -197,10 +277,11 @@ public class ElasticIndex implements IndexInterface {
       esUrls.add(host);
     }
 
-    int timeout =
-        (int)
-            Math.max(
-                DatabaseDescriptor.getWriteRpcTimeout(), DatabaseDescriptor.getReadRpcTimeout());
+    requestTimeout = DatabaseDescriptor.getRpcTimeout();
+    readTimeout = DatabaseDescriptor.getReadRpcTimeout();
+    writeTimeout = DatabaseDescriptor.getWriteRpcTimeout();
+    truncateTimeout = DatabaseDescriptor.getTruncateRpcTimeout();
+    int timeout = (int) Math.max(writeTimeout, readTimeout);
     int maxCon =
         DatabaseDescriptor.getConcurrentWriters() + DatabaseDescriptor.getConcurrentReaders();
 
@@ -254,7 +335,12 @@ public class ElasticIndex implements IndexInterface {
     include.addAll(clusteringColumnsNames);
 
     this.pkIncludePattern = include;
-    this.hasClusteringColumns = !clusteringColumnsNames.isEmpty();
+
+    List<String> primaryKeys = new ArrayList<>(partitionKeysNames);
+    primaryKeys.addAll(clusteringColumnsNames);
+    this.responseReader = new SearchResponseReader(primaryKeys);
+    setupBulkWriter();
+    setupWriteQueue();
   }
 
   private IndexManager getIndexManager(@Nonnull IndexConfig indexConfig, String indexName) {
@@ -293,6 +379,8 @@ public class ElasticIndex implements IndexInterface {
       }
     }
 
+    metrics.register();
+
     LOGGER.info(
         "ElasticIndex '{}' type '{}' initialization", indexManager.getAliasName(), typeName);
 
@@ -335,58 +423,86 @@ public class ElasticIndex implements IndexInterface {
       indexProperties.addProperty(IndexConfig.ES_TRANSLOG, IndexConfig.ES_TRANSLOG_ASYNC);
     }
 
-    boolean indexExists =
-        execute(new IndicesExists.Builder(indexName).build()).waitForResult().isSucceeded();
-    if (indexExists) {
-      LOGGER.warn("Index '{}' already exists, updating.", indexName);
-      setupTypeMapping(indexName);
-      setupPipelines();
-
-      if (indexProperties.size() == 0) {
-        LOGGER.debug("Index '{}' has no custom setting to apply", indexName);
-        return;
-      }
+    JsonObject properties = indexProperties;
+    CompletableFuture<Void> setup =
+        execute(new IndicesExists.Builder(indexName).build())
+            .toFuture()
+            .thenCompose(
+                exists ->
+                    exists.isSucceeded()
+                        ? updateIndex(indexName, properties)
+                        : createIndex(indexName, properties));
+    ResponseHandler.await(setup, requestTimeout * SETUP_STEPS, "setup of index " + indexName);
+  }
 
-      JsonObject updatableProperties =
-          JsonUtils.filter(indexProperties, IndexConfig.UPDATABLE_SETTINGS::contains);
+  /** Update the mapping, pipelines and settings of an existing index */
+  @Nonnull
+  private CompletableFuture<Void> updateIndex(String indexName, JsonObject indexProperties) {
+    LOGGER.warn("Index '{}' already exists, updating.", indexName);
+    CompletableFuture<Void> setup =
+        setupTypeMapping(indexName).thenCompose(mapped -> setupPipelines());
+
+    if (indexProperties.size() == 0) {
+      LOGGER.debug("Index '{}' has no custom setting to apply", indexName);
+      return setup;
+    }
 
-      if (updatableProperties.size() == 0) {
-        LOGGER.debug("No settings to update");
-      } else {
-        LOGGER.info("Applying updatable settings from cfg {}", updatableProperties);
-        JestResult res =
-            execute(new UpdateSettings.Builder(updatableProperties).addIndex(indexName).build())
-                .waitForSuccess();
-        LOGGER.info("Index settings update result is: {}", res.isSucceeded());
-      }
-    } else {
-      LOGGER.warn("Index '{}' does not exist, creating...", indexName);
+    JsonObject updatableProperties =
+        JsonUtils.filter(indexProperties, IndexConfig.UPDATABLE_SETTINGS::contains);
 
-      CreateIndex.Builder createIndex = new CreateIndex.Builder(indexName);
-      createIndex.settings(indexProperties.toString());
+    if (updatableProperties.size() == 0) {
+      LOGGER.debug("No settings to update");
+      return setup;
+    }
 
-      JestResult createIndexResult = execute(createIndex.build()).waitForResult();
-      boolean success = createIndexResult.isSucceeded();
-      LOGGER.warn("Index creation result is: {}", success);
+    LOGGER.info("Applying updatable settings from cfg {}", updatableProperties);
+    return setup
+        .thenCompose(
+            piped ->
+                execute(new UpdateSettings.Builder(updatableProperties).addIndex(indexName).build())
+                    .toSuccessFuture())
+        .thenAccept(res -> LOGGER.info("Index settings update result is: {}", res.isSucceeded()));
+  }
 
-      if (success) {
-        putAlias(indexName, indexManager.getAliasName());
-        setupTypeMapping(indexName);
-        setupPipelines();
+  /** Create the index, then its alias, mapping and pipelines */
+  @Nonnull
+  private CompletableFuture<Void> createIndex(String indexName, JsonObject indexProperties) {
+    LOGGER.warn("Index '{}' does not exist, creating...", indexName);
+
+    CreateIndex.Builder createIndex = new CreateIndex.Builder(indexName);
+    createIndex.settings(indexProperties.toString());
+
+    return execute(createIndex.build())
+        .toFuture()
+        .thenCompose(
+            createIndexResult -> {
+              boolean success = createIndexResult.isSucceeded();
+              LOGGER.warn("Index creation result is: {}", success);
+
+              if (success) {
+                return putAlias(indexName, indexManager.getAliasName())
+                    .thenCompose(aliased -> setupTypeMapping(indexName))
+                    .thenCompose(mapped -> setupPipelines())
+                    .thenRun(() -> newIndex.set(true)); // automatic rebuild support
+              }
 
-        newIndex.set(true); // automatic rebuild support
-      } else {
-        if (execute(new IndicesExists.Builder(indexName).build()).waitForResult().isSucceeded()) {
-          LOGGER.warn(
-              "Creation of index '{}' failed, but it exists now, it was created and configured by another node, proceeding...",
-              indexName);
-        } else {
-          LOGGER.error(
-              "Failed to create the index '{}' {}", indexName, createIndexResult.getJsonString());
-          throw new ConfigurationException(createIndexResult.getErrorMessage());
-        }
-      }
-    }
+              return execute(new IndicesExists.Builder(indexName).build())
+                  .toFuture()
+                  .thenAccept(
+                      exists -> {
+                        if (exists.isSucceeded()) {
+                          LOGGER.warn(
+                              "Creation of index '{}' failed, but it exists now, it was created and configured by another node, proceeding...",
+                              indexName);
+                        } else {
+                          LOGGER.error(
+                              "Failed to create the index '{}' {}",
+                              indexName,
+                              createIndexResult.getJsonString());
+                          throw new ConfigurationException(createIndexResult.getErrorMessage());
+                        }
+                      });
+            });
   }
 
   /**
@@ -396,23 +512,27 @@ public class ElasticIndex implements IndexInterface {
    * We can define a pipeline for every type, and when we make insert we will the pipeline if the
    * pipeline is defined for this type
    */
-  private void setupPipelines() {
-    indexConfig.getPipelines().stream()
-        .filter(StringUtils::isNotBlank) // Check null or empty
-        .filter(
-            type ->
-                StringUtils.isNotBlank(
-                    indexConfig.getPipeline(type))) // Check pipeline definition exists
-        .forEach(
-            type -> {
-              execute(new UpdatePipeline.Builder(type, indexConfig.getPipeline(type)).build())
-                  .waitForSuccess();
-              LOGGER.debug("Pipeline created for '{}'", type);
-            });
+  @Nonnull
+  private CompletableFuture<Void> setupPipelines() {
+    CompletableFuture<?>[] pipelines =
+        indexConfig.getPipelines().stream()
+            .filter(StringUtils::isNotBlank) // Check null or empty
+            .filter(
+                type ->
+                    StringUtils.isNotBlank(
+                        indexConfig.getPipeline(type))) // Check pipeline definition exists
+            .map(
+                type ->
+                    execute(new UpdatePipeline.Builder(type, indexConfig.getPipeline(type)).build())
+                        .toSuccessFuture()
+                        .thenRun(() -> LOGGER.debug("Pipeline created for '{}'", type)))
+            .toArray(CompletableFuture<?>[]::new);
+    return CompletableFuture.allOf(pipelines);
   }
 
   /** Update the type mapping of an existing index */
-  private void setupTypeMapping(String indexName) throws ConfigurationException {
+  @Nonnull
+  private CompletableFuture<Void> setupTypeMapping(String indexName) {
     String mapping = indexConfig.getTypeMapping(typeName);
 
     if (isDetectedGeo && StringUtils.isNotBlank(mapping)) {
@@ -432,11 +552,15 @@ public class ElasticIndex implements IndexInterface {
       mapping = mapObj.toString();
     }
 
-    if (StringUtils.isNotBlank(mapping)) {
-      LOGGER.debug("Updating type mapping for '{}' to:\n\t{}", typeName, mapping);
-      // We put the new getMapping on current index, not the alias
-      execute(new PutMapping.Builder(indexName, typeName, mapping).build()).waitForSuccess();
+    if (StringUtils.isBlank(mapping)) {
+      return CompletableFuture.completedFuture(null);
     }
+
+    LOGGER.debug("Updating type mapping for '{}' to:\n\t{}", typeName, mapping);
+    // We put the new getMapping on current index, not the alias
+    return execute(new PutMapping.Builder(indexName, typeName, mapping).build())
+        .toSuccessFuture()
+        .thenAccept(res -> {});
   }
 
   public SearchResult getMapping(String index) {
@@ -448,61 +572,350 @@ public class ElasticIndex implements IndexInterface {
   public SearchResult putMapping(String index, String source) {
     JestResult result =
         execute(new PutMapping.Builder(index, typeName, source).build()).waitForResult();
+    invalidateSearchCache();
     return new SearchResult(new ArrayList<>(), result.getJsonObject());
   }
 
+  @Nonnull
   @Override
-  public void index(
+  public CompletableFuture<Void> index(
       @Nonnull List<Pair<String, String>> partitionKeys,
+      @Nonnull DecoratedKey decoratedKey,
       @Nonnull List<CellElement> elements,
       long expirationTime,
       boolean isInsert)
       throws IOException {
-    if (isConcurrentLock) {
-      // lock on intern representation of type+PK, for example: "Interaction[(Id,0001HZO1Qq0haiGs)]"
+    WriteCoalescer writeCoalescer = coalescer;
+    if (writeCoalescer != null) {
+      // The coalescer only sends a version of a document once the previous one is acknowledged,
+      // no need to lock
+      return indexCoalesced(
+          writeCoalescer, partitionKeys, decoratedKey, elements, expirationTime, isInsert);
+    }
+
+    StripedLock stripedLock = locks;
+    if (stripedLock != null) {
+      // lock on the hash of the PK, each index has its own lock table
       // This prevents concurrent upserts on the same doc from the same node
-      synchronized ((typeName + partitionKeys).intern()) {
-        indexInternal(partitionKeys, elements, expirationTime, isInsert);
+      Lock lock = stripedLock.lock(partitionKeys.hashCode());
+      try {
+        return indexInternal(partitionKeys, decoratedKey, elements, expirationTime, isInsert);
+      } finally {
+        lock.unlock();
       }
     } else {
-      indexInternal(partitionKeys, elements, expirationTime, isInsert);
+      return indexInternal(partitionKeys, decoratedKey, elements, expirationTime, isInsert);
     }
   }
 
-  private void indexInternal(
+  @Nonnull
+  private CompletableFuture<Void> indexInternal(
       List<Pair<String, String>> partitionKeys,
+      DecoratedKey decoratedKey,
       List<CellElement> elements,
       long expirationTime,
       boolean isInsert)
       throws IOException {
 
     Map<String, List<CellElement>> groupedMap = group(partitionKeys, elements);
+    CompletableFuture<?>[] outcomes = new CompletableFuture<?>[groupedMap.size()];
+    int i = 0;
 
     for (Map.Entry<String, List<CellElement>> entry : groupedMap.entrySet()) {
-      update(partitionKeys, entry.getKey(), entry.getValue(), expirationTime, isInsert);
+      ResponseHandler<DocumentResult> handler =
+          update(
+              partitionKeys,
+              decoratedKey,
+              entry.getKey(),
+              entry.getValue(),
+              expirationTime,
+              isInsert);
+      if (!isAsyncWrite) {
+        handler.waitForSuccess(); // Will block until response anc ensure result is a success
+      }
+      outcomes[i++] = handler.toSuccessFuture();
     }
+    return CompletableFuture.allOf(outcomes);
   }
 
-  /** update cassandra partition and update elasticsearch */
-  private void update(
+  @Override
+  public void indexRebuild(
+      @Nonnull List<Pair<String, String>> partitionKeys,
+      @Nonnull DecoratedKey decoratedKey,
+      @Nonnull List<CellElement> elements,
+      long expirationTime)
+      throws IOException {
+    BulkWriter writer = getRebuildWriter();
+    Map<String, List<CellElement>> groupedMap = group(partitionKeys, elements);
+
+    for (Map.Entry<String, List<CellElement>> entry : groupedMap.entrySet()) {
+      // Rebuilds are bounded by awaitInFlight() below, see flushRebuild() for failures
+      String docId = entry.getKey();
+      update(
+              partitionKeys,
+              decoratedKey,
+              docId,
+              entry.getValue(),
+              expirationTime,
+              true,
+              writer,
+              null,
+              null)
+          .toFuture()
+          .thenAccept(
+              result -> {
+                if (!result.isSucceeded()) {
+                  LOGGER.warn(
+                      "{} rebuild skipped document {} rejected with {} {}",
+                      typeName,
+                      docId,
+                      result.getResponseCode(),
+                      result.getErrorMessage());
+                }
+              });
+    }
+    // Bound memory used by documents waiting for their bulk response
+    writer.awaitInFlight(indexConfig.getBulkMaxActions() * REBUILD_IN_FLIGHT_BULKS);
+  }
+
+  @Override
+  public void flushRebuild() {
+    BulkWriter writer;
+    synchronized (this) {
+      writer = rebuildWriter;
+      rebuildWriter = null;
+    }
+    if (writer != null) {
+      writer.close();
+      writer.awaitInFlight(0);
+      invalidateSearchCache();
+      long rejected = writer.getRejections(); // they would be rejected again, they are logged
+      long failed = writer.getFailures() - rejected;
+      if (rejected > 0) {
+        LOGGER.warn("{} rebuild skipped {} documents rejected by ES", typeName, rejected);
+      }
+      if (failed > 0) {
+        throw new RuntimeException(typeName + " rebuild failed to send " + failed + " documents");
+      }
+    }
+  }
+
+  @Nonnull
+  private synchronized BulkWriter getRebuildWriter() {
+    if (rebuildWriter == null) {
+      rebuildWriter =
+          new BulkWriter(
+              typeName,
+              client,
+              usePipeline ? typeName : null,
+              indexConfig.getBulkMaxActions(),
+              indexConfig.getBulkMaxBytes(),
+              indexConfig.getBulkLinger());
+    }
+    return rebuildWriter;
+  }
+
+  /** Updates are merged with pending updates of the same document, sync writers wait outside locks */
+  @Nonnull
+  private CompletableFuture<Void> indexCoalesced(
+      WriteCoalescer writeCoalescer,
       List<Pair<String, String>> partitionKeys,
+      DecoratedKey decoratedKey,
+      List<CellElement> elements,
+      long expirationTime,
+      boolean isInsert)
+      throws IOException {
+
+    Map<String, List<CellElement>> groupedMap = group(partitionKeys, elements);
+    List<WriteCoalescer.PendingDoc> docs = new ArrayList<>(groupedMap.size());
+
+    for (Map.Entry<String, List<CellElement>> entry : groupedMap.entrySet()) {
+      docs.add(
+          writeCoalescer.add(
+              partitionKeys,
+              decoratedKey,
+              entry.getKey(),
+              entry.getValue(),
+              expirationTime,
+              isInsert));
+    }
+
+    if (!isAsyncWrite) {
+      for (WriteCoalescer.PendingDoc doc : docs) {
+        doc.waitForSuccess();
+      }
+    }
+    return CompletableFuture.allOf(
+        docs.stream().map(WriteCoalescer.PendingDoc::outcome).toArray(CompletableFuture<?>[]::new));
+  }
+
+  @Nonnull
+  private ResponseHandler<DocumentResult> update(
+      List<Pair<String, String>> partitionKeys,
+      DecoratedKey decoratedKey,
       String docId,
       List<CellElement> elements,
       long expirationTime,
       boolean isInsert)
       throws IOException {
-    StringWriter stringWriter = new StringWriter();
-    try (JsonGenerator builder = jsonFactory.createJsonGenerator(stringWriter)) {
+    return update(
+        partitionKeys,
+        decoratedKey,
+        docId,
+        elements,
+        expirationTime,
+        isInsert,
+        bulkWriter,
+        inFlightLimiter,
+        writeQueue);
+  }
+
+  /** Update sent by the coalescer, room was reserved when the document was added to it */
+  @Nonnull
+  private ResponseHandler<DocumentResult> reserved(
+      List<Pair<String, String>> partitionKeys,
+      DecoratedKey decoratedKey,
+      String docId,
+      List<CellElement> elements,
+      long expirationTime,
+      boolean isInsert)
+      throws IOException {
+    return update(
+        partitionKeys,
+        decoratedKey,
+        docId,
+        elements,
+        expirationTime,
+        isInsert,
+        bulkWriter,
+        null, // reserved by the coalescer
+        writeQueue);
+  }
+
+  /**
+   * Send the current rows of the partition of a lost write, see WriteQueueReplayer. Documents of
+   * the partition were deleted by clear() first, unless its token is not numeric.
+   *
+   * @param docId deleted if the partition has no live row
+   * @return one handler per document written or deleted
+   */
+  @Nonnull
+  private List<ResponseHandler<DocumentResult>> reindex(
+      @Nonnull ByteBuffer key, @Nonnull String docId, @Nonnull BulkWriter writer)
+      throws IOException {
+    List<ResponseHandler<DocumentResult>> handlers = new ArrayList<>();
+    partitionReader.read(
+        key,
+        (partitionKeys, decoratedKey, elements, expirationTime) -> {
+          for (Map.Entry<String, List<CellElement>> entry :
+              group(partitionKeys, elements).entrySet()) {
+            handlers.add(
+                update(
+                    partitionKeys,
+                    decoratedKey,
+                    entry.getKey(),
+                    entry.getValue(),
+                    expirationTime,
+                    true,
+                    writer,
+                    null,
+                    null));
+          }
+        });
+
+    if (handlers.isEmpty()) { // the partition is gone, its document may have no token
+      String currentName = indexManager.getCurrentName();
+      Delete request = new Delete.Builder(docId).index(currentName).type(typeName).build();
+      handlers.add(write(request, docId.length(), writer, null, null, null));
+    }
+    return handlers;
+  }
+
+  /**
+   * Delete the documents of the partitions of lost writes before they are re-indexed, so that the
+   * documents of rows deleted meanwhile, like a lost delete of a clustered row, are dropped too.
+   * Documents are matched by partition token, a partition sharing the token of another one is
+   * re-indexed by the next write of its rows or a #repair#.
+   *
+   * @throws IOException if the documents can't be deleted now
+   */
+  private void clear(@Nonnull List<ByteBuffer> keys) throws IOException {
+    IPartitioner partitioner = DatabaseDescriptor.getPartitioner();
+    List<Long> tokens = new ArrayList<>(keys.size());
+    for (ByteBuffer key : keys) {
+      Long token = partitioner == null ? null : CStarUtils.numericToken(partitioner.getToken(key));
+      if (token == null) { // not indexed by token, rows deleted meanwhile are fixed by a #repair#
+        return;
+      }
+      tokens.add(token);
+    }
+    if (tokens.isEmpty()) {
+      return;
+    }
+
+    DeleteByQuery deleteQuery =
+        new DeleteByQuery.Builder(tokensQuery(mapper, tokens))
+            .addIndex(indexManager.getAliasName())
+            .addType(typeName)
+            .build();
+    JestResult res = execute(deleteQuery, truncateTimeout).waitForResult();
+    if (!res.isSucceeded()) {
+      throw new IOException(
+          "can't delete the documents of " + tokens.size() + " partitions: "
+              + res.getResponseCode() + " " + res.getErrorMessage());
+    }
+    invalidateSearchCache();
+  }
+
+  /** @return a delete by query of the documents of the partition tokens */
+  @Nonnull
+  static String tokensQuery(@Nonnull ObjectMapper mapper, @Nonnull List<Long> tokens) {
+    ObjectNode request = mapper.createObjectNode();
+    request.put("conflicts", "proceed"); // documents written meanwhile are kept
+    ArrayNode terms = request.putObject("query").putObject("terms").putArray(TOKEN_FIELD);
+    for (Long token : tokens) {
+      terms.add(token);
+    }
+    return request.toString();
+  }
+
+
+  /**
+   * update cassandra partition and update elasticsearch, through the writer if not null
+   *
+   * @param limiter bounds writes in flight, null for no bound
+   * @param queue failed writes are queued there, null to only log them
+   */
+  @Nonnull
+  private ResponseHandler<DocumentResult> update(
+      List<Pair<String, String>> partitionKeys,
+      DecoratedKey decoratedKey,
+      String docId,
+      List<CellElement> elements,
+      long expirationTime,
+      boolean isInsert,
+      @Nullable BulkWriter writer,
+      @Nullable InFlightLimiter limiter,
+      @Nullable WriteQueueReplayer queue)
+      throws IOException {
+    boolean isUpsert = !(insertOnly || usePipeline); // pipelines can only be used with index or bulk
+    DocumentBuffer buffer = DocumentBuffer.get();
+    if (isUpsert) {
+      buffer.write(DOC_AS_UPSERT_PREFIX);
+    }
+    buffer.startDocument();
+
+    try (JsonGenerator builder = jsonFactory.createJsonGenerator(buffer)) {
       builder.writeStartObject();
       for (Pair<String, String> pk : partitionKeys) {
         builder.writeStringField(pk.left, pk.right);
       }
       boolean clusteringKeysSet = false;
       Map<CellElement, Map<String, String>> collections = null;
-      Set<String> ignoreProperties = new HashSet<>();
+      Set<String> ignoreProperties = DEBUG_SHOW_VALUES ? new HashSet<>() : null; // for logs only
       // Fill simple fields and map complex types
       for (CellElement element : elements) {
-        boolean matchSchemaElement = jsonSchemaFields.contains(element.name);
+        DocumentPlan.Serialization serialization = serializationOf(element);
         if (element.clusteringKeys != null) {
           if (!clusteringKeysSet) { // Insert clustering keys if not already done
             for (Pair<String, String> key : element.clusteringKeys) {
@@ -518,21 +931,27 @@ public class ElasticIndex implements IndexInterface {
           collections
               .computeIfAbsent(element, k -> new HashMap<>())
               .put(element.collectionValue.name, element.collectionValue.value);
-        } else if (element.value != null) {
+        } else if (element.hasValue()) {
           try {
-            if (matchSchemaElement) {
-              if (jsonFlatSerializedFields.contains(element.name)) {
-                String flattenedJson = JsonUtils.flatten(element.value);
+            switch (serialization) {
+              case FLAT_JSON:
+                String flattenedJson = JsonUtils.flatten(element.stringValue());
                 builder.writeFieldName(element.name);
                 builder.writeRawValue(flattenedJson);
-              } else if (jsonSerializedFields.contains(element.name)) {
+                break;
+              case JSON:
+                String json = element.stringValue();
                 builder.writeFieldName(element.name);
-                builder.writeRawValue(element.value);
-              } else { // Simple field
-                builder.writeStringField(element.name, element.value);
-              }
-            } else {
-              ignoreProperties.add(element.name);
+                builder.writeRawValue(json);
+                break;
+              case NATIVE: // Simple field, with its native JSON type
+                builder.writeFieldName(element.name);
+                element.writeValue(builder);
+                break;
+              default: // not in the JSON schema fields
+                if (ignoreProperties != null) {
+                  ignoreProperties.add(element.name);
+                }
             }
           } catch (IOException ex) {
             if (SKIP_BAD_JSON) {
@@ -549,8 +968,7 @@ public class ElasticIndex implements IndexInterface {
         // Fill the collections now that they are sorted
         for (Map.Entry<CellElement, Map<String, String>> collection : collections.entrySet()) {
           CellElement element = collection.getKey();
-          boolean matchSchemaElement = jsonSchemaFields.contains(element.name);
-          if (matchSchemaElement) {
+          if (serializationOf(element) != DocumentPlan.Serialization.SKIPPED) {
             if (element.collectionValue != null) {
               switch (element.collectionValue.type) {
                 case JSON:
@@ -585,7 +1003,7 @@ public class ElasticIndex implements IndexInterface {
                   // There is no other CollectionType
               }
             }
-          } else {
+          } else if (ignoreProperties != null) {
             ignoreProperties.add(element.name);
           }
         }
@@ -597,11 +1015,11 @@ public class ElasticIndex implements IndexInterface {
         for (CellElement element : elements) {
           if (!element.isCollection()) {
             if (StringUtils.equalsIgnoreCase(element.name, "latitude")) {
-              latitude = element.value;
+              latitude = element.stringValue();
               continue;
             }
             if (StringUtils.equalsIgnoreCase(element.name, "longitude")) {
-              longitude = element.value;
+              longitude = element.stringValue();
             }
           }
         }
@@ -619,67 +1037,86 @@ public class ElasticIndex implements IndexInterface {
         }
       }
 
-      if (!ignoreProperties.isEmpty()) {
-        if (DEBUG_SHOW_VALUES) {
-          LOGGER.debug(
-              "\u001B[44m{}\u001B[0m indexing skip serialized fields:\u001B[33m{}\u001B[0m",
-              indexManager.getCurrentName(),
-              ignoreProperties);
-        }
+      if (ignoreProperties != null && !ignoreProperties.isEmpty()) {
+        LOGGER.debug(
+            "\u001B[44m{}\u001B[0m indexing skip serialized fields:\u001B[33m{}\u001B[0m",
+            indexManager.getCurrentName(),
+            ignoreProperties);
       }
 
       if (ENABLE_INDEXATION_DATE) {
-        builder.writeStringField(INDEXATION_DATE, JsonUtils.getIso8601Date(new Date()));
+        builder.writeStringField(
+            INDEXATION_DATE, Iso8601Formatter.format(System.currentTimeMillis()));
       }
 
       if (indexManager.isTTLFieldRequired()) {
         builder.writeNumberField(TTL_FIELD, expirationTime);
       }
 
+      Long tokenValue = CStarUtils.numericToken(decoratedKey.getToken());
+      if (tokenValue != null) {
+        builder.writeNumberField(TOKEN_FIELD, tokenValue);
+      }
+
       builder.writeEndObject();
       builder.close(); // calling close() early because we want the output now
-      String jsonDoc = stringWriter.toString();
+    }
+    buffer.endDocument();
 
-      if (DEBUG_SHOW_VALUES) {
-        String operation = (insertOnly || usePipeline) ? "insert" : "upsert";
-        LOGGER.debug(
-            "Document {} index {} {} with content \u001B[33m{}\u001B[0m",
-            typeName,
-            operation,
-            docId,
-            jsonDoc);
-      }
+    if (DEBUG_SHOW_VALUES) {
+      String operation = isUpsert ? "upsert" : "insert";
+      LOGGER.debug(
+          "Document {} index {} {} with content \u001B[33m{}\u001B[0m",
+          typeName,
+          operation,
+          docId,
+          buffer.document());
+    }
 
-      String currentName = indexManager.getCurrentName();
-      ResponseHandler<DocumentResult> handler;
-      if (insertOnly || usePipeline) {
-        Index.Builder indexRequest =
-            new Index.Builder(jsonDoc).index(currentName).type(typeName).id(docId);
+    String currentName = indexManager.getCurrentName();
+    ResponseHandler<DocumentResult> handler;
+    if (!isUpsert) {
+      Index.Builder indexRequest =
+          new Index.Builder(buffer.payload()).index(currentName).type(typeName).id(docId);
 
-        if (usePipeline) { // https://www.elastic.co/guide/en/elasticsearch/reference/5.5/ingest.html
-          indexRequest.setParameter(ES_PIPELINE, typeName);
-        }
-        handler = execute(indexRequest.build());
+      if (usePipeline) { // https://www.elastic.co/guide/en/elasticsearch/reference/5.5/ingest.html
+        indexRequest.setParameter(ES_PIPELINE, typeName);
+      }
+      DeferredWrite deferred =
+          queue == null
+              ? null
+              : new DeferredWrite(
+                  DeferredWrite.Kind.INDEX, currentName, docId, decoratedKey.getKey());
+      handler =
+          write(indexRequest.build(), buffer.documentLength(), writer, limiter, queue, deferred);
 
-      } else {
-        // Pipelines can only be used with index or bulk
-        Update.Builder update =
-            new Update.Builder(String.format(DOC_AS_UPSERT, jsonDoc))
-                .index(currentName)
-                .type(typeName)
-                .id(docId);
-
-        if (indexConfig.getRetryOnConflict() > -1) {
-          update.setParameter(RETRY_ON_CONFLICT, indexConfig.getRetryOnConflict());
-        }
+    } else {
+      buffer.write(DOC_AS_UPSERT_SUFFIX);
+      Update.Builder update =
+          new Update.Builder(buffer.payload()).index(currentName).type(typeName).id(docId);
 
-        handler = execute(update.build());
+      if (indexConfig.getRetryOnConflict() > -1) {
+        update.setParameter(RETRY_ON_CONFLICT, indexConfig.getRetryOnConflict());
       }
 
-      if (!isAsyncWrite) {
-        handler.waitForSuccess(); // Will block until response anc ensure result is a success
-      }
+      DeferredWrite deferred =
+          queue == null
+              ? null
+              : new DeferredWrite(
+                  DeferredWrite.Kind.UPDATE, currentName, docId, decoratedKey.getKey());
+      handler = write(update.build(), buffer.documentLength(), writer, limiter, queue, deferred);
     }
+    return handler;
+  }
+
+  /** @return the serialization planned for the column of the element, or from its name */
+  @Nonnull
+  private DocumentPlan.Serialization serializationOf(@Nonnull CellElement element) {
+    if (element.field != null) {
+      return element.field.serialization;
+    }
+    return DocumentPlan.serialization(
+        element.name, jsonSchemaFields, jsonFlatSerializedFields, jsonSerializedFields);
   }
 
   /**
@@ -701,99 +1138,254 @@ public class ElasticIndex implements IndexInterface {
     return sortedCells;
   }
 
+  @Nonnull
   @Override
-  public void delete(@Nonnull List<Pair<String, String>> partitionKeys) {
+  public CompletableFuture<Void> delete(
+      @Nonnull List<Pair<String, String>> partitionKeys, @Nonnull DecoratedKey decoratedKey) {
     String docId = CStarUtils.toEsId(partitionKeys, null);
     String currentName = indexManager.getCurrentName();
+    WriteCoalescer writeCoalescer = coalescer;
+    List<WriteCoalescer.PendingDoc> discarded =
+        writeCoalescer == null
+            ? Collections.emptyList()
+            : writeCoalescer.discard(decoratedKey); // and the documents of its rows
+    WriteQueueReplayer queue = writeQueue;
+    Delete request = new Delete.Builder(docId).index(currentName).type(typeName).build();
     ResponseHandler<DocumentResult> handler =
-        execute(new Delete.Builder(docId).index(currentName).type(typeName).build());
+        write(
+            request,
+            docId.length(),
+            bulkWriter,
+            inFlightLimiter,
+            queue,
+            queue == null
+                ? null
+                : new DeferredWrite(
+                    DeferredWrite.Kind.DELETE, currentName, docId, decoratedKey.getKey()));
+    CompletableFuture<DocumentResult> outcome =
+        handler.toStatusFuture(200, 404, 204, HTTP_ACCEPTED);
+
+    if (!discarded.isEmpty()) { // the dropped updates succeed or fail with the delete
+      ResponseHandler<DocumentResult> superseded = new ResponseHandler<>(typeName, request);
+      outcome.whenComplete(
+          (result, error) -> {
+            if (error == null) {
+              superseded.completed(deferredResult());
+            } else {
+              superseded.rejected(asException(error));
+            }
+          });
+      for (WriteCoalescer.PendingDoc doc : discarded) {
+        doc.supersede(superseded);
+      }
+    }
     if (!isAsyncWrite) {
-      handler.waitForStatus(
-          200, 404, 204); // Blocks until response. Does not ensure result is a success.
+      // Blocks until response. Does not ensure result is a success, deferred writes are accepted
+      handler.waitForStatus(200, 404, 204, HTTP_ACCEPTED);
     }
+    return outcome.thenAccept(result -> {});
   }
 
   @Override
   public Object flush() {
-    return execute(new Flush.Builder().addIndex(indexManager.getCurrentName()).force(true).build())
-        .waitForSuccess();
+    WriteCoalescer writeCoalescer = coalescer;
+    if (writeCoalescer != null) {
+      writeCoalescer.flush();
+    }
+    BulkWriter writer = bulkWriter;
+    if (writer != null) {
+      writer.flush();
+    }
+    Object result =
+        execute(new Flush.Builder().addIndex(indexManager.getCurrentName()).force(true).build())
+            .waitForSuccess();
+    invalidateSearchCache();
+    return result;
   }
 
   @Override
   @Nonnull
-  public SearchResult search(@Nonnull QueryMetaData queryMetaData) {
+  public SearchResult search(@Nonnull QueryMetaData queryMetaData, int pageSize) {
     String queryString = queryMetaData.query;
+    boolean streaming = pageSize > 0;
 
     if (!queryString.startsWith(JSON_PREFIX)) {
       queryString = String.format(QUERY_WRAPPER_WITH_SIZE, maxResults, escape(queryString));
     }
+    if (queryMetaData.hasTokenRange()) {
+      queryString =
+          withTokenRange(
+              mapper, queryString, queryMetaData.minToken(), queryMetaData.maxToken());
+    }
     LOGGER.trace("Index {} search with query {}", typeName, queryString);
 
+    SearchCache cache = searchCache;
+    SearchCache.Key cacheKey = null;
+    if (cache != null) {
+      cacheKey = cache.key(normalize(queryString), queryMetaData.getOptions(), streaming);
+      SearchResult cached = cache.get(cacheKey);
+      if (cached != null) {
+        LOGGER.trace("Index {} search answered by the cache", typeName);
+        return cached;
+      }
+    }
+
     Search.Builder builder =
         new Search.Builder(queryString).addIndex(indexManager.getAliasName()).addType(typeName);
+    if (streaming) { // URL size overrides the query size, ES can't return more than max-results
+      builder.setParameter(SCROLL, SCROLL_KEEP_ALIVE);
+      builder.setParameter(SIZE, Math.min(pageSize, maxResults));
+    }
 
     io.searchbox.core.SearchResult searchResponse;
     try {
       if (!queryMetaData.loadSource()) pkIncludePattern.forEach(builder::addSourceIncludePattern);
-      Search searchRequest = builder.build();
-      searchResponse = execute(searchRequest).waitForSuccess();
+      Search searchRequest = new UnparsedSearch(builder);
+      searchResponse = execute(searchRequest, readTimeout).waitForSuccess();
     } catch (CassandraException e) {
       throw new InvalidRequestException(e.getMessage());
     }
 
     LOGGER.trace("Index {} search result: {}", typeName, searchResponse);
+    SearchResponseReader.Page page = readResponse(searchResponse, queryMetaData.loadSource());
+
+    // A page that is not full is the last one, the search can be cached
+    boolean complete =
+        !streaming || page.scrollId == null || page.hits < Math.min(pageSize, maxResults);
+    if (complete) {
+      if (page.scrollId != null) {
+        new ScrollPages(page.scrollId, queryMetaData.loadSource()).close();
+      }
+      if (cacheKey != null) {
+        cache.put(cacheKey, page.rows, page.metadata);
+      }
+      return new SearchResult(page.rows, page.metadata);
+    }
+    return new SearchResult(
+        page.rows,
+        page.metadata,
+        new ScrollPages(page.scrollId, queryMetaData.loadSource()));
+  }
 
-    int totalHits =
-        Math.min(
-            searchResponse.getTotal() == null ? 0 : searchResponse.getTotal(),
-            maxResults); // D38117
-    final List<SearchResultRow> idList = new ArrayList<>(totalHits);
+  /** @return the search request without insignificant spaces, unchanged if it is not JSON */
+  @Nonnull
+  private String normalize(@Nonnull String request) {
+    try {
+      return mapper.readTree(request).toString();
+    } catch (IOException e) {
+      return request;
+    }
+  }
 
-    JsonElement hits = JsonUtils.getJsonObject(searchResponse, ES_HITS).get(ES_HITS);
-    if (hits != null) {
-      List<String> primaryKeys;
+  /**
+   * Add a filter on the token of the documents so that ES skips other token ranges. Documents
+   * indexed without their token match the filter, hits must still be filtered by token.
+   *
+   * @param query a JSON search request
+   * @param min inclusive, null if unbounded
+   * @param max inclusive, null if unbounded
+   * @return the search request with its query filtered, unchanged if it is not a JSON object
+   */
+  @Nonnull
+  static String withTokenRange(
+      @Nonnull ObjectMapper mapper,
+      @Nonnull String query,
+      @Nullable Long min,
+      @Nullable Long max) {
+    JsonNode search;
+    try {
+      search = mapper.readTree(query);
+    } catch (IOException e) {
+      return query; // ES will report the error
+    }
+    if (!(search instanceof ObjectNode)) {
+      return query;
+    }
 
-      if (hasClusteringColumns) {
-        primaryKeys = new ArrayList<>(partitionKeysNames.size() + clusteringColumnsNames.size());
-        primaryKeys.addAll(partitionKeysNames);
-        primaryKeys.addAll(clusteringColumnsNames);
-      } else {
-        primaryKeys = partitionKeysNames;
-      }
+    ObjectNode filtered = mapper.createObjectNode();
+    ObjectNode bool = filtered.putObject("bool");
+    JsonNode original = search.get("query");
+    if (original == null) {
+      bool.putObject("must").putObject("match_all");
+    } else {
+      bool.put("must", original);
+    }
 
-      int pkSize = primaryKeys.size();
+    ObjectNode tokenFilter = bool.putObject("filter").putObject("bool");
+    tokenFilter.put("minimum_should_match", 1);
+    ArrayNode should = tokenFilter.putArray("should");
+    ObjectNode bounds = should.addObject().putObject("range").putObject(TOKEN_FIELD);
+    if (min != null) {
+      bounds.put("gte", min);
+    }
+    if (max != null) {
+      bounds.put("lte", max);
+    }
+    should // documents indexed before the token was stored
+        .addObject()
+        .putObject("bool")
+        .putObject("must_not")
+        .putObject("exists")
+        .put("field", TOKEN_FIELD);
+    ((ObjectNode) search).put("query", filtered);
+    return search.toString();
+  }
 
-      hits.getAsJsonArray()
-          .forEach(
-              result -> {
-                String[] primaryKey = new String[pkSize];
+  @Nonnull
+  private SearchResponseReader.Page readResponse(@Nonnull JestResult response, boolean loadSource) {
+    try {
+      return responseReader.read(response.getJsonString(), loadSource);
+    } catch (JsonParseException | IllegalStateException | UnsupportedOperationException e) {
+      LOGGER.error("Index {} invalid search response {}", typeName, response.getJsonString(), e);
+      throw new InvalidRequestException("Invalid Elasticsearch search response: " + e.getMessage());
+    }
+  }
 
-                int keyNb = 0;
+  /** Next pages of a streaming search, read with the ES scroll API */
+  private class ScrollPages implements SearchResult.Pages {
+    private final boolean loadSource;
+    private String scrollId; // null when there are no more pages
 
-                for (String keyName : primaryKeys) {
-                  String value = JsonUtils.getString(result, ES_SOURCE, keyName);
+    ScrollPages(@Nonnull String scrollId, boolean loadSource) {
+      this.scrollId = scrollId;
+      this.loadSource = loadSource;
+    }
 
-                  if (value == null) {
-                    LOGGER.warn(
-                        "Missing pk {} from ES results, skipping hit:{}",
-                        keyName,
-                        JsonUtils.getString(result, ES_ID));
-                    continue;
-                  } else {
-                    primaryKey[keyNb] = value;
-                  }
-                  keyNb++;
-                }
+    @Override
+    @Nonnull
+    public List<SearchResultRow> next() {
+      List<SearchResultRow> results = new ArrayList<>();
+      while (scrollId != null && results.isEmpty()) { // unless all hits of a page were skipped
+        SearchScroll.Builder request = new SearchScroll.Builder(scrollId, SCROLL_KEEP_ALIVE);
+        JestResult response;
+        try {
+          response = execute(new UnparsedSearchScroll(request), readTimeout).waitForSuccess();
+        } catch (CassandraException e) {
+          close();
+          throw new InvalidRequestException(e.getMessage());
+        }
 
-                if (keyNb == pkSize) { // Will only be false if we skipped a hit, see above warning
-                  idList.add(new SearchResultRow(primaryKey, result.getAsJsonObject()));
-                }
-              });
+        SearchResponseReader.Page page = readResponse(response, loadSource);
+        if (page.scrollId != null) {
+          scrollId = page.scrollId;
+        }
+        if (page.hits == 0) {
+          close(); // all hits were read
+        } else {
+          results.addAll(page.rows);
+        }
+      }
+      return results;
     }
 
-    // Remove the content of {"hits":{"hits": (big values) } }
-    JsonObject metadata = JsonUtils.filterPath(searchResponse.getJsonObject(), ES_HITS, ES_HITS);
-    return new SearchResult(idList, metadata);
+    @Override
+    public void close() {
+      if (scrollId != null) {
+        LOGGER.trace("Index {} clearing scroll {}", typeName, scrollId);
+        execute(new ClearScroll.Builder().addScrollId(scrollId).build()); // ES expires it anyway
+        scrollId = null;
+      }
+    }
   }
 
   private String extractQuery(String query) {
@@ -841,7 +1433,7 @@ public class ElasticIndex implements IndexInterface {
     try {
       Validate.Builder validateBuilder = new Validate.Builder(formattedQuery);
       validateBuilder.setParameter(EXPLAIN, String.valueOf(true));
-      JestResult res = execute(validateBuilder.build()).waitForResult();
+      JestResult res = execute(validateBuilder.build(), readTimeout).waitForResult();
       if (!res.isSucceeded()) {
         LOGGER.info("Query {} is invalid", formattedQuery);
         throw new InvalidRequestException(res.getErrorMessage());
@@ -863,6 +1455,7 @@ public class ElasticIndex implements IndexInterface {
   public void settingsUpdated() {
     indexManager.checkForUpdate();
     setupIndex(indexManager.getCurrentName());
+    invalidateSearchCache();
   }
 
   @Override
@@ -870,9 +1463,128 @@ public class ElasticIndex implements IndexInterface {
     return newIndex.getAndSet(false);
   }
 
+  /**
+   * Document writes go through the bulk writer when there is one. While the circuit breaker is
+   * open they are queued without being sent, or fail if there is no queue.<br>
+   * Writes that failed and were queued for replay are completed with an accepted result.
+   *
+   * @param limiter reserves room for the write until it is acknowledged, can be null
+   * @param queue failed writes are queued there, can be null
+   * @param deferred the write to queue, null if queue is null
+   * @throws org.apache.cassandra.exceptions.OverloadedException if too many writes are in flight
+   */
+  @Nonnull
+  private ResponseHandler<DocumentResult> write(
+      BulkableAction<DocumentResult> request,
+      int payloadSize,
+      @Nullable BulkWriter writer,
+      @Nullable InFlightLimiter limiter,
+      @Nullable WriteQueueReplayer queue,
+      @Nullable DeferredWrite deferred) {
+    CircuitBreaker breaker = circuitBreaker;
+    if (breaker != null && !breaker.allowRequest()) {
+      ResponseHandler<DocumentResult> handler = new ResponseHandler<>(typeName, request);
+      if (queue != null && deferred != null && queue.defer(deferred, null)) {
+        handler.completed(deferredResult());
+      } else {
+        handler.rejected(circuitOpen());
+      }
+      return handler;
+    }
+
+    int permits = limiter == null ? 0 : limiter.acquire(payloadSize);
+    long start = System.nanoTime();
+    ResponseHandler<DocumentResult> handler;
+    try {
+      handler = writer == null ? send(request, writeTimeout) : writer.add(request, payloadSize);
+    } catch (RuntimeException e) {
+      if (limiter != null) {
+        limiter.release(permits);
+      }
+      throw e;
+    }
+
+    if (limiter != null) {
+      handler.toFuture().whenComplete((result, error) -> limiter.release(permits));
+    }
+    if (breaker != null) {
+      handler.toFuture().whenComplete((result, error) -> breaker.record(result, error, start));
+    }
+    if (queue != null && deferred != null) { // replay it if it fails and may succeed later
+      ResponseHandler<DocumentResult> outcome =
+          new ResponseHandler<>(typeName, request, writeTimeout);
+      handler
+          .toFuture()
+          .whenComplete(
+              (result, error) -> {
+                if (queue.defer(deferred, result)) {
+                  outcome.completed(deferredResult());
+                } else if (result != null) {
+                  outcome.completed(result);
+                } else {
+                  outcome.rejected(asException(error));
+                }
+              });
+      return outcome;
+    }
+    return handler;
+  }
+
+  /** @return the failure of a composed step, without its CompletionException wrapper */
+  @Nonnull
+  private static Exception asException(@Nonnull Throwable error) {
+    Throwable cause =
+        error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    return cause instanceof Exception ? (Exception) cause : new RuntimeException(cause);
+  }
+
+  /** @return the accepted result of a write queued for replay or superseded by a delete */
+  @Nonnull
+  private static DocumentResult deferredResult() {
+    DocumentResult result = new DocumentResult(GSON);
+    result.setResponseCode(HTTP_ACCEPTED);
+    result.setSucceeded(true);
+    return result;
+  }
+
+  @Nonnull
+  private EsRequestExecutionException circuitOpen() {
+    return new EsRequestExecutionException(
+        ExceptionCode.SERVER_ERROR,
+        "ES circuit breaker of " + indexManager.getAliasName() + "/" + typeName + " is open");
+  }
+
   @Nonnull
   private <T extends JestResult> ResponseHandler<T> execute(Action<T> request) {
-    ResponseHandler<T> handler = new ResponseHandler<>(typeName, request);
+    return execute(request, requestTimeout);
+  }
+
+  /**
+   * Send a request, unless the circuit breaker is open
+   *
+   * @param timeoutMs deadline of the response, waits give up after it
+   */
+  @Nonnull
+  private <T extends JestResult> ResponseHandler<T> execute(Action<T> request, long timeoutMs) {
+    CircuitBreaker breaker = circuitBreaker;
+    if (breaker == null) {
+      return send(request, timeoutMs);
+    } else if (!breaker.allowRequest()) {
+      ResponseHandler<T> handler = new ResponseHandler<>(typeName, request);
+      handler.rejected(circuitOpen());
+      return handler;
+    }
+
+    long start = System.nanoTime();
+    ResponseHandler<T> handler = send(request, timeoutMs);
+    handler.toFuture().whenComplete((result, error) -> breaker.record(result, error, start));
+    return handler;
+  }
+
+  /** Send a request without going through the circuit breaker */
+  @Nonnull
+  private <T extends JestResult> ResponseHandler<T> send(Action<T> request, long timeoutMs) {
+    ResponseHandler<T> handler = new ResponseHandler<>(typeName, request, timeoutMs);
     client.executeAsync(request, handler);
     return handler;
   }
@@ -886,8 +1598,14 @@ public class ElasticIndex implements IndexInterface {
           indexName,
           typeName);
       indexManager.stop();
+      stopCoalescer();
+      stopBulkWriter();
+      stopWriteQueue();
+      stopCircuitBreaker();
+      metrics.unregister();
 
       JestResult res = execute(new Delete.Builder("").index(indexName).build()).waitForResult();
+      invalidateSearchCache();
       return res.isSucceeded();
     } else {
       return truncate();
@@ -899,8 +1617,11 @@ public class ElasticIndex implements IndexInterface {
     String aliasName = indexManager.getAliasName();
     LOGGER.warn("Index {}/{} is being truncated, deleting documents", aliasName, typeName);
     JestResult res =
-        execute(new Delete.Builder(MATCH_ALL).index(aliasName).type(typeName).build())
+        execute(
+                new Delete.Builder(MATCH_ALL).index(aliasName).type(typeName).build(),
+                truncateTimeout)
             .waitForResult();
+    invalidateSearchCache();
     return res.isSucceeded();
   }
 
@@ -914,10 +1635,11 @@ public class ElasticIndex implements IndexInterface {
             .addIndex(aliasName)
             .addType(typeName)
             .build();
-    JestResult res = execute(deleteQuery).waitForSuccess();
+    JestResult res = execute(deleteQuery, truncateTimeout).waitForSuccess();
 
     Long deleted = JsonUtils.getLong(res.getJsonObject(), "deleted");
     if (deleted != null && deleted > 0) {
+      invalidateSearchCache();
       LOGGER.debug(
           "Index {} deleted {} documents where _cassandraTtl < {}",
           indexManager.getAliasName(),
@@ -926,6 +1648,57 @@ public class ElasticIndex implements IndexInterface {
     }
   }
 
+  @Override
+  public void deleteTokenRanges(@Nonnull List<Range<Token>> ranges) {
+    if (!ranges.isEmpty() && CStarUtils.numericToken(ranges.get(0).left) == null) {
+      LOGGER.warn(
+          "Index {} can't delete documents by token, rebuild it to drop lost deletes", typeName);
+      return;
+    }
+
+    String aliasName = indexManager.getAliasName();
+    long deleted = 0;
+    for (int from = 0; from < ranges.size(); from += MAX_DELETED_RANGES) {
+      List<Range<Token>> batch =
+          ranges.subList(from, Math.min(ranges.size(), from + MAX_DELETED_RANGES));
+      DeleteByQuery deleteQuery =
+          new DeleteByQuery.Builder(tokenRangesQuery(mapper, batch))
+              .addIndex(aliasName)
+              .addType(typeName)
+              .build();
+      JestResult res = execute(deleteQuery, truncateTimeout).waitForSuccess();
+      Long batchDeleted = JsonUtils.getLong(res.getJsonObject(), "deleted");
+      deleted += batchDeleted == null ? 0 : batchDeleted;
+    }
+    invalidateSearchCache();
+    LOGGER.info(
+        "Index {} deleted {} documents of {} token ranges to repair",
+        aliasName,
+        deleted,
+        ranges.size());
+  }
+
+  /** @return a delete by query of the documents of the ranges, tokens must be numeric */
+  @Nonnull
+  static String tokenRangesQuery(
+      @Nonnull ObjectMapper mapper, @Nonnull List<Range<Token>> ranges) {
+    ObjectNode request = mapper.createObjectNode();
+    request.put("conflicts", "proceed"); // documents written meanwhile are kept
+    ObjectNode bool = request.putObject("query").putObject("bool");
+    bool.put("minimum_should_match", 1);
+    ArrayNode should = bool.putArray("should");
+    for (Range<Token> range : ranges) {
+      ObjectNode bounds = should.addObject().putObject("range").putObject(TOKEN_FIELD);
+      if (!range.left.isMinimum()) {
+        bounds.put("gt", CStarUtils.numericToken(range.left));
+      }
+      if (!range.right.isMinimum()) {
+        bounds.put("lte", CStarUtils.numericToken(range.right));
+      }
+    }
+    return request.toString();
+  }
+
   @Override
   public void purgeEmptyIndexes() {
     String aliasName = indexManager.getAliasName();
@@ -954,7 +1727,11 @@ public class ElasticIndex implements IndexInterface {
   @Override
   public void updateIndexConfigOptions() {
     ttlShift = indexConfig.getTtlShift();
-    isConcurrentLock = indexConfig.isConcurrentLock();
+    setupLocks();
+    setupCoalescer();
+    setupInFlightLimiter();
+    setupCircuitBreaker();
+    setupSearchCache();
     jsonSchemaFields = indexConfig.getJsonSchemaFields();
     jsonFlatSerializedFields = indexConfig.getJsonFlatSerializedFields();
     jsonSerializedFields = indexConfig.getJsonSerializedFields();
@@ -966,6 +1743,218 @@ public class ElasticIndex implements IndexInterface {
     usePipeline = StringUtils.isNotBlank(indexConfig.getPipeline(typeName));
     httpPort = indexConfig.getHttpPort();
     indexManager.updateOptions();
+
+    if (client != null) { // null when called from the constructor, bulk writer is setup later
+      setupBulkWriter();
+      setupWriteQueue();
+    }
+  }
+
+  /**
+   * The lock table is created once and never replaced, a writer may still hold a lock of a previous
+   * table while new writers lock the same documents in the new one. A new stripe count is used
+   * after a restart.
+   */
+  private void setupLocks() {
+    int stripes = indexConfig.getConcurrentLockStripes();
+    if (lockTable == null) {
+      lockTable = new StripedLock(stripes, metrics);
+    } else if (lockTable.size() != StripedLock.size(stripes)) {
+      LOGGER.warn(
+          "Index {} keeps {} lock stripes, concurrent-lock-stripes={} is used after a restart",
+          typeName,
+          lockTable.size(),
+          stripes);
+    }
+    locks = indexConfig.isConcurrentLock() ? lockTable : null;
+  }
+
+  /** Limiter is only replaced if its bounds changed, writes in flight release the old one */
+  private void setupInFlightLimiter() {
+    int maxWrites = indexConfig.getMaxInFlightWrites();
+    int maxBytes = indexConfig.getMaxInFlightBytes();
+    IndexConfig.InFlightPolicy policy = indexConfig.getInFlightPolicy();
+    if (maxWrites <= 0) {
+      inFlightLimiter = null;
+    } else if (inFlightLimiter == null || !inFlightLimiter.isSame(maxWrites, maxBytes, policy)) {
+      inFlightLimiter =
+          new InFlightLimiter(
+              maxWrites, maxBytes, policy, DatabaseDescriptor.getWriteRpcTimeout(), metrics);
+    }
+  }
+
+  /** Breaker is only replaced if its settings changed, a new breaker starts closed */
+  private synchronized void setupCircuitBreaker() {
+    int failureRate = indexConfig.getCircuitBreakerFailureRate();
+    int slowCallMs = indexConfig.getCircuitBreakerSlowCallMs();
+    int minRequests = indexConfig.getCircuitBreakerMinRequests();
+    int probeMs = indexConfig.getCircuitBreakerProbeMs();
+    if (!indexConfig.isCircuitBreaker()) {
+      stopCircuitBreaker();
+    } else if (circuitBreaker == null
+        || !circuitBreaker.isSame(failureRate, slowCallMs, minRequests, probeMs)) {
+      String name = indexManager.getAliasName() + "/" + typeName;
+      CircuitBreaker previous = circuitBreaker;
+      circuitBreaker =
+          new CircuitBreaker(
+              name,
+              failureRate,
+              slowCallMs,
+              minRequests,
+              probeMs,
+              () -> send(new Health.Builder().build(), probeMs).toFuture());
+      EsJmxBridge.registerCircuitBreaker(name, circuitBreaker);
+      if (previous != null) {
+        previous.close();
+      }
+    }
+  }
+
+  private synchronized void stopCircuitBreaker() {
+    CircuitBreaker previous = circuitBreaker;
+    circuitBreaker = null;
+    if (previous != null) {
+      EsJmxBridge.unregisterCircuitBreaker(indexManager.getAliasName() + "/" + typeName);
+      previous.close();
+    }
+  }
+
+  /** Cache is only replaced if its settings changed, a new cache starts empty */
+  private synchronized void setupSearchCache() {
+    int maxBytes = indexConfig.getSearchCacheBytes();
+    int ttlMs = indexConfig.getSearchCacheTtlMs();
+    if (maxBytes <= 0 || ttlMs <= 0) {
+      searchCache = null;
+      metrics.setSearchCacheBytes(() -> 0);
+    } else if (searchCache == null || !searchCache.isSame(maxBytes, ttlMs)) {
+      SearchCache cache = new SearchCache(maxBytes, ttlMs, metrics);
+      searchCache = cache;
+      metrics.setSearchCacheBytes(cache::bytes);
+    }
+  }
+
+  /** Searches sent after the index content changed through this node are not taken from cache */
+  private void invalidateSearchCache() {
+    SearchCache cache = searchCache;
+    if (cache != null) {
+      cache.invalidate();
+    }
+  }
+
+  /** Coalescer is only replaced if its window changed, pending documents of the old one are sent */
+  private void setupCoalescer() {
+    int window = indexConfig.getCoalesceWindow();
+    if (window <= 0) {
+      stopCoalescer();
+    } else if (coalescer == null || window != coalesceWindow) {
+      WriteCoalescer previous = coalescer;
+      coalescer = new WriteCoalescer(typeName, window, () -> inFlightLimiter, this::reserved);
+      if (previous != null) {
+        previous.close();
+      }
+    }
+    coalesceWindow = window;
+  }
+
+  private void stopCoalescer() {
+    WriteCoalescer previous = coalescer;
+    coalescer = null;
+    if (previous != null) {
+      previous.close();
+    }
+  }
+
+  /** (Re)create the bulk writer with current options, pending actions of the old one are sent */
+  private void setupBulkWriter() {
+    BulkWriter previous = bulkWriter;
+    bulkWriter =
+        indexConfig.isBulkWrite()
+            ? new BulkWriter(
+                typeName,
+                client,
+                usePipeline ? typeName : null,
+                indexConfig.getBulkMaxActions(),
+                indexConfig.getBulkMaxBytes(),
+                indexConfig.getBulkLinger(),
+                writeTimeout)
+            : null;
+    if (previous != null) {
+      previous.close();
+    }
+  }
+
+  private void stopBulkWriter() {
+    BulkWriter previous = bulkWriter;
+    bulkWriter = null;
+    if (previous != null) {
+      previous.close();
+    }
+  }
+
+  /**
+   * Start the write queue if it is enabled, it is only restarted when the pipeline changed since
+   * its segments can't be opened twice. Writes queued by a previous run are replayed.
+   */
+  private synchronized void setupWriteQueue() {
+    WriteQueueReplayer previous = writeQueue;
+    if (!indexConfig.isWriteQueue()) {
+      stopWriteQueue();
+      return;
+    } else if (previous != null && usePipeline == writeQueuePipeline) {
+      return;
+    }
+
+    writeQueue = null;
+    if (previous != null) {
+      previous.close();
+    }
+    File dir =
+        new File(
+            DatabaseDescriptor.getSavedCachesLocation(),
+            WRITE_QUEUE_DIR + File.separator + indexManager.getAliasName() + "-" + typeName);
+    try {
+      writeQueue =
+          new WriteQueueReplayer(
+              typeName,
+              dir,
+              indexConfig.getWriteQueueMaxBytes(),
+              client,
+              usePipeline ? typeName : null,
+              indexConfig.getBulkMaxActions(),
+              new WriteQueueReplayer.Reindexer() {
+                @Override
+                public void clear(@Nonnull List<ByteBuffer> keys) throws IOException {
+                  ElasticIndex.this.clear(keys);
+                }
+
+                @Nonnull
+                @Override
+                public List<ResponseHandler<DocumentResult>> reindex(
+                    @Nonnull ByteBuffer key, @Nonnull String docId, @Nonnull BulkWriter writer)
+                    throws IOException {
+                  return ElasticIndex.this.reindex(key, docId, writer);
+                }
+
+                @Override
+                public void dropped(@Nonnull ByteBuffer key, boolean isDelete) {
+                  partitionReader.unreadable(key, isDelete);
+                }
+              },
+              writeTimeout,
+              metrics);
+      writeQueuePipeline = usePipeline;
+    } catch (IOException e) {
+      LOGGER.error(
+          "Can't open the write queue of {} in {}, failed writes are lost", typeName, dir, e);
+    }
+  }
+
+  private synchronized void stopWriteQueue() {
+    WriteQueueReplayer previous = writeQueue;
+    writeQueue = null;
+    if (previous != null) {
+      previous.close();
+    }
   }
 
   @Override
@@ -989,11 +1978,15 @@ public class ElasticIndex implements IndexInterface {
     LOGGER.info("Index {} deletion {}", indexName, success ? "successful" : "failed");
   }
 
-  private void putAlias(String indexName, String alias) {
+  @Nonnull
+  private CompletableFuture<Void> putAlias(String indexName, String alias) {
     LOGGER.warn("Creating index alias '{}'", indexManager.getAliasName());
     AliasMapping aliases = new AddAliasMapping.Builder(indexName, alias).build();
-    JestResult addAliasResult = execute(new ModifyAliases.Builder(aliases).build()).waitForResult();
-    LOGGER.warn("Index alias creation result is: {}", addAliasResult.isSucceeded());
+    return execute(new ModifyAliases.Builder(aliases).build())
+        .toFuture()
+        .thenAccept(
+            addAliasResult ->
+                LOGGER.warn("Index alias creation result is: {}", addAliasResult.isSucceeded()));
   }
 
   private String json(RowFilter.Expression expression) {
@@ -6,12 +6,16 @@
  */
 package com.ericsson.godzilla.cassandra.index;
 
+import org.apache.cassandra.db.DecoratedKey;
+import org.apache.cassandra.dht.Range;
+import org.apache.cassandra.dht.Token;
 import org.apache.cassandra.exceptions.InvalidRequestException;
 import org.apache.cassandra.utils.Pair;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import static java.util.Collections.emptyList;
 
@@ -30,15 +34,36 @@ public class EsDummyIndex implements IndexInterface {
     return new SearchResult(emptyList(), null);
   }
 
+  @Nonnull
   @Override
-  public void index(
+  public CompletableFuture<Void> index(
       @Nonnull List<Pair<String, String>> partitionKeys,
+      @Nonnull DecoratedKey decoratedKey,
       @Nonnull List<CellElement> elements,
       long expirationTime,
-      boolean isInsert) {}
+      boolean isInsert) {
+    return CompletableFuture.completedFuture(null);
+  }
+
+  @Override
+  public void indexRebuild(
+      @Nonnull List<Pair<String, String>> partitionKeys,
+      @Nonnull DecoratedKey decoratedKey,
+      @Nonnull List<CellElement> elements,
+      long expirationTime) {}
+
+  @Override
+  public void flushRebuild() {}
+
+  @Nonnull
+  @Override
+  public CompletableFuture<Void> delete(
+      @Nonnull List<Pair<String, String>> partitionKeys, @Nonnull DecoratedKey decoratedKey) {
+    return CompletableFuture.completedFuture(null);
+  }
 
   @Override
-  public void delete(@Nonnull List<Pair<String, String>> partitionKeys) {}
+  public void deleteTokenRanges(@Nonnull List<Range<Token>> ranges) {}
 
   @Nullable
   @Override
@@ -60,7 +85,7 @@ public class EsDummyIndex implements IndexInterface {
 
   @Nonnull
   @Override
-  public SearchResult search(@Nonnull QueryMetaData queryMetaData) {
+  public SearchResult search(@Nonnull QueryMetaData queryMetaData, int pageSize) {
     return new SearchResult(emptyList(), null);
   }
 
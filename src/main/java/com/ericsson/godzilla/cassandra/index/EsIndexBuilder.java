@@ -6,92 +6,257 @@
  */
 package com.ericsson.godzilla.cassandra.index;
 
+import com.ericsson.godzilla.cassandra.index.RebuildCheckpoint.Position;
 import com.google.common.base.Stopwatch;
+import org.apache.cassandra.config.DatabaseDescriptor;
 import org.apache.cassandra.db.DecoratedKey;
 import org.apache.cassandra.db.compaction.CompactionInfo;
 import org.apache.cassandra.db.compaction.CompactionInterruptedException;
 import org.apache.cassandra.db.compaction.OperationType;
 import org.apache.cassandra.db.rows.Row;
+import org.apache.cassandra.db.rows.UnfilteredRowIterator;
+import org.apache.cassandra.dht.IPartitioner;
+import org.apache.cassandra.dht.Range;
+import org.apache.cassandra.dht.Token;
 import org.apache.cassandra.index.SecondaryIndexBuilder;
+import org.apache.cassandra.io.sstable.ISSTableScanner;
 import org.apache.cassandra.io.sstable.format.SSTableReader;
+import org.apache.cassandra.service.StorageService;
 import org.apache.cassandra.utils.FBUtilities;
 import org.apache.cassandra.utils.UUIDGen;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-/** Index building task that reads all live SSTables and index the content */
+/**
+ * Index building task that reads all live SSTables and index the content.<br>
+ * SSTables are split in token ranges that are read in parallel by a pool of workers, documents are
+ * sent in bulks. Progress is periodically saved in a checkpoint so that a build interrupted by a
+ * restart can resume.<br>
+ * A repair only reads the dirty token ranges of the SSTables that may hold the lost writes, see
+ * repair(). Local ranges with lost deletes are cleared in ES and read from all SSTables.
+ */
 public class EsIndexBuilder extends SecondaryIndexBuilder {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(EsIndexBuilder.class);
+  private static final int SPLITS_PER_THREAD = 4; // so that workers finishing early get more work
+  private static final long STOP_TIMEOUT = 60; // seconds
 
   private final UUID compactionId = UUIDGen.getTimeUUID();
   private final EsSecondaryIndex index;
-  private final Collection<SSTableReader> ssTables;
-  private final long total;
-  private long processed = 0;
+  // SSTables of a repair are chosen when it starts, see prepareRepair()
+  private Collection<SSTableReader> ssTables;
+  private Collection<SSTableReader> olderSSTables = Collections.emptyList();
+  private List<Range<Token>> deleted = Collections.emptyList(); // local lost deletes ranges
+  private volatile long total;
+  private final LongAdder processed = new LongAdder();
+  private final RebuildCheckpoint checkpoint;
+  private final boolean resume;
+  @Nullable private final DirtyRanges dirtyRanges; // null if this is not a repair
+  @Nullable private final DirtyRanges.Snapshot repaired;
+  private volatile boolean flushFailed; // documents were not sent, positions can't be saved
+  // Workers hold the read lock while indexing a partition, checkpoints take the write lock
+  private final ReadWriteLock pause = new ReentrantReadWriteLock();
 
+  /** Build all live SSTables, resuming from the checkpoint of an interrupted build if any */
   EsIndexBuilder(EsSecondaryIndex index) {
-    this(index, index.baseCfs.getLiveSSTables());
+    this(index, index.baseCfs.getLiveSSTables(), true);
+  }
+
+  /**
+   * @param ssTables to read
+   * @param resume true to resume from the checkpoint, false to drop it and build from scratch
+   */
+  EsIndexBuilder(EsSecondaryIndex index, Collection<SSTableReader> ssTables, boolean resume) {
+    this(index, ssTables, resume, null, null);
   }
 
-  EsIndexBuilder(EsSecondaryIndex index, Collection<SSTableReader> ssTables) {
+  private EsIndexBuilder(
+      EsSecondaryIndex index,
+      Collection<SSTableReader> ssTables,
+      boolean resume,
+      @Nullable DirtyRanges dirtyRanges,
+      @Nullable DirtyRanges.Snapshot repaired) {
     this.index = index;
     this.ssTables = ssTables;
+    this.checkpoint = RebuildCheckpoint.of(index);
+    this.resume = resume;
+    this.dirtyRanges = dirtyRanges;
+    this.repaired = repaired;
     this.total = ssTables.stream().mapToLong(SSTableReader::getTotalRows).sum();
   }
 
+  private static long estimateRows(
+      @Nonnull SSTableReader ssTable, @Nonnull List<Range<Token>> ranges) {
+    return ssTable.getTotalRows()
+        * ssTable.estimatedKeysForRanges(ranges)
+        / Math.max(1, ssTable.estimatedKeys());
+  }
+
+  /**
+   * Take the dirty ranges to repair them, the repair work is done by build()
+   *
+   * @return the repair, null if there is nothing to repair
+   */
+  @Nullable
+  static EsIndexBuilder repair(EsSecondaryIndex index, DirtyRanges dirtyRanges) {
+    DirtyRanges.Snapshot snapshot = dirtyRanges.take();
+    if (snapshot == null) {
+      return null;
+    }
+    return new EsIndexBuilder(index, Collections.emptyList(), false, dirtyRanges, snapshot);
+  }
+
+  /**
+   * Memtables are flushed first so that the lost writes are in SSTables, only SSTables with writes
+   * since the first lost write are read. Hinted writes can be older, by up to the max hint
+   * window.<br>
+   * Re-indexing live rows does not remove the documents of partitions whose delete was lost, the
+   * documents of ranges with lost deletes are deleted before the flush and all the SSTables are
+   * read over these ranges. Rows written meanwhile are in the flushed memtables, or indexed after
+   * the delete. Dirty buckets cover the whole ring, only their parts replicated by this node are
+   * deleted as the documents of the other parts can't be indexed again from its SSTables.
+   */
+  private void prepareRepair() {
+    Collection<Range<Token>> local =
+        StorageService.instance.getLocalRanges(index.baseCfs.keyspace.getName());
+    deleted = DirtyRanges.intersect(dirtyRanges.deleteRanges(repaired), local);
+    if (!deleted.isEmpty()) {
+      index.esIndex.deleteTokenRanges(deleted);
+    }
+    index.baseCfs.forceBlockingFlush();
+
+    long hintWindow = TimeUnit.MILLISECONDS.toMicros(DatabaseDescriptor.getMaxHintWindow());
+    long since = repaired.sinceMicros - hintWindow;
+    List<SSTableReader> recent = new ArrayList<>();
+    List<SSTableReader> older = new ArrayList<>();
+    for (SSTableReader ssTable : index.baseCfs.getLiveSSTables()) {
+      if (ssTable.getMaxTimestamp() >= since) {
+        recent.add(ssTable);
+      } else if (!deleted.isEmpty()) {
+        older.add(ssTable);
+      }
+    }
+    ssTables = recent;
+    olderSSTables = older;
+    List<Range<Token>> ranges = Range.normalize(dirtyRanges.ranges(repaired));
+    total =
+        recent.stream().mapToLong(t -> estimateRows(t, ranges)).sum()
+            + older.stream().mapToLong(t -> estimateRows(t, deleted)).sum();
+  }
+
   @Override
   public void build() {
     final Stopwatch stopwatch = Stopwatch.createStarted();
+    int threads = Math.max(1, index.indexConfig.getRebuildThreads());
+    int interval = index.indexConfig.getRebuildCheckpointInterval();
+    long checkpointInterval = // 0 disables checkpoints, the dirty ranges are those of a repair
+        interval > 0 && repaired == null ? TimeUnit.SECONDS.toMillis(interval) : Long.MAX_VALUE / 2;
+
+    Map<Integer, List<Position>> saved = Collections.emptyMap();
+    List<ScanTask> tasks;
+    if (repaired != null) {
+      try {
+        prepareRepair();
+      } catch (RuntimeException e) {
+        dirtyRanges.restore(repaired);
+        throw e;
+      }
+      tasks = repairTasks();
+    } else {
+      if (resume) {
+        saved = checkpoint.load();
+      } else {
+        checkpoint.delete();
+      }
+      tasks = split(threads, saved);
+    }
+
     LOGGER.info(
-        "{} build {} starting on {} ssTables with {} rows to index",
+        "{} build {} {} on {} ssTables with {} rows to index, {} tasks on {} threads",
         index.name,
         compactionId,
-        ssTables.size(),
-        total);
+        repaired != null
+            ? "repairing"
+            : saved.isEmpty() ? "starting" : "resuming from checkpoint",
+        ssTables.size() + olderSSTables.size(),
+        total,
+        tasks.size(),
+        threads);
 
-    if (index.indexConfig.isTruncateBeforeRebuild()) {
-      index.esIndex.truncate();
-    }
-
-    // For each of the SSTables, we get a partition scanner, for each partition we get its row and
-    // we index it
-    ssTables.forEach(
-        ssTableReader ->
-            ssTableReader
-                .getScanner()
-                .forEachRemaining(
-                    partition -> {
-                      partition.forEachRemaining(
-                          row -> {
-                            if (isStopRequested()) {
-                              LOGGER.warn(
-                                  "{} build {} stop requested {}/{} rows",
-                                  index.name,
-                                  compactionId,
-                                  processed,
-                                  total);
-                              throw new CompactionInterruptedException(getCompactionInfo());
-                            }
-
-                            DecoratedKey key = partition.partitionKey();
-                            if (row instanceof Row) { // not sure what else it could be
-                              index.index(key, (Row) row, null, FBUtilities.nowInSeconds());
-                            } else {
-                              LOGGER.warn(
-                                  "{} build {} skipping unsupported {} {}",
-                                  index.name,
-                                  compactionId,
-                                  row.getClass().getName(),
-                                  key);
-                            }
-                            processed++;
-                          });
-                    }));
+    if (repaired == null && saved.isEmpty() && index.indexConfig.isTruncateBeforeRebuild()) {
+      index.esIndex.truncate(); // but don't wipe what an interrupted build already indexed
+    }
+
+    AtomicInteger threadId = new AtomicInteger();
+    ExecutorService workers =
+        Executors.newFixedThreadPool(
+            threads,
+            r -> {
+              String name = "EsRebuild-" + index.name + "-" + threadId.incrementAndGet();
+              Thread thread = new Thread(r, name);
+              thread.setDaemon(true);
+              return thread;
+            });
+
+    try {
+      List<Future<?>> futures = new ArrayList<>(tasks.size());
+      for (ScanTask task : tasks) {
+        futures.add(workers.submit(task));
+      }
+      long nextCheckpoint = System.currentTimeMillis() + checkpointInterval;
+      for (Future<?> future : futures) {
+        while (!waitFor(future, nextCheckpoint - System.currentTimeMillis())) {
+          saveCheckpoint(tasks);
+          nextCheckpoint = System.currentTimeMillis() + checkpointInterval;
+        }
+      }
+    } catch (RuntimeException e) {
+      workers.shutdownNow(); // interrupts the other workers
+      try {
+        workers.awaitTermination(STOP_TIMEOUT, TimeUnit.SECONDS);
+        flushRebuild(); // don't leave documents of this build behind
+        if (repaired != null) {
+          dirtyRanges.restore(repaired);
+        } else {
+          saveCheckpoint(tasks);
+        }
+      } catch (RuntimeException | InterruptedException flushError) {
+        e.addSuppressed(flushError);
+      }
+      throw e;
+    }
+    workers.shutdown();
+    if (repaired == null) {
+      flushRebuild();
+      checkpoint.delete();
+    } else {
+      try {
+        flushRebuild();
+      } catch (RuntimeException e) {
+        dirtyRanges.restore(repaired);
+        throw e;
+      }
+    }
 
     LOGGER.info(
         "{} build {} completed in {} minutes for {} rows",
@@ -101,8 +266,216 @@ public class EsIndexBuilder extends SecondaryIndexBuilder {
         total);
   }
 
+  /** @return false if the task is still running after timeout ms */
+  private boolean waitFor(@Nonnull Future<?> future, long timeout) {
+    try {
+      future.get(Math.max(0, timeout), TimeUnit.MILLISECONDS);
+      return true;
+    } catch (TimeoutException e) {
+      return false;
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  /**
+   * Wait for the documents sent so far. A failure is sticky, the rebuild writer is gone once it
+   * reported its failures but positions past the documents not sent must never be saved.
+   */
+  private void flushRebuild() {
+    try {
+      index.esIndex.flushRebuild();
+    } catch (RuntimeException e) {
+      flushFailed = true;
+      throw e;
+    }
+  }
+
+  /**
+   * Documents of all partitions read so far are acknowledged before their positions are saved.
+   * Workers are paused meanwhile. Nothing is saved once documents failed to be sent, a resumed
+   * build starts again from the previous checkpoint. Documents rejected by ES are skipped.
+   */
+  private void saveCheckpoint(@Nonnull List<ScanTask> tasks) {
+    List<Position> positions = new ArrayList<>(tasks.size());
+    pause.writeLock().lock();
+    try {
+      flushRebuild();
+      if (flushFailed) {
+        LOGGER.warn(
+            "{} build {} failed to send documents, checkpoint not saved", index.name, compactionId);
+        return;
+      }
+      for (ScanTask task : tasks) {
+        positions.add(task.position);
+      }
+      checkpoint.save(positions);
+      LOGGER.debug(
+          "{} build {} checkpoint saved at {}/{} rows",
+          index.name,
+          compactionId,
+          processed.sum(),
+          total);
+    } catch (IOException e) {
+      LOGGER.warn("{} build {} can't save checkpoint", index.name, compactionId, e);
+    } finally {
+      pause.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Each SSTable is split in token ranges, in proportion of its share of the rows so that tasks
+   * have about the same size. A single range is used if the partitioner can't split.<br>
+   * SSTables of a resumed build keep their saved ranges, rows already indexed count as processed.
+   */
+  @Nonnull
+  private List<ScanTask> split(int threads, @Nonnull Map<Integer, List<Position>> saved) {
+    List<ScanTask> tasks = new ArrayList<>();
+    int maxSplits = threads * SPLITS_PER_THREAD;
+    long taskRows = Math.max(1, total / maxSplits);
+
+    for (SSTableReader ssTable : ssTables) {
+      List<Position> positions = saved.get(ssTable.descriptor.generation);
+      if (positions != null) {
+        for (Position position : positions) {
+          processed.add(estimateDoneRows(ssTable, position));
+          tasks.add(new ScanTask(ssTable, position));
+        }
+      } else {
+        int splits = (int) Math.min(maxSplits, Math.max(1, ssTable.getTotalRows() / taskRows));
+        for (Range<Token> range : splitRange(ssTable, splits)) {
+          tasks.add(new ScanTask(ssTable, new Position(ssTable.descriptor.generation, range)));
+        }
+      }
+    }
+    return tasks;
+  }
+
+  /** Each SSTable is read over the dirty ranges, older ones over the lost deletes ranges */
+  @Nonnull
+  private List<ScanTask> repairTasks() {
+    List<ScanTask> tasks = new ArrayList<>();
+    List<Range<Token>> ranges = dirtyRanges.ranges(repaired);
+    for (SSTableReader ssTable : ssTables) {
+      for (Range<Token> range : ranges) {
+        tasks.add(new ScanTask(ssTable, new Position(ssTable.descriptor.generation, range)));
+      }
+    }
+    for (SSTableReader ssTable : olderSSTables) {
+      for (Range<Token> range : deleted) {
+        tasks.add(new ScanTask(ssTable, new Position(ssTable.descriptor.generation, range)));
+      }
+    }
+    return tasks;
+  }
+
+  private static long estimateDoneRows(@Nonnull SSTableReader ssTable, @Nonnull Position position) {
+    Range<Token> done;
+    if (position.done) {
+      done = position.range;
+    } else if (position.last != null) {
+      done = new Range<>(position.range.left, position.last);
+    } else {
+      return 0;
+    }
+    long keys = ssTable.estimatedKeysForRanges(Range.normalize(Collections.singleton(done)));
+    return ssTable.getTotalRows() * keys / Math.max(1, ssTable.estimatedKeys());
+  }
+
+  @Nonnull
+  private static List<Range<Token>> splitRange(@Nonnull SSTableReader ssTable, int splits) {
+    IPartitioner partitioner = ssTable.getPartitioner();
+    Token min = partitioner.getMinimumToken();
+    Range<Token> all = new Range<>(min, min);
+    if (splits <= 1) {
+      return Collections.singletonList(all);
+    }
+
+    Token first = ssTable.first.getToken();
+    Token last = ssTable.last.getToken();
+    List<Range<Token>> ranges = new ArrayList<>(splits);
+    Token left = min;
+    try {
+      for (int i = 1; i < splits; i++) {
+        Token boundary = partitioner.split(first, last, (double) i / splits);
+        if (boundary.compareTo(left) > 0) {
+          ranges.add(new Range<>(left, boundary));
+          left = boundary;
+        }
+      }
+    } catch (UnsupportedOperationException e) { // some partitioners can't split
+      return Collections.singletonList(all);
+    }
+    ranges.add(new Range<>(left, min));
+    return ranges;
+  }
+
+  @Override
   public CompactionInfo getCompactionInfo() {
     return new CompactionInfo(
-        null, OperationType.INDEX_BUILD, processed, total, null, compactionId);
+        null, OperationType.INDEX_BUILD, processed.sum(), total, null, compactionId);
+  }
+
+  /** Index the partitions of one SSTable in one token range */
+  private class ScanTask implements Runnable {
+    private final SSTableReader ssTable;
+    private final Position position;
+
+    ScanTask(SSTableReader ssTable, Position position) {
+      this.ssTable = ssTable;
+      this.position = position;
+    }
+
+    @Override
+    public void run() {
+      Range<Token> range = position.remaining();
+      if (range == null) {
+        return; // done before a restart
+      }
+      LOGGER.debug("{} build {} scanning {} {}", index.name, compactionId, ssTable, range);
+
+      try (ISSTableScanner scanner =
+          ssTable.getScanner(Range.normalize(Collections.singleton(range)), null)) {
+        while (scanner.hasNext()) {
+          pause.readLock().lock();
+          try (UnfilteredRowIterator partition = scanner.next()) {
+            DecoratedKey key = partition.partitionKey();
+            partition.forEachRemaining(
+                row -> {
+                  if (isStopRequested() || Thread.currentThread().isInterrupted()) {
+                    LOGGER.warn(
+                        "{} build {} stop requested {}/{} rows",
+                        index.name,
+                        compactionId,
+                        processed.sum(),
+                        total);
+                    throw new CompactionInterruptedException(getCompactionInfo());
+                  }
+
+                  if (row instanceof Row) { // not sure what else it could be
+                    index.indexRebuild(key, (Row) row, FBUtilities.nowInSeconds());
+                  } else {
+                    LOGGER.warn(
+                        "{} build {} skipping unsupported {} {}",
+                        index.name,
+                        compactionId,
+                        row.getClass().getName(),
+                        key);
+                  }
+                  processed.increment();
+                });
+            position.last = key.getToken();
+          } finally {
+            pause.readLock().unlock();
+          }
+        }
+      }
+      position.done = true;
+    }
   }
 }
@@ -15,9 +15,12 @@ import org.apache.cassandra.cql3.statements.SelectStatement;
 import org.apache.cassandra.db.ColumnFamilyStore;
 import org.apache.cassandra.db.ConsistencyLevel;
 import org.apache.cassandra.db.Keyspace;
+import org.apache.cassandra.db.PartitionRangeReadCommand;
 import org.apache.cassandra.db.ReadQuery;
 import org.apache.cassandra.db.filter.RowFilter;
 import org.apache.cassandra.db.partitions.PartitionIterator;
+import org.apache.cassandra.db.partitions.UnfilteredPartitionIterator;
+import org.apache.cassandra.db.partitions.UnfilteredPartitionIterators;
 import org.apache.cassandra.exceptions.ExceptionCode;
 import org.apache.cassandra.exceptions.InvalidRequestException;
 import org.apache.cassandra.exceptions.RequestExecutionException;
@@ -237,19 +240,37 @@ public class EsQueryHandler implements QueryHandler {
     int limit = select.getLimit(options);
     int userPerPartitionLimit = select.getPerPartitionLimit(options);
     int page = options.getPageSize();
+    // Only one page is returned, ES hits are read by pages of that size until it is full
+    int rows = page > 0 ? Math.min(limit, page) : limit;
 
     // Take control of paging if there is paging and the query requires post processing
     ConsistencyLevel consistency = options.getConsistency();
     checkNotNull(consistency, "Invalid empty consistency level");
     consistency.validateForRead(select.keyspace());
 
-    ReadQuery query = select.getQuery(options, now, limit, userPerPartitionLimit, page);
+    ReadQuery query = select.getQuery(options, now, rows, userPerPartitionLimit, page);
 
     try (PartitionIterator data =
-        query.execute(consistency, state.getClientState(), queryStartNanoTime)) {
-      return (ResultMessage.Rows) processResults.invoke(select, data, options, now, page);
+        query instanceof PartitionRangeReadCommand && !EsSecondaryIndex.isCommand(queryString)
+            ? gather(index, (PartitionRangeReadCommand) query)
+            : query.execute(consistency, state.getClientState(), queryStartNanoTime)) {
+      return (ResultMessage.Rows) processResults.invoke(select, data, options, now, rows);
     } catch (IllegalAccessException | InvocationTargetException e) {
       throw new EsRequestExecutionException(ExceptionCode.INVALID, e.getMessage());
     }
   }
+
+  /**
+   * Run the ES query once on this coordinator for all token ranges, instead of once per range on
+   * the replicas of each range. Rows of the hits are then read from their replicas, in ES hits
+   * order, see StreamingPartitionIterator. Commands such as #repair# act on the state of each node,
+   * they keep the replica path.
+   */
+  private static PartitionIterator gather(
+      EsSecondaryIndex index, PartitionRangeReadCommand command) {
+    int now = command.nowInSec();
+    UnfilteredPartitionIterator hits =
+        command.limits().filter(index.search(command), now, command.selectsFullPartition());
+    return UnfilteredPartitionIterators.filter(hits, now);
+  }
 }
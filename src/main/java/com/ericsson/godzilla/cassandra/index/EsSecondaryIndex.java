@@ -7,26 +7,30 @@
 package com.ericsson.godzilla.cassandra.index;
 
 import com.ericsson.godzilla.cassandra.index.config.IndexConfig;
+import com.ericsson.godzilla.cassandra.index.config.IndexConfig.IndexerElection;
 import com.ericsson.godzilla.cassandra.index.config.IndexConfiguration;
 import com.ericsson.godzilla.cassandra.index.config.LogConfigurator;
 import com.ericsson.godzilla.cassandra.index.indexers.*;
 import com.google.common.base.Stopwatch;
-import com.google.common.base.Strings;
+import com.google.common.collect.Iterators;
 import com.google.gson.JsonObject;
 import org.apache.cassandra.config.CFMetaData;
 import org.apache.cassandra.config.ColumnDefinition;
 import org.apache.cassandra.cql3.Operator;
 import org.apache.cassandra.cql3.statements.IndexTarget;
 import org.apache.cassandra.db.*;
+import org.apache.cassandra.db.compaction.CompactionManager;
 import org.apache.cassandra.db.compaction.OperationType;
+import org.apache.cassandra.db.filter.DataLimits;
 import org.apache.cassandra.db.filter.RowFilter;
 import org.apache.cassandra.db.marshal.AbstractType;
 import org.apache.cassandra.db.marshal.UTF8Type;
 import org.apache.cassandra.db.partitions.PartitionIterator;
 import org.apache.cassandra.db.partitions.PartitionUpdate;
 import org.apache.cassandra.db.partitions.UnfilteredPartitionIterator;
-import org.apache.cassandra.db.rows.Cell;
 import org.apache.cassandra.db.rows.Row;
+import org.apache.cassandra.db.rows.RowIterator;
+import org.apache.cassandra.dht.AbstractBounds;
 import org.apache.cassandra.dht.Token;
 import org.apache.cassandra.exceptions.InvalidRequestException;
 import org.apache.cassandra.index.Index;
@@ -39,6 +43,7 @@ import org.apache.cassandra.service.MigrationManager;
 import org.apache.cassandra.service.StorageService;
 import org.apache.cassandra.tracing.Tracing;
 import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.cassandra.utils.FBUtilities;
 import org.apache.cassandra.utils.Pair;
 import org.apache.cassandra.utils.concurrent.OpOrder.Group;
 import org.slf4j.Logger;
@@ -47,9 +52,11 @@ import org.slf4j.LoggerFactory;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.SecureRandom;
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.function.BiFunction;
 
@@ -71,6 +78,7 @@ public class EsSecondaryIndex implements Index {
   private static final Logger LOGGER = LoggerFactory.getLogger(EsSecondaryIndex.class);
 
   private static final String UPDATE = "#update#";
+  private static final String REPAIR = "#repair#";
   private static final String GET_MAPPING = "#get_mapping#";
   private static final String PUT_MAPPING = "#put_mapping#";
   private static final String FAKE_ID = "FakeId";
@@ -83,18 +91,26 @@ public class EsSecondaryIndex implements Index {
   public final String name;
   final IndexConfig indexConfig;
   @Nonnull final IndexInterface esIndex;
+  @Nullable private final DirtyRanges dirtyRanges; // null in dummy mode
   private final SecureRandom random = new SecureRandom();
+  private final ExecutorService readAheadExecutor;
   private final boolean isDummyMode;
   private IndexMetadata indexMetadata;
   private List<String> partitionKeysNames;
   private List<String> clusteringColumnsNames;
   private boolean hasClusteringColumns;
   private ConsistencyLevel readConsistencyLevel;
+  private int readBatchSize;
+  private int readAhead;
+  private int readAheadBytes;
   private boolean skipLogReplay;
   private boolean skipNonLocalUpdates;
+  private IndexerElection indexerElection;
   private boolean discardNullValues;
   private boolean analyticMode;
   private boolean indexAvailableWhenBuilding;
+  private volatile DocumentPlan documentPlan;
+  private volatile PartitionKeyDecoder partitionKeyDecoder;
 
   public EsSecondaryIndex(ColumnFamilyStore sourceCfs, IndexMetadata indexMetadata)
       throws Exception {
@@ -109,6 +125,7 @@ public class EsSecondaryIndex implements Index {
       indexColumnName = unQuote(this.indexMetadata.options.get(IndexTarget.TARGET_OPTION_NAME));
       name = "EsSecondaryIndex [" + baseCfs.metadata.ksName + "." + this.indexMetadata.name + "]";
       indexConfig = new IndexConfiguration(name, indexMetadata.options);
+      readAheadExecutor = StreamingPartitionIterator.newReadAheadExecutor(baseCfs.name);
 
       LOGGER.info("Creating {} with options {}", name, indexConfig.getIndexOptions());
 
@@ -139,7 +156,22 @@ public class EsSecondaryIndex implements Index {
                   baseCfs.metadata.ksName,
                   baseCfs.name,
                   partitionKeysNames,
-                  clusteringColumnsNames);
+                  clusteringColumnsNames,
+                  new ElasticIndex.PartitionReader() {
+                    @Override
+                    public void read(
+                        @Nonnull ByteBuffer key, @Nonnull ElasticIndex.RowWriter rows)
+                        throws IOException {
+                      readPartition(key, rows);
+                    }
+
+                    @Override
+                    public void unreadable(@Nonnull ByteBuffer key, boolean isDelete) {
+                      if (dirtyRanges != null) { // repaired by the next #repair#
+                        dirtyRanges.mark(baseCfs.decorateKey(key).getToken(), isDelete);
+                      }
+                    }
+                  });
           index.init();
           LOGGER.warn("Initialized {} ", name);
         }
@@ -154,17 +186,25 @@ public class EsSecondaryIndex implements Index {
 
       isDummyMode = index instanceof EsDummyIndex;
       esIndex = index;
+      dirtyRanges = isDummyMode ? null : DirtyRanges.of(this);
       updateIndexConfigOptions();
     }
   }
 
   private void updateIndexConfigOptions() {
     readConsistencyLevel = indexConfig.getReadConsistencyLevel();
+    readBatchSize = indexConfig.getReadBatchSize();
+    readAhead = indexConfig.getReadAhead();
+    readAheadBytes = indexConfig.getReadAheadBytes();
     skipLogReplay = indexConfig.isSkipLogReplay();
     skipNonLocalUpdates = indexConfig.isSkipNonLocalUpdates();
+    indexerElection = indexConfig.getIndexerElection();
     discardNullValues = indexConfig.isDiscardNullValues();
     analyticMode = indexConfig.isAnalyticMode();
     indexAvailableWhenBuilding = indexConfig.isIndexAvailableWhenBuilding();
+    documentPlan = DocumentPlan.create(baseCfs.metadata, indexConfig);
+    partitionKeyDecoder =
+        new PartitionKeyDecoder(baseCfs.metadata, indexConfig.getPartitionKeyCacheSize());
     esIndex.updateIndexConfigOptions();
   }
 
@@ -176,40 +216,34 @@ public class EsSecondaryIndex implements Index {
    */
   public void index(
       @Nonnull DecoratedKey decoratedKey, @Nonnull Row newRow, @Nullable Row oldRow, int nowInSec) {
+    index(decoratedKey, newRow, oldRow, nowInSec, false);
+  }
+
+  /**
+   * Index a row read by a rebuild, see IndexInterface.indexRebuild()
+   *
+   * @param decoratedKey PK of the row
+   * @param row the row read from an SSTable
+   * @param nowInSec time of the rebuild
+   */
+  void indexRebuild(@Nonnull DecoratedKey decoratedKey, @Nonnull Row row, int nowInSec) {
+    index(decoratedKey, row, null, nowInSec, true);
+  }
+
+  private void index(
+      @Nonnull DecoratedKey decoratedKey,
+      @Nonnull Row newRow,
+      @Nullable Row oldRow,
+      int nowInSec,
+      boolean isRebuild) {
 
     String id = ByteBufferUtil.bytesToHex(decoratedKey.getKey());
     Tracing.trace("ESI decoding row {}", id); // This is CQL "tracing on" support
 
     try {
       List<Pair<String, String>> partitionKeys =
-          CStarUtils.getPartitionKeys(decoratedKey.getKey(), baseCfs.metadata);
-      List<CellElement> elements = new ArrayList<>();
-
-      for (Cell cell : newRow.cells()) {
-        if (cell.isLive(nowInSec) || !discardNullValues) { // optionally ignore null values
-
-          // Skip the cells with empty name (row marker) // looks like isEmpty() now (2.2?) returns
-          // false with empty string
-          String cellName = cell.column().name.toString();
-
-          if (!Strings.isNullOrEmpty(cellName)) { // Skip the cells with empty name (row marker)
-            CellElement element = new CellElement();
-            element.name = cellName;
-
-            if (hasClusteringColumns) {
-              element.clusteringKeys =
-                  CStarUtils.getClusteringKeys(newRow, baseCfs.metadata, clusteringColumnsNames);
-            }
-
-            if (CStarUtils.isCollection(cell)) {
-              element.collectionValue = CStarUtils.getCollectionElement(cell);
-            } else {
-              element.value = CStarUtils.cellValueToString(cell);
-            }
-            elements.add(element);
-          }
-        }
-      }
+          partitionKeyDecoder.decode(decoratedKey.getKey());
+      List<CellElement> elements = toElements(newRow, nowInSec);
 
       if (elements.isEmpty()) {
         Tracing.trace("ESI skip empty update {} done", id);
@@ -223,41 +257,124 @@ public class EsSecondaryIndex implements Index {
         }
 
         Tracing.trace("ESI writing {} to ES index", id);
-        esIndex.index(
-            partitionKeys,
-            elements,
-            newRow.primaryKeyLivenessInfo().localExpirationTime(),
-            oldRow == null);
+        long expirationTime = newRow.primaryKeyLivenessInfo().localExpirationTime();
+        if (isRebuild) {
+          esIndex.indexRebuild(partitionKeys, decoratedKey, elements, expirationTime);
+        } else {
+          esIndex
+              .index(partitionKeys, decoratedKey, elements, expirationTime, oldRow == null)
+              .whenComplete((done, error) -> markIfLost(decoratedKey, error, false));
+        }
         Tracing.trace("ESI index {} done", id);
       }
 
     } catch (Exception e) {
       LOGGER.error("{} can't index row {} {}", name, id, e);
       Tracing.trace("ESI error: can't index row {} {}", id, e.getMessage());
+      if (!isRebuild) { // rebuild failures fail the rebuild
+        markIfLost(decoratedKey, e, false);
+      }
 
       throw new RuntimeException(e);
     }
   }
 
+  /** @return the cells of a row to index, without the row marker */
+  @Nonnull
+  private List<CellElement> toElements(@Nonnull Row row, int nowInSec) throws IOException {
+    DocumentPlan plan = documentPlan;
+    List<CellElement> elements = plan.toElements(row, nowInSec, discardNullValues, true);
+    if (elements == null) { // column added after the plan was built
+      plan = documentPlan = DocumentPlan.create(baseCfs.metadata, indexConfig);
+      // a column still unknown is not in the table metadata anymore
+      elements = plan.toElements(row, nowInSec, discardNullValues, false);
+    }
+    return elements;
+  }
+
+  /**
+   * Read the live rows of a partition on this node, lost writes are replayed from them. Rows are
+   * written while the read holds the memtables, their cells are not copied.
+   */
+  private void readPartition(@Nonnull ByteBuffer key, @Nonnull ElasticIndex.RowWriter rows)
+      throws IOException {
+    PartitionKeyDecoder decoder = partitionKeyDecoder;
+    if (decoder == null || !StorageService.instance.isInitialized()) {
+      throw new IOException(name + " is not started yet");
+    }
+
+    DecoratedKey decoratedKey = baseCfs.decorateKey(key);
+    List<Pair<String, String>> partitionKeys = decoder.decode(key);
+    int nowInSec = FBUtilities.nowInSeconds();
+    SinglePartitionReadCommand command =
+        SinglePartitionReadCommand.fullPartitionRead(baseCfs.metadata, nowInSec, decoratedKey);
+    try (ReadExecutionController controller = command.executionController();
+        PartitionIterator partitions = command.executeInternal(controller)) {
+      while (partitions.hasNext()) {
+        try (RowIterator partition = partitions.next()) {
+          while (partition.hasNext()) {
+            Row row = partition.next();
+            List<CellElement> elements = toElements(row, nowInSec);
+            if (!elements.isEmpty()) {
+              long expirationTime = row.primaryKeyLivenessInfo().localExpirationTime();
+              rows.write(partitionKeys, decoratedKey, elements, expirationTime);
+            }
+          }
+        }
+      }
+    }
+  }
+
   public void delete(DecoratedKey decoratedKey) {
     String id = ByteBufferUtil.bytesToHex(decoratedKey.getKey());
 
     try {
       Token token = decoratedKey.getToken();
-      if (CStarUtils.isOwner(baseCfs, token)) {
+      if (CStarUtils.isOwner(baseCfs, token, indexerElection)) {
         LOGGER.trace("{} deleting {}", name, id);
       } else {
         LOGGER.trace("{} skipping {} because {} is not in our range", name, id, token);
         return;
       }
 
-      esIndex.delete(CStarUtils.getPartitionKeys(decoratedKey.getKey(), baseCfs.metadata));
+      esIndex
+          .delete(partitionKeyDecoder.decode(decoratedKey.getKey()), decoratedKey)
+          .whenComplete((done, error) -> markIfLost(decoratedKey, error, true));
     } catch (Exception e) {
       LOGGER.error("{} can't delete row {} {}", name, id, e);
+      markIfLost(decoratedKey, e, true);
       throw new RuntimeException(e);
     }
   }
 
+  /**
+   * Remember the token range of a lost write so that a repair re-indexes it, see #repair#
+   *
+   * @param isDelete true for a lost delete, the repair deletes the documents of the range first
+   */
+  private void markIfLost(
+      @Nonnull DecoratedKey decoratedKey, @Nullable Throwable error, boolean isDelete) {
+    if (error != null && dirtyRanges != null) {
+      dirtyRanges.mark(decoratedKey.getToken(), isDelete);
+    }
+  }
+
+  /** @return a build of the token ranges with lost writes, null if there is nothing to repair */
+  @Nullable
+  private EsIndexBuilder repairBuilder() {
+    return dirtyRanges == null ? null : EsIndexBuilder.repair(this, dirtyRanges);
+  }
+
+  /** Re-index the token ranges with lost writes in the background */
+  private void repair() {
+    EsIndexBuilder builder = repairBuilder();
+    if (builder == null) {
+      LOGGER.info("{} has no lost writes, nothing to repair", name);
+    } else {
+      CompactionManager.instance.submitIndexBuild(builder);
+    }
+  }
+
   boolean reloadSettings() {
     boolean changed = indexConfig.reload(indexMetadata.options);
     if (changed) {
@@ -276,7 +393,7 @@ public class EsSecondaryIndex implements Index {
     if (isDummyMode) {
       return null;
     }
-    return (cfs, indexes, ssTables) -> new EsIndexBuilder(EsSecondaryIndex.this, ssTables);
+    return (cfs, indexes, ssTables) -> new EsIndexBuilder(EsSecondaryIndex.this, ssTables, false);
   }
 
   @Override
@@ -284,9 +401,14 @@ public class EsSecondaryIndex implements Index {
       getInitializationTask() { // This is done when starting Cassandra or when creating an index
                                 // with CQL command
     return () -> {
-      if (esIndex
-          .isNewIndex()) { // FIXME will this rebuild all data since we only have ssTables for our
-                           // replicas?
+      boolean isNewIndex = esIndex.isNewIndex();
+      boolean isInterrupted = !isDummyMode && RebuildCheckpoint.of(this).exists();
+      if (isInterrupted) {
+        LOGGER.info("{} found the checkpoint of an interrupted rebuild, resuming", name);
+      }
+
+      // FIXME will this rebuild all data since we only have ssTables for our replicas?
+      if (isNewIndex || isInterrupted) {
         if (indexAvailableWhenBuilding) {
           LOGGER.info("{} marking index as built while rebuilding is in progress", name);
           baseCfs.indexManager.markIndexBuilt(indexMetadata.name);
@@ -299,6 +421,11 @@ public class EsSecondaryIndex implements Index {
       } else {
         LOGGER.debug("{} already exists, nothing to rebuild", name);
         baseCfs.indexManager.markIndexBuilt(indexMetadata.name);
+        EsIndexBuilder builder = repairBuilder();
+        if (builder != null) {
+          LOGGER.info("{} found writes lost before the restart, repairing", name);
+          CompactionManager.instance.submitIndexBuild(builder);
+        }
       }
       return null;
     };
@@ -332,7 +459,10 @@ public class EsSecondaryIndex implements Index {
 
   @Override
   public Callable<?> getInvalidateTask() {
-    return esIndex::drop;
+    return () -> {
+      readAheadExecutor.shutdown(); // reads in progress complete, searches read the next batches
+      return esIndex.drop();
+    };
   }
 
   @Override
@@ -405,7 +535,7 @@ public class EsSecondaryIndex implements Index {
     }
 
     Token token = key.getToken();
-    if (skipNonLocalUpdates && !CStarUtils.isOwner(baseCfs, token)) {
+    if (skipNonLocalUpdates && !CStarUtils.isOwner(baseCfs, token, indexerElection)) {
       if (LOGGER.isTraceEnabled()) {
         String id = ByteBufferUtil.bytesToHex(key.getKey());
         LOGGER.trace(
@@ -437,9 +567,7 @@ public class EsSecondaryIndex implements Index {
   public void validate(ReadCommand command) throws InvalidRequestException {
     String queryString = CStarUtils.queryString(command);
     // don't validate commands
-    if (!queryString.startsWith(UPDATE)
-        && !queryString.startsWith(GET_MAPPING)
-        && !queryString.startsWith(PUT_MAPPING)) {
+    if (!isCommand(queryString)) {
       LOGGER.trace(
           "Index {} validate query: {}",
           name,
@@ -448,6 +576,14 @@ public class EsSecondaryIndex implements Index {
     }
   }
 
+  /** @return true for #update#, #repair# and mapping commands, they are not ES searches */
+  static boolean isCommand(String queryString) {
+    return queryString.startsWith(UPDATE)
+        || queryString.startsWith(REPAIR)
+        || queryString.startsWith(GET_MAPPING)
+        || queryString.startsWith(PUT_MAPPING);
+  }
+
   public UnfilteredPartitionIterator search(ReadCommand command) {
     final Stopwatch time = Stopwatch.createStarted();
     final String searchId = UUID.randomUUID().toString();
@@ -458,6 +594,11 @@ public class EsSecondaryIndex implements Index {
       return EmptyIterators.unfilteredPartition(command.metadata(), command.isForThrift());
     }
 
+    if (queryString.startsWith(REPAIR)) {
+      repair();
+      return EmptyIterators.unfilteredPartition(command.metadata(), command.isForThrift());
+    }
+
     if (!(command instanceof PartitionRangeReadCommand)) {
       LOGGER.error(
           "Index {} class type {} is not supported for searches",
@@ -483,7 +624,17 @@ public class EsSecondaryIndex implements Index {
 
     // Extract query metadata if any
     QueryMetaData queryMetaData = new QueryMetaData(queryString);
-    SearchResult searchResult = esIndex.search(queryMetaData);
+    AbstractBounds<PartitionPosition> keyRange = readCommand.dataRange().keyRange();
+    Token start = keyRange.left.getToken();
+    Token stop = keyRange.right.getToken();
+    boolean filterRange = !start.equals(stop); // Do we have token ranges to filter out ?
+
+    if (filterRange) {
+      LOGGER.debug("{} {} search restricted to {}", name, searchId, keyRange);
+      restrictTokens(queryMetaData, start, stop);
+    }
+
+    SearchResult searchResult = esIndex.search(queryMetaData, searchPageSize(readCommand));
 
     LOGGER.debug(
         "{} {} Found {} matching ES docs in {}ms",
@@ -498,37 +649,61 @@ public class EsSecondaryIndex implements Index {
         time.elapsed(TimeUnit.MILLISECONDS));
 
     if (searchResult.items.isEmpty()) {
+      searchResult.close();
       return EmptyIterators.unfilteredPartition(command.metadata(), command.isForThrift());
     }
 
-    fillPartitionAndClusteringKeys(searchResult.items);
-
-    Token start = readCommand.dataRange().keyRange().left.getToken();
-    Token stop = readCommand.dataRange().keyRange().right.getToken();
-
-    if (!start.equals(stop)) { // Do we have token ranges to filter out ?
-      LOGGER.info(
-          "Range queries will result in multiple ES queries, add 'and token(pk)=rnd.long' to your query");
-
-      /* We must only load a row if its DecoratedKey is within the range of requested tokens. Note
-       * that the same node can receive several requests for the same search but with different
-       * ranges. If filtering is not done it will return duplicates. Drawback is that ES query is
-       * sent several times for the same search. Also it means ordering might not work as expected.*/
-      searchResult.items.removeIf(
-          result ->
-              !readCommand
-                  .dataRange()
-                  .keyRange()
-                  .contains(baseCfs.getPartitioner().decorateKey(result.partitionKey)));
-    }
+    /* We must only load a row if its DecoratedKey is within the range of requested tokens.
+     * EsQueryHandler runs the search once on the coordinator for the whole query, but range
+     * commands sent to replicas by other paths carry one range each, they must not return
+     * duplicates. ES already skips documents of other ranges, but documents indexed before their
+     * token was stored are returned whatever their token. Hits are filtered while they are read as
+     * the next pages of a streaming search are not fetched yet.*/
+    Iterator<SearchResultRow> hits =
+        Iterators.filter(
+            searchResult.iterator(),
+            hit -> {
+              fillPartitionAndClusteringKeys(hit);
+              return !filterRange
+                  || keyRange.contains(baseCfs.getPartitioner().decorateKey(hit.partitionKey));
+            });
 
     if (queryMetaData.loadRows()) {
-      return new StreamingPartitionIterator(this, searchResult, readCommand, searchId);
+      return new StreamingPartitionIterator(this, searchResult, hits, readCommand, searchId);
     } else {
-      return new FakePartitionIterator(this, searchResult, readCommand, searchId);
+      return new FakePartitionIterator(this, searchResult, hits, readCommand, searchId);
     }
   }
 
+  /**
+   * Restrict the ES search to the token range of a range command, with inclusive bounds as ES
+   * can't tell keys from tokens. Ranges wrapping around the ring are not restricted.
+   */
+  private static void restrictTokens(
+      @Nonnull QueryMetaData queryMetaData, @Nonnull Token start, @Nonnull Token stop) {
+    Long min = CStarUtils.numericToken(start);
+    Long max = CStarUtils.numericToken(stop);
+    if (min == null || max == null) {
+      return; // partitioner without numeric tokens
+    }
+    min = start.isMinimum() ? null : min;
+    max = stop.isMinimum() ? null : max;
+    if (min == null || max == null || min <= max) {
+      queryMetaData.restrictTokens(min, max);
+    }
+  }
+
+  /**
+   * The CQL page size is used as the command row limit by {@link EsQueryHandler}, ES hits are then
+   * read by pages of that size, as they are needed.
+   *
+   * @return ES page size of a streaming search, 0 if the command has no row limit
+   */
+  private static int searchPageSize(ReadCommand command) {
+    int count = command.limits().count();
+    return count == DataLimits.NO_LIMIT ? 0 : count;
+  }
+
   private String indexName() {
     return baseCfs.keyspace.getName() + "_" + baseCfs.name.toLowerCase() + INDEX_POSTFIX;
   }
@@ -541,7 +716,8 @@ public class EsSecondaryIndex implements Index {
     SearchResultRow fakeRow = new SearchResultRow(new String[] {FAKE_ID}, mapping);
     fakeRow.partitionKey = ByteBufferUtil.bytes(FAKE_ID);
     SearchResult searchResult = new SearchResult(Collections.singletonList(fakeRow), mapping);
-    return new FakePartitionIterator(this, searchResult, readCommand, searchId);
+    return new FakePartitionIterator(
+        this, searchResult, searchResult.iterator(), readCommand, searchId);
   }
 
   private UnfilteredPartitionIterator putMapping(
@@ -567,35 +743,36 @@ public class EsSecondaryIndex implements Index {
     }
   }
 
-  private void fillPartitionAndClusteringKeys(List<SearchResultRow> searchResultRows) {
-    for (SearchResultRow searchResultRow : searchResultRows) {
-      String[] rawKey = searchResultRow.primaryKey;
-      final String[] partitionKeys;
-      final String[] clusteringKeys;
-
-      // separate partition and clustering keys
-      if (hasClusteringColumns) {
-        clusteringKeys = new String[clusteringColumnsNames.size()];
-        partitionKeys = new String[partitionKeysNames.size()];
-
-        int pkPos = 0;
-        int ckPos = 0;
-        for (String key : rawKey) {
-          if (pkPos < partitionKeysNames.size()) {
-            partitionKeys[pkPos] = key;
-          } else {
-            clusteringKeys[ckPos] = key;
-            ckPos++;
-          }
-          pkPos++;
+  private void fillPartitionAndClusteringKeys(SearchResultRow searchResultRow) {
+    String[] rawKey = searchResultRow.primaryKey;
+    final String[] partitionKeys;
+    final String[] clusteringKeys;
+
+    // separate partition and clustering keys
+    if (hasClusteringColumns) {
+      clusteringKeys = new String[clusteringColumnsNames.size()];
+      partitionKeys = new String[partitionKeysNames.size()];
+
+      int pkPos = 0;
+      int ckPos = 0;
+      for (String key : rawKey) {
+        if (pkPos < partitionKeysNames.size()) {
+          partitionKeys[pkPos] = key;
+        } else {
+          clusteringKeys[ckPos] = key;
+          ckPos++;
         }
-      } else {
-        partitionKeys = rawKey;
-        clusteringKeys = null;
+        pkPos++;
       }
+    } else {
+      partitionKeys = rawKey;
+      clusteringKeys = null;
+    }
 
-      searchResultRow.partitionKey = CStarUtils.getPartitionKeys(partitionKeys, baseCfs.metadata);
-      searchResultRow.clusteringKeys = clusteringKeys;
+    searchResultRow.partitionKey = CStarUtils.getPartitionKeys(partitionKeys, baseCfs.metadata);
+    searchResultRow.clusteringKeys = clusteringKeys;
+    if (clusteringKeys != null) {
+      searchResultRow.clustering = CStarUtils.getClustering(clusteringKeys, baseCfs.metadata);
     }
   }
 
@@ -627,4 +804,21 @@ public class EsSecondaryIndex implements Index {
   public ConsistencyLevel getReadConsistency() {
     return readConsistencyLevel;
   }
+
+  public int getReadBatchSize() {
+    return readBatchSize;
+  }
+
+  public int getReadAhead() {
+    return readAhead;
+  }
+
+  public int getReadAheadBytes() {
+    return readAheadBytes;
+  }
+
+  @Nonnull
+  public ExecutorService getReadAheadExecutor() {
+    return readAheadExecutor;
+  }
 }
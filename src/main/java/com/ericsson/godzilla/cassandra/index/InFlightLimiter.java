@@ -0,0 +1,116 @@
+/*
+ * Copyright Ericsson AB 2019 - All Rights Reserved.
+ * The copyright to the computer program(s) herein is the property of Ericsson AB.
+ * The programs may be used and/or copied only with written permission from Ericsson AB
+ * or in accordance with the terms and conditions stipulated in the agreement/contract under which the program(s) have been supplied.
+ */
+package com.ericsson.godzilla.cassandra.index;
+
+import com.ericsson.godzilla.cassandra.index.config.IndexConfig.InFlightPolicy;
+import com.ericsson.godzilla.cassandra.index.monitor.EsIndexMetrics;
+import org.apache.cassandra.exceptions.OverloadedException;
+
+import javax.annotation.Nonnull;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounds the document writes sent to ES and not acknowledged yet, in number and in payload bytes.
+ * Async writers don't wait for ES, without a bound a slow ES lets pending requests grow until the
+ * JVM runs out of memory.<br>
+ * When a bound is reached a write either waits for a bounded time or fails, see InFlightPolicy.
+ */
+class InFlightLimiter {
+
+  private final int maxWrites;
+  private final int maxBytes;
+  private final Semaphore writes;
+  private final Semaphore bytes;
+  private final InFlightPolicy policy;
+  private final long blockNanos;
+  private final EsIndexMetrics metrics;
+
+  /**
+   * @param maxWrites max number of writes in flight, at least 1
+   * @param maxBytes max payload bytes in flight, at least 1, bigger payloads count as maxBytes
+   * @param policy what to do with writes beyond the bounds
+   * @param blockMs with BLOCK policy, max time a write waits before failing
+   * @param metrics in flight writes are reported there
+   */
+  InFlightLimiter(
+      int maxWrites,
+      int maxBytes,
+      @Nonnull InFlightPolicy policy,
+      long blockMs,
+      @Nonnull EsIndexMetrics metrics) {
+    this.maxWrites = Math.max(1, maxWrites);
+    this.maxBytes = Math.max(1, maxBytes);
+    this.writes = new Semaphore(this.maxWrites);
+    this.bytes = new Semaphore(this.maxBytes);
+    this.policy = policy;
+    this.blockNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, blockMs));
+    this.metrics = metrics;
+  }
+
+  /** @return true if the limiter has the same bounds and policy, no need to replace it */
+  boolean isSame(int otherMaxWrites, int otherMaxBytes, @Nonnull InFlightPolicy otherPolicy) {
+    return maxWrites == Math.max(1, otherMaxWrites)
+        && maxBytes == Math.max(1, otherMaxBytes)
+        && policy == otherPolicy;
+  }
+
+  /**
+   * Reserve room for a write, may block with BLOCK policy
+   *
+   * @param size payload size in bytes
+   * @return the reserved bytes, to release once the write is acknowledged or failed
+   * @throws OverloadedException if there is no room for the write
+   */
+  int acquire(int size) {
+    int permits = Math.max(1, Math.min(size, maxBytes));
+    if (writes.tryAcquire()) {
+      if (bytes.tryAcquire(permits)) {
+        metrics.writeStarted(permits);
+        return permits;
+      }
+      writes.release();
+    }
+
+    if (policy == InFlightPolicy.FAIL) {
+      metrics.writeRejected();
+      throw new OverloadedException(
+          "Too many writes in flight to ES, max " + maxWrites + " writes of " + maxBytes + " bytes");
+    }
+
+    metrics.writeThrottled();
+    long deadline = System.nanoTime() + blockNanos;
+    try {
+      if (writes.tryAcquire(blockNanos, TimeUnit.NANOSECONDS)) {
+        if (bytes.tryAcquire(permits, deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+          metrics.writeStarted(permits);
+          return permits;
+        }
+        writes.release();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    metrics.writeRejected();
+    throw new OverloadedException(
+        "ES writes still in flight after "
+            + TimeUnit.NANOSECONDS.toMillis(blockNanos)
+            + "ms, max "
+            + maxWrites
+            + " writes of "
+            + maxBytes
+            + " bytes");
+  }
+
+  /** @param permits as returned by acquire() */
+  void release(int permits) {
+    bytes.release(permits);
+    writes.release();
+    metrics.writeCompleted(permits);
+  }
+}
@@ -6,6 +6,9 @@
  */
 package com.ericsson.godzilla.cassandra.index;
 
+import org.apache.cassandra.db.DecoratedKey;
+import org.apache.cassandra.dht.Range;
+import org.apache.cassandra.dht.Token;
 import org.apache.cassandra.exceptions.InvalidRequestException;
 import org.apache.cassandra.utils.Pair;
 
@@ -13,6 +16,7 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 public interface IndexInterface {
 
@@ -29,24 +33,69 @@ public interface IndexInterface {
    * Index a new document
    *
    * @param partitionKeys not null, not empty
+   * @param decoratedKey of the partition
    * @param elements not null, not empty
    * @param expirationTime in seconds
    * @param isInsert if false will use update
+   * @return completed once ES acknowledged the documents or they were queued for replay, failed if
+   *     a document write is lost
    * @throws IOException if something goes wrong
    */
-  void index(
+  @Nonnull
+  CompletableFuture<Void> index(
       @Nonnull List<Pair<String, String>> partitionKeys,
+      @Nonnull DecoratedKey decoratedKey,
       @Nonnull List<CellElement> elements,
       long expirationTime,
       boolean isInsert)
       throws IOException;
 
+  /**
+   * Index a document read by a rebuild, documents are sent in bulks and not acknowledged one by
+   * one, see flushRebuild()
+   *
+   * @param partitionKeys not null, not empty
+   * @param decoratedKey of the partition
+   * @param elements not null, not empty
+   * @param expirationTime in seconds
+   * @throws IOException if something goes wrong
+   */
+  void indexRebuild(
+      @Nonnull List<Pair<String, String>> partitionKeys,
+      @Nonnull DecoratedKey decoratedKey,
+      @Nonnull List<CellElement> elements,
+      long expirationTime)
+      throws IOException;
+
+  /**
+   * Blocks until all documents of the rebuild are acknowledged, documents rejected by ES are
+   * logged and skipped
+   *
+   * @throws RuntimeException if some documents could not be sent to ES
+   */
+  void flushRebuild();
+
   /**
    * Delete the corresponding document
    *
    * @param partitionKeys not null, not empty
+   * @param decoratedKey of the partition
+   * @return completed once ES acknowledged the delete or it was queued for replay, failed if it is
+   *     lost
+   */
+  @Nonnull
+  CompletableFuture<Void> delete(
+      @Nonnull List<Pair<String, String>> partitionKeys, @Nonnull DecoratedKey decoratedKey);
+
+  /**
+   * Delete the documents of token ranges before a repair re-indexes their live rows, so that
+   * partitions deleted while their delete was lost disappear. Documents indexed without their
+   * token are kept.
+   *
+   * @param ranges normalized token ranges
+   * @throws RuntimeException if the documents could not be deleted
    */
-  void delete(@Nonnull List<Pair<String, String>> partitionKeys);
+  void deleteTokenRanges(@Nonnull List<Range<Token>> ranges);
 
   /** Flush all data from memory to disk */
   @Nullable
@@ -64,11 +113,13 @@ public interface IndexInterface {
    * Find results matching the query string with matching partitionKeys, clusteringColumnsNames
    *
    * @param queryMetaData not null, the query to execute
+   * @param pageSize hits fetched per ES request for a streaming search, 0 to get up to max-results
+   *     hits in one request
    * @return not null, SearchResult which contains a list SearchResultRows and result metadata as
    *     Json string
    */
   @Nonnull
-  SearchResult search(@Nonnull QueryMetaData queryMetaData);
+  SearchResult search(@Nonnull QueryMetaData queryMetaData, int pageSize);
 
   /** @param query the query to validate */
   void validate(@Nonnull String query) throws InvalidRequestException;
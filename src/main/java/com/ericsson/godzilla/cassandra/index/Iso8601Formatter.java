@@ -0,0 +1,67 @@
+/*
+ * Copyright Ericsson AB 2019 - All Rights Reserved.
+ * The copyright to the computer program(s) herein is the property of Ericsson AB.
+ * The programs may be used and/or copied only with written permission from Ericsson AB
+ * or in accordance with the terms and conditions stipulated in the agreement/contract under which the program(s) have been supplied.
+ */
+package com.ericsson.godzilla.cassandra.index;
+
+import javax.annotation.Nonnull;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Thread safe ISO-8601 formatting of dates in GMT, like 2016-01-05T13:49:25.143Z.<br>
+ * The date up to the second of the last formatted date is cached, dates in the same second only
+ * append their milliseconds. Indexation dates and recent timestamps mostly hit the cache.
+ */
+final class Iso8601Formatter {
+
+  private static final String SECONDS_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.";
+  private static final TimeZone GMT_ZONE = TimeZone.getTimeZone("GMT");
+  private static final ThreadLocal<SimpleDateFormat> SECONDS_FORMATTERS =
+      ThreadLocal.withInitial(
+          () -> {
+            SimpleDateFormat dateFormat = new SimpleDateFormat(SECONDS_FORMAT);
+            dateFormat.setTimeZone(GMT_ZONE);
+            return dateFormat;
+          });
+
+  private static volatile CachedSecond cached = new CachedSecond(Long.MIN_VALUE, "");
+
+  private Iso8601Formatter() {}
+
+  /** @param millis since epoch */
+  @Nonnull
+  static String format(long millis) {
+    long second = Math.floorDiv(millis, 1000L);
+    int millisOfSecond = (int) Math.floorMod(millis, 1000L);
+
+    CachedSecond current = cached;
+    if (current.second != second) {
+      current = new CachedSecond(second, SECONDS_FORMATTERS.get().format(new Date(second * 1000L)));
+      cached = current;
+    }
+
+    String prefix = current.formatted;
+    int length = prefix.length();
+    char[] chars = new char[length + 4];
+    prefix.getChars(0, length, chars, 0);
+    chars[length] = (char) ('0' + millisOfSecond / 100);
+    chars[length + 1] = (char) ('0' + millisOfSecond / 10 % 10);
+    chars[length + 2] = (char) ('0' + millisOfSecond % 10);
+    chars[length + 3] = 'Z';
+    return new String(chars);
+  }
+
+  private static class CachedSecond {
+    final long second;
+    final String formatted; // up to the second, with the '.' separator
+
+    CachedSecond(long second, String formatted) {
+      this.second = second;
+      this.formatted = formatted;
+    }
+  }
+}
@@ -21,7 +21,6 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.StringWriter;
-import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.function.Predicate;
 
@@ -32,9 +31,6 @@ public class JsonUtils {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(JsonUtils.class);
 
-  private static final String EXTENDED_ISO8601_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'";
-  private static final TimeZone GMT_ZONE = TimeZone.getTimeZone("GMT");
-
   private static final ObjectMapper OBJECT_MAPPER;
   private static final JsonFactory JSON_FACTORY = new JsonFactory();
   private static final JsonParser GSON_PARSER = new JsonParser(); // com.google.gson.JsonParser
@@ -107,9 +103,7 @@ public class JsonUtils {
   /** 2016-01-05T13:49:25.143Z */
   @Nonnull
   static String getIso8601Date(@Nonnull Date date) {
-    SimpleDateFormat dateFormat = new SimpleDateFormat(EXTENDED_ISO8601_FORMAT);
-    dateFormat.setTimeZone(GMT_ZONE);
-    return dateFormat.format(date);
+    return Iso8601Formatter.format(date.getTime());
   }
 
   @Nonnull
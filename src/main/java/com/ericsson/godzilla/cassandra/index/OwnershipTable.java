@@ -0,0 +1,255 @@
+/*
+ * Copyright Ericsson AB 2019 - All Rights Reserved.
+ * The copyright to the computer program(s) herein is the property of Ericsson AB.
+ * The programs may be used and/or copied only with written permission from Ericsson AB
+ * or in accordance with the terms and conditions stipulated in the agreement/contract under which the program(s) have been supplied.
+ */
+package com.ericsson.godzilla.cassandra.index;
+
+import com.ericsson.godzilla.cassandra.index.config.IndexConfig.IndexerElection;
+import org.apache.cassandra.config.DatabaseDescriptor;
+import org.apache.cassandra.db.Keyspace;
+import org.apache.cassandra.dht.Token;
+import org.apache.cassandra.gms.ApplicationState;
+import org.apache.cassandra.gms.EndpointState;
+import org.apache.cassandra.gms.FailureDetector;
+import org.apache.cassandra.gms.Gossiper;
+import org.apache.cassandra.gms.IEndpointStateChangeSubscriber;
+import org.apache.cassandra.gms.VersionedValue;
+import org.apache.cassandra.locator.AbstractReplicationStrategy;
+import org.apache.cassandra.locator.IEndpointSnitch;
+import org.apache.cassandra.locator.TokenMetadata;
+import org.apache.cassandra.service.StorageService;
+import org.apache.cassandra.utils.FBUtilities;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Live replicas of each token range of a keyspace in the datacenter of this node, to elect the
+ * replica that indexes a token, see IndexerElection.<br>
+ * Tables are computed once per ring, replication strategy and replica liveness, then answer with a
+ * binary search over the range bounds. Gossip liveness events and ring changes invalidate them.
+ */
+final class OwnershipTable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(OwnershipTable.class);
+  private static final Map<String, OwnershipTable> TABLES = new ConcurrentHashMap<>();
+  private static final AtomicLong LIVENESS_VERSION = new AtomicLong();
+  private static volatile boolean subscribed;
+
+  private final Token[] bounds; // right bounds of the ring ranges, sorted
+  private final Replicas[] replicas; // replicas[i] of the range ending at bounds[i]
+  private final AbstractReplicationStrategy strategy;
+  private final long ringVersion;
+  private final long livenessVersion;
+
+  OwnershipTable(@Nonnull Token[] bounds, @Nonnull Replicas[] replicas) {
+    this(bounds, replicas, null, 0, 0);
+  }
+
+  private OwnershipTable(
+      @Nonnull Token[] bounds,
+      @Nonnull Replicas[] replicas,
+      AbstractReplicationStrategy strategy,
+      long ringVersion,
+      long livenessVersion) {
+    this.bounds = bounds;
+    this.replicas = replicas;
+    this.strategy = strategy;
+    this.ringVersion = ringVersion;
+    this.livenessVersion = livenessVersion;
+  }
+
+  /** @return the current table of a keyspace, built again if it was invalidated */
+  @Nonnull
+  static OwnershipTable of(@Nonnull Keyspace keyspace) {
+    subscribe();
+    TokenMetadata metadata = StorageService.instance.getTokenMetadata();
+    OwnershipTable table = TABLES.get(keyspace.getName());
+    if (table != null && table.isCurrent(keyspace, metadata)) {
+      return table;
+    }
+    return TABLES.compute(
+        keyspace.getName(),
+        (name, old) -> old != null && old.isCurrent(keyspace, metadata) ? old : build(keyspace));
+  }
+
+  /** @return true if this node is elected to index the token */
+  boolean isOwner(@Nonnull Token token, @Nonnull IndexerElection election) {
+    if (bounds.length == 0) {
+      return false;
+    }
+    int index = Arrays.binarySearch(bounds, token);
+    if (index < 0) {
+      index = -index - 1; // first bound after the token
+    }
+    Replicas range = replicas[index == bounds.length ? 0 : index]; // the first range wraps
+    return range.local >= 0 && elect(election, range, token) == range.local;
+  }
+
+  /** @return the index of the elected replica, the same on all replicas with the same view */
+  private static int elect(
+      @Nonnull IndexerElection election, @Nonnull Replicas range, @Nonnull Token token) {
+    switch (election) {
+      case TOKEN_HASH:
+        return Math.floorMod(hash(token), range.addresses.length);
+      case RACK_AWARE:
+        // a rack is picked evenly whatever the number of replicas in each rack
+        return range.rackFirsts[Math.floorMod(hash(token), range.rackFirsts.length)];
+      default:
+        return 0;
+    }
+  }
+
+  private static int hash(@Nonnull Token token) {
+    int hash = token.hashCode();
+    return hash ^ (hash >>> 16);
+  }
+
+  private boolean isCurrent(@Nonnull Keyspace keyspace, @Nonnull TokenMetadata metadata) {
+    return strategy == keyspace.getReplicationStrategy()
+        && ringVersion == metadata.getRingVersion()
+        && livenessVersion == LIVENESS_VERSION.get();
+  }
+
+  @Nonnull
+  private static OwnershipTable build(@Nonnull Keyspace keyspace) {
+    // Versions are read first, changes made while building invalidate the table
+    long livenessVersion = LIVENESS_VERSION.get();
+    TokenMetadata metadata = StorageService.instance.getTokenMetadata();
+    long ringVersion = metadata.getRingVersion();
+    AbstractReplicationStrategy strategy = keyspace.getReplicationStrategy();
+
+    IEndpointSnitch snitch = DatabaseDescriptor.getEndpointSnitch();
+    InetAddress local = FBUtilities.getBroadcastAddress();
+    List<Token> tokens = metadata.sortedTokens();
+    Token[] bounds = tokens.toArray(new Token[0]);
+    Replicas[] replicas = new Replicas[bounds.length];
+    int count = 0;
+    for (int i = 0; i < bounds.length; i++) {
+      replicas[i] =
+          Replicas.of(
+              strategy.getNaturalEndpoints(bounds[i]),
+              FailureDetector.instance::isAlive,
+              snitch::getDatacenter,
+              snitch::getRack,
+              local);
+      count += replicas[i].local >= 0 ? 1 : 0;
+    }
+
+    LOGGER.debug(
+        "Ownership of {} computed, this node is a live replica of {} of {} token ranges",
+        keyspace.getName(),
+        count,
+        bounds.length);
+    return new OwnershipTable(bounds, replicas, strategy, ringVersion, livenessVersion);
+  }
+
+  private static void subscribe() {
+    if (!subscribed) {
+      synchronized (OwnershipTable.class) {
+        if (!subscribed) {
+          Gossiper.instance.register(new LivenessListener());
+          subscribed = true;
+        }
+      }
+    }
+  }
+
+  /** Live replicas of a range in the datacenter of this node */
+  static class Replicas {
+    private final InetAddress[] addresses; // in the order of the replication strategy
+    private final int[] rackFirsts; // index of the first replica of each rack
+    private final int local; // index of this node, -1 if it is not a live replica
+
+    private Replicas(@Nonnull InetAddress[] addresses, @Nonnull int[] rackFirsts, int local) {
+      this.addresses = addresses;
+      this.rackFirsts = rackFirsts;
+      this.local = local;
+    }
+
+    /** @param replicas of a range, in the order of the replication strategy */
+    @Nonnull
+    static Replicas of(
+        @Nonnull List<InetAddress> replicas,
+        @Nonnull Predicate<InetAddress> isAlive,
+        @Nonnull Function<InetAddress, String> datacenter,
+        @Nonnull Function<InetAddress, String> rack,
+        @Nonnull InetAddress local) {
+      String localDc = datacenter.apply(local);
+      List<InetAddress> live = new ArrayList<>(replicas.size());
+      for (InetAddress replica : replicas) {
+        if (isAlive.test(replica) && localDc.equals(datacenter.apply(replica))) {
+          live.add(replica);
+        }
+      }
+      List<String> racks = new ArrayList<>();
+      List<Integer> rackFirsts = new ArrayList<>();
+      for (int i = 0; i < live.size(); i++) {
+        String name = rack.apply(live.get(i));
+        if (!racks.contains(name)) {
+          racks.add(name);
+          rackFirsts.add(i);
+        }
+      }
+      return new Replicas(
+          live.toArray(new InetAddress[0]),
+          rackFirsts.stream().mapToInt(Integer::intValue).toArray(),
+          live.indexOf(local));
+    }
+  }
+
+  /** Invalidates the tables when a node goes up or down, ring changes are versioned */
+  private static class LivenessListener implements IEndpointStateChangeSubscriber {
+
+    private static void invalidate() {
+      LIVENESS_VERSION.incrementAndGet();
+    }
+
+    @Override
+    public void onJoin(InetAddress endpoint, EndpointState epState) {
+      invalidate();
+    }
+
+    @Override
+    public void beforeChange(
+        InetAddress endpoint,
+        EndpointState currentState,
+        ApplicationState newStateKey,
+        VersionedValue newValue) {}
+
+    @Override
+    public void onChange(InetAddress endpoint, ApplicationState state, VersionedValue value) {}
+
+    @Override
+    public void onAlive(InetAddress endpoint, EndpointState state) {
+      invalidate();
+    }
+
+    @Override
+    public void onDead(InetAddress endpoint, EndpointState state) {
+      invalidate();
+    }
+
+    @Override
+    public void onRemove(InetAddress endpoint) {
+      invalidate();
+    }
+
+    @Override
+    public void onRestart(InetAddress endpoint, EndpointState state) {
+      invalidate();
+    }
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright Ericsson AB 2019 - All Rights Reserved.
+ * The copyright to the computer program(s) herein is the property of Ericsson AB.
+ * The programs may be used and/or copied only with written permission from Ericsson AB
+ * or in accordance with the terms and conditions stipulated in the agreement/contract under which the program(s) have been supplied.
+ */
+package com.ericsson.godzilla.cassandra.index;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.config.ColumnDefinition;
+import org.apache.cassandra.db.marshal.AbstractType;
+import org.apache.cassandra.db.marshal.CompositeType;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.cassandra.utils.Pair;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Decodes the partition keys of a table, names and types of the key columns are resolved once
+ * instead of for every write and delete.<br>
+ * Recently decoded keys can be kept in a bounded LRU, updates of hot partitions then skip the
+ * decoding. Decoded keys are immutable lists shared by callers.
+ */
+final class PartitionKeyDecoder {
+
+  private final String[] names;
+  private final AbstractType<?>[] types;
+  private final boolean isComposite;
+  @Nullable private final Cache<ByteBuffer, List<Pair<String, String>>> recentKeys;
+
+  /**
+   * @param tableMetadata table metadata, not index metadata
+   * @param cacheSize number of decoded keys kept, 0 to disable the cache
+   */
+  PartitionKeyDecoder(@Nonnull CFMetaData tableMetadata, int cacheSize) {
+    List<ColumnDefinition> columns = tableMetadata.partitionKeyColumns();
+    names = new String[columns.size()];
+    types = new AbstractType<?>[columns.size()];
+    for (int i = 0; i < names.length; i++) {
+      names[i] = columns.get(i).name.toString();
+      types[i] = columns.get(i).type;
+    }
+
+    isComposite = tableMetadata.getKeyValidator() instanceof CompositeType;
+
+    recentKeys =
+        cacheSize > 0 ? CacheBuilder.newBuilder().maximumSize(cacheSize).build() : null;
+  }
+
+  /**
+   * Convert a partition key to its column names and values
+   *
+   * @param rowKey can't be null, not modified
+   * @return never null, left is pkName, right is pkValue
+   */
+  @Nonnull
+  List<Pair<String, String>> decode(@Nonnull ByteBuffer rowKey) {
+    if (recentKeys == null) {
+      return decodeKey(rowKey);
+    }
+
+    List<Pair<String, String>> keys = recentKeys.getIfPresent(rowKey);
+    if (keys == null) {
+      keys = decodeKey(rowKey);
+      recentKeys.put(ByteBufferUtil.clone(rowKey), keys); // rowKey may be a reused buffer
+    }
+    return keys;
+  }
+
+  @Nonnull
+  private List<Pair<String, String>> decodeKey(@Nonnull ByteBuffer rowKey) {
+    if (!isComposite) { // PK is a single column
+      return Collections.singletonList(Pair.create(names[0], types[0].getString(rowKey)));
+    }
+
+    // PK is composite we need to extract sub-keys
+    List<ByteBuffer> keys = CompositeType.splitName(rowKey);
+    List<Pair<String, String>> partitionKeys = new ArrayList<>(keys.size());
+    for (int pos = 0; pos < keys.size(); pos++) {
+      partitionKeys.add(Pair.create(names[pos], types[pos].getString(keys.get(pos))));
+    }
+    return Collections.unmodifiableList(partitionKeys);
+  }
+}
@@ -7,6 +7,8 @@
 package com.ericsson.godzilla.cassandra.index;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -26,6 +28,8 @@ public class QueryMetaData {
 
   public final String query;
   private final Map<String, String> options = new HashMap<>();
+  private Long minToken; // inclusive, null if unbounded
+  private Long maxToken; // inclusive, null if unbounded
 
   public QueryMetaData(@Nonnull String queryStr) {
     if (queryStr.startsWith(META_PREFIX)) {
@@ -43,6 +47,12 @@ public class QueryMetaData {
     }
   }
 
+  /** @return all the options of the query */
+  @Nonnull
+  public Map<String, String> getOptions() {
+    return Collections.unmodifiableMap(options);
+  }
+
   /** @return (true default) load rows from Cassandra */
   public boolean loadRows() {
     String value = options.get(LOAD_ROWS);
@@ -54,4 +64,33 @@ public class QueryMetaData {
     String value = options.get(LOAD_SOURCE);
     return value == null ? false : Boolean.valueOf(value);
   }
+
+  /**
+   * Only return documents of partitions in a token range, documents indexed without their token
+   * are returned too
+   *
+   * @param min inclusive, null if unbounded
+   * @param max inclusive, null if unbounded
+   */
+  public void restrictTokens(@Nullable Long min, @Nullable Long max) {
+    minToken = min;
+    maxToken = max;
+  }
+
+  /** @return true if the search is restricted to a token range, see restrictTokens() */
+  public boolean hasTokenRange() {
+    return minToken != null || maxToken != null;
+  }
+
+  /** @return inclusive lower token bound, null if unbounded */
+  @Nullable
+  public Long minToken() {
+    return minToken;
+  }
+
+  /** @return inclusive upper token bound, null if unbounded */
+  @Nullable
+  public Long maxToken() {
+    return maxToken;
+  }
 }
@@ -0,0 +1,168 @@
+/*
+ * Copyright Ericsson AB 2019 - All Rights Reserved.
+ * The copyright to the computer program(s) herein is the property of Ericsson AB.
+ * The programs may be used and/or copied only with written permission from Ericsson AB
+ * or in accordance with the terms and conditions stipulated in the agreement/contract under which the program(s) have been supplied.
+ */
+package com.ericsson.godzilla.cassandra.index;
+
+import org.apache.cassandra.config.DatabaseDescriptor;
+import org.apache.cassandra.dht.Range;
+import org.apache.cassandra.dht.Token;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Progress of an index rebuild, saved in a file so that a rebuild interrupted by a restart resumes
+ * where it stopped.<br>
+ * For each SSTable generation and token range, the last partition token whose documents were
+ * acknowledged by ES is saved. Ranges are saved too so that a resumed rebuild uses the same split.
+ */
+class RebuildCheckpoint {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(RebuildCheckpoint.class);
+  private static final String DONE = "done";
+  private static final String SEPARATOR = ":";
+
+  private final File file;
+  private final Token.TokenFactory tokenFactory;
+
+  RebuildCheckpoint(@Nonnull File file, @Nonnull Token.TokenFactory tokenFactory) {
+    this.file = file;
+    this.tokenFactory = tokenFactory;
+  }
+
+  /** @return the checkpoint of this index, in the saved caches directory */
+  @Nonnull
+  static RebuildCheckpoint of(@Nonnull EsSecondaryIndex index) {
+    String fileName =
+        index.baseCfs.keyspace.getName()
+            + '-'
+            + index.baseCfs.name
+            + '-'
+            + index.getIndexMetadata().name
+            + "-rebuild.properties";
+    return new RebuildCheckpoint(
+        new File(DatabaseDescriptor.getSavedCachesLocation(), fileName),
+        index.baseCfs.getPartitioner().getTokenFactory());
+  }
+
+  boolean exists() {
+    return file.exists();
+  }
+
+  /**
+   * @return saved positions by SSTable generation, empty if there is no checkpoint or it can't be
+   *     read
+   */
+  @Nonnull
+  Map<Integer, List<Position>> load() {
+    Map<Integer, List<Position>> positions = new HashMap<>();
+    if (!file.exists()) {
+      return positions;
+    }
+
+    Properties properties = new Properties();
+    try (InputStream in = Files.newInputStream(file.toPath())) {
+      properties.load(in);
+      for (String key : properties.stringPropertyNames()) {
+        String[] parts = key.split(SEPARATOR, 3);
+        int generation = Integer.parseInt(parts[0]);
+        Position position =
+            new Position(
+                generation,
+                new Range<>(tokenFactory.fromString(parts[1]), tokenFactory.fromString(parts[2])));
+
+        String value = properties.getProperty(key);
+        if (DONE.equals(value)) {
+          position.done = true;
+        } else if (!value.isEmpty()) {
+          position.last = tokenFactory.fromString(value);
+        }
+        positions.computeIfAbsent(generation, k -> new ArrayList<>()).add(position);
+      }
+    } catch (IOException | RuntimeException e) {
+      LOGGER.warn("Ignoring unreadable rebuild checkpoint {}", file, e);
+      positions.clear();
+    }
+    return positions;
+  }
+
+  /**
+   * Replace the saved positions, the file is written atomically
+   *
+   * @param positions all positions of the rebuild
+   */
+  void save(@Nonnull Collection<Position> positions) throws IOException {
+    Properties properties = new Properties();
+    for (Position position : positions) {
+      String key =
+          position.generation
+              + SEPARATOR
+              + tokenFactory.toString(position.range.left)
+              + SEPARATOR
+              + tokenFactory.toString(position.range.right);
+      Token last = position.last;
+      properties.setProperty(
+          key, position.done ? DONE : last == null ? "" : tokenFactory.toString(last));
+    }
+
+    File dir = file.getAbsoluteFile().getParentFile();
+    if (!dir.exists() && !dir.mkdirs()) {
+      throw new IOException("Can't create directory " + dir);
+    }
+    File tmp = new File(dir, file.getName() + ".tmp");
+    try (OutputStream out = Files.newOutputStream(tmp.toPath())) {
+      properties.store(out, "Index rebuild progress");
+    }
+    Files.move(
+        tmp.toPath(),
+        file.toPath(),
+        StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  void delete() {
+    if (file.exists() && !file.delete()) {
+      LOGGER.warn("Can't delete rebuild checkpoint {}", file);
+    }
+  }
+
+  /** Progress of one token range of one SSTable, updated by the worker scanning it */
+  static class Position {
+    final int generation;
+    final Range<Token> range;
+    volatile Token last; // null if not started
+    volatile boolean done;
+
+    Position(int generation, @Nonnull Range<Token> range) {
+      this.generation = generation;
+      this.range = range;
+    }
+
+    /** @return the range left to scan, null if there is nothing left */
+    @Nullable
+    Range<Token> remaining() {
+      Token start = last;
+      if (done || (start != null && start.equals(range.right))) {
+        return null;
+      }
+      return start == null ? range : new Range<>(start, range.right);
+    }
+  }
+}
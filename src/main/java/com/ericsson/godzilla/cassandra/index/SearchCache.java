@@ -0,0 +1,210 @@
+/*
+ * Copyright Ericsson AB 2019 - All Rights Reserved.
+ * The copyright to the computer program(s) herein is the property of Ericsson AB.
+ * The programs may be used and/or copied only with written permission from Ericsson AB
+ * or in accordance with the terms and conditions stipulated in the agreement/contract under which the program(s) have been supplied.
+ */
+package com.ericsson.godzilla.cassandra.index;
+
+import com.ericsson.godzilla.cassandra.index.monitor.EsIndexMetrics;
+import com.google.gson.JsonObject;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hits of recent searches, so that a search sent again is answered without ES.<br>
+ * Entries are keyed by the ES request, the query options and a generation that is bumped when this
+ * node changes the index content at once (flush, truncate, mapping...). Other writes are made
+ * visible by the ES refresh, entries expire after a TTL for that. The cache is an LRU bounded by
+ * the estimated size of the hits.
+ */
+class SearchCache {
+
+  private static final int ENTRY_OVERHEAD = 128; // key, entry, map node and list
+  private static final int ROW_OVERHEAD = 64; // row, key array and metadata object
+  private static final int STRING_OVERHEAD = 40;
+
+  private final long maxBytes;
+  private final long ttlNanos;
+  private final EsIndexMetrics metrics;
+  private final AtomicLong generation = new AtomicLong();
+
+  // Guarded by this, least recently used first
+  private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long bytes;
+
+  /**
+   * @param maxBytes max estimated size of the cached hits
+   * @param ttlMs time a search is cached
+   * @param metrics hits and misses are counted there
+   */
+  SearchCache(long maxBytes, long ttlMs, @Nonnull EsIndexMetrics metrics) {
+    this.maxBytes = maxBytes;
+    this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMs);
+    this.metrics = metrics;
+  }
+
+  boolean isSame(long maxBytes, long ttlMs) {
+    return this.maxBytes == maxBytes && ttlNanos == TimeUnit.MILLISECONDS.toNanos(ttlMs);
+  }
+
+  /**
+   * Taken before sending the search to ES, a search put with a key of a previous generation is
+   * never returned
+   *
+   * @param request the ES search request, normalized
+   * @param options of the query, see QueryMetaData
+   * @param scroll true for a streaming search, it is not limited to max-results hits
+   */
+  @Nonnull
+  Key key(@Nonnull String request, @Nonnull Map<String, String> options, boolean scroll) {
+    return new Key(request, new TreeMap<>(options), scroll, generation.get());
+  }
+
+  /** @return a copy of the cached hits, null if the search is not cached or expired */
+  @Nullable
+  SearchResult get(@Nonnull Key key) {
+    Entry entry;
+    synchronized (this) {
+      entry = entries.get(key);
+      if (entry != null && System.nanoTime() - entry.createdNanos > ttlNanos) {
+        remove(key);
+        entry = null;
+      }
+    }
+
+    if (entry == null) {
+      metrics.searchCacheMiss();
+      return null;
+    }
+    metrics.searchCacheHit();
+    return new SearchResult(copy(entry.rows), entry.metadata);
+  }
+
+  /** Cache all the hits of a search, searches bigger than an eighth of the cache are not cached */
+  void put(@Nonnull Key key, @Nonnull List<SearchResultRow> rows, @Nonnull JsonObject metadata) {
+    long size = ENTRY_OVERHEAD + estimate(key.request) + estimate(metadata.toString());
+    for (SearchResultRow row : rows) {
+      size += ROW_OVERHEAD + estimate(row.docMetadata.toString());
+      for (String value : row.primaryKey) {
+        size += estimate(value);
+      }
+    }
+    if (size > maxBytes / 8) {
+      return;
+    }
+
+    Entry entry = new Entry(copy(rows), metadata, size);
+    synchronized (this) {
+      if (key.generation != generation.get()) {
+        return; // invalidated while ES was searching
+      }
+      remove(key);
+      entries.put(key, entry);
+      bytes += size;
+      Iterator<Entry> it = entries.values().iterator();
+      while (bytes > maxBytes && it.hasNext()) {
+        bytes -= it.next().size;
+        it.remove();
+      }
+    }
+  }
+
+  /** Forget all the searches, the index content changed */
+  void invalidate() {
+    generation.incrementAndGet();
+    synchronized (this) {
+      entries.clear();
+      bytes = 0;
+    }
+  }
+
+  /** @return estimated size of the cached hits */
+  synchronized long bytes() {
+    return bytes;
+  }
+
+  // Must hold this
+  private void remove(@Nonnull Key key) {
+    Entry previous = entries.remove(key);
+    if (previous != null) {
+      bytes -= previous.size;
+    }
+  }
+
+  private static long estimate(@Nullable String value) {
+    return value == null ? 0 : STRING_OVERHEAD + 2L * value.length();
+  }
+
+  /** Hits are completed by each search with their Cassandra keys, they are not shared */
+  @Nonnull
+  private static List<SearchResultRow> copy(@Nonnull List<SearchResultRow> rows) {
+    List<SearchResultRow> copies = new ArrayList<>(rows.size());
+    for (SearchResultRow row : rows) {
+      copies.add(new SearchResultRow(row.primaryKey, row.docMetadata));
+    }
+    return copies;
+  }
+
+  /** A search request with its options, in a generation of the cache */
+  static class Key {
+    private final String request;
+    private final Map<String, String> options;
+    private final boolean scroll;
+    private final long generation;
+
+    private Key(
+        @Nonnull String request,
+        @Nonnull Map<String, String> options,
+        boolean scroll,
+        long generation) {
+      this.request = request;
+      this.options = options;
+      this.scroll = scroll;
+      this.generation = generation;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key key = (Key) o;
+      return generation == key.generation
+          && scroll == key.scroll
+          && request.equals(key.request)
+          && options.equals(key.options);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(request, options, scroll, generation);
+    }
+  }
+
+  private static class Entry {
+    private final List<SearchResultRow> rows;
+    private final JsonObject metadata;
+    private final long size;
+    private final long createdNanos = System.nanoTime();
+
+    private Entry(@Nonnull List<SearchResultRow> rows, @Nonnull JsonObject metadata, long size) {
+      this.rows = rows;
+      this.metadata = metadata;
+      this.size = size;
+    }
+  }
+}
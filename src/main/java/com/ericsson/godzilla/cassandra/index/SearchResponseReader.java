@@ -0,0 +1,185 @@
+/*
+ * Copyright Ericsson AB 2019 - All Rights Reserved.
+ * The copyright to the computer program(s) herein is the property of Ericsson AB.
+ * The programs may be used and/or copied only with written permission from Ericsson AB
+ * or in accordance with the terms and conditions stipulated in the agreement/contract under which the program(s) have been supplied.
+ */
+package com.ericsson.godzilla.cassandra.index;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads ES search responses hit by hit with a pull parser, the JSON tree of the hits is never
+ * built. Only the id, the score, the primary key and optionally the source of each hit are kept.
+ * Response metadata, like time spent or shards, is kept without the hits.
+ */
+class SearchResponseReader {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SearchResponseReader.class);
+  private static final JsonParser PARSER = new JsonParser();
+
+  static final String ES_HITS = "hits";
+  static final String ES_SOURCE = "_source";
+  static final String ES_ID = "_id";
+  static final String ES_SCORE = "_score";
+  static final String ES_SCROLL_ID = "_scroll_id";
+
+  private final List<String> primaryKeys;
+  private final Map<String, Integer> keyPositions = new HashMap<>();
+
+  /** @param primaryKeys names of the partition and clustering keys, in order */
+  SearchResponseReader(@Nonnull List<String> primaryKeys) {
+    this.primaryKeys = primaryKeys;
+    for (String keyName : primaryKeys) {
+      keyPositions.put(keyName, keyPositions.size());
+    }
+  }
+
+  /**
+   * @param json a search or scroll response
+   * @param loadSource true to keep the source of hits in their metadata
+   * @throws JsonParseException if the response is not valid JSON
+   */
+  @Nonnull
+  Page read(@Nonnull String json, boolean loadSource) {
+    Page page = new Page();
+    try (JsonReader reader = new JsonReader(new StringReader(json))) {
+      reader.beginObject();
+      while (reader.hasNext()) {
+        String name = reader.nextName();
+        if (ES_HITS.equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+          page.metadata.add(name, readHits(reader, page, loadSource));
+        } else if (ES_SCROLL_ID.equals(name) && reader.peek() == JsonToken.STRING) {
+          page.scrollId = reader.nextString();
+          page.metadata.addProperty(name, page.scrollId); // still returned in the metadata row
+        } else {
+          page.metadata.add(name, PARSER.parse(reader));
+        }
+      }
+      reader.endObject();
+    } catch (IOException e) {
+      throw new JsonParseException(e);
+    }
+    return page;
+  }
+
+  /** @return the hits object without the hits */
+  @Nonnull
+  private JsonObject readHits(@Nonnull JsonReader reader, @Nonnull Page page, boolean loadSource)
+      throws IOException {
+    JsonObject hitsMetadata = new JsonObject();
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String name = reader.nextName();
+      if (ES_HITS.equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+        reader.beginArray();
+        while (reader.hasNext()) {
+          page.hits++;
+          SearchResultRow row = readHit(reader, loadSource);
+          if (row != null) {
+            page.rows.add(row);
+          }
+        }
+        reader.endArray();
+      } else {
+        hitsMetadata.add(name, PARSER.parse(reader));
+      }
+    }
+    reader.endObject();
+    return hitsMetadata;
+  }
+
+  /** @return null if a primary key is missing from the hit */
+  @Nullable
+  private SearchResultRow readHit(@Nonnull JsonReader reader, boolean loadSource)
+      throws IOException {
+    JsonObject docMetadata = new JsonObject();
+    String[] primaryKey = new String[primaryKeys.size()];
+
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String name = reader.nextName();
+      if (ES_ID.equals(name) || ES_SCORE.equals(name)) {
+        docMetadata.add(name, PARSER.parse(reader));
+      } else if (ES_SOURCE.equals(name) && loadSource) {
+        JsonObject source = PARSER.parse(reader).getAsJsonObject();
+        for (int i = 0; i < primaryKey.length; i++) {
+          primaryKey[i] = JsonUtils.getString(source, primaryKeys.get(i));
+        }
+        docMetadata.add(name, source);
+      } else if (ES_SOURCE.equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+        readKeys(reader, primaryKey);
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+
+    for (int i = 0; i < primaryKey.length; i++) {
+      if (primaryKey[i] == null) {
+        LOGGER.warn(
+            "Missing pk {} from ES results, skipping hit:{}",
+            primaryKeys.get(i),
+            JsonUtils.getString(docMetadata, ES_ID));
+        return null;
+      }
+    }
+    return new SearchResultRow(primaryKey, docMetadata);
+  }
+
+  /** Read the primary key from the source, other fields are skipped */
+  private void readKeys(@Nonnull JsonReader reader, @Nonnull String[] primaryKey)
+      throws IOException {
+    reader.beginObject();
+    while (reader.hasNext()) {
+      Integer position = keyPositions.get(reader.nextName());
+      if (position == null) {
+        reader.skipValue();
+        continue;
+      }
+
+      switch (reader.peek()) {
+        case NULL:
+          reader.nextNull();
+          break;
+        case BOOLEAN:
+          primaryKey[position] = String.valueOf(reader.nextBoolean());
+          break;
+        case STRING:
+        case NUMBER:
+          primaryKey[position] = reader.nextString();
+          break;
+        default: // like a single value array
+          primaryKey[position] = PARSER.parse(reader).getAsString();
+      }
+    }
+    reader.endObject();
+  }
+
+  /** Hits and metadata of one response */
+  static class Page {
+    /** Hits with a primary key */
+    final List<SearchResultRow> rows = new ArrayList<>();
+    /** The response without the hits */
+    final JsonObject metadata = new JsonObject();
+    /** Number of hits in the response, including the ones that were skipped */
+    int hits;
+    /** Null if this is not a scroll search */
+    @Nullable String scrollId;
+  }
+}
@@ -6,20 +6,85 @@
  */
 package com.ericsson.godzilla.cassandra.index;
 
+import com.google.common.collect.AbstractIterator;
 import com.google.gson.JsonObject;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.util.Iterator;
 import java.util.List;
 
-public class SearchResult {
+/**
+ * Hits of an ES search. A streaming search only holds the hits of its first page, the next pages
+ * are fetched while iterating.
+ */
+public class SearchResult implements Iterable<SearchResultRow>, Closeable {
 
+  /** Hits of the first ES response */
   public final List<SearchResultRow> items;
   /** Global ES metadata, like time spent, shards etc ... */
   public final JsonObject metadata;
+  /** Null if all hits are in items */
+  @Nullable private final Pages nextPages;
 
   public SearchResult(@Nonnull List<SearchResultRow> items, @Nullable JsonObject metadata) {
+    this(items, metadata, null);
+  }
+
+  public SearchResult(
+      @Nonnull List<SearchResultRow> items,
+      @Nullable JsonObject metadata,
+      @Nullable Pages nextPages) {
     this.items = items;
     this.metadata = metadata;
+    this.nextPages = nextPages;
+  }
+
+  /**
+   * @return all hits, the next pages are fetched when the previous page was consumed. A streaming
+   *     search can only be iterated once.
+   */
+  @Override
+  @Nonnull
+  public Iterator<SearchResultRow> iterator() {
+    if (nextPages == null) {
+      return items.iterator();
+    }
+
+    return new AbstractIterator<SearchResultRow>() {
+      private Iterator<SearchResultRow> page = items.iterator();
+
+      @Override
+      protected SearchResultRow computeNext() {
+        while (!page.hasNext()) {
+          List<SearchResultRow> next = nextPages.next();
+          if (next.isEmpty()) {
+            return endOfData();
+          }
+          page = next.iterator();
+        }
+        return page.next();
+      }
+    };
+  }
+
+  /** Release the ES resources of a streaming search that was not fully read */
+  @Override
+  public void close() {
+    if (nextPages != null) {
+      nextPages.close();
+    }
+  }
+
+  /** Next pages of a streaming search */
+  public interface Pages extends Closeable {
+
+    /** @return hits of the next page, empty when there are no more hits */
+    @Nonnull
+    List<SearchResultRow> next();
+
+    @Override
+    void close();
   }
 }
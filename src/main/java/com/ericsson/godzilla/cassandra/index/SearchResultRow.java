@@ -7,6 +7,7 @@
 package com.ericsson.godzilla.cassandra.index;
 
 import com.google.gson.JsonObject;
+import org.apache.cassandra.db.Clustering;
 
 import javax.annotation.Nonnull;
 import java.nio.ByteBuffer;
@@ -22,6 +23,8 @@ public class SearchResultRow {
   public ByteBuffer partitionKey;
   /** Reconstructed Cassandra CLK */
   public String[] clusteringKeys;
+  /** Clustering of the row, null if the table has no clustering keys or if it can't be built */
+  public Clustering clustering;
 
   public SearchResultRow(@Nonnull String[] primaryKey, @Nonnull JsonObject docMetadata) {
     this.primaryKey = primaryKey;
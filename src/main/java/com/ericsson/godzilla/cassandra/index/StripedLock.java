@@ -0,0 +1,73 @@
+/*
+ * Copyright Ericsson AB 2019 - All Rights Reserved.
+ * The copyright to the computer program(s) herein is the property of Ericsson AB.
+ * The programs may be used and/or copied only with written permission from Ericsson AB
+ * or in accordance with the terms and conditions stipulated in the agreement/contract under which the program(s) have been supplied.
+ */
+package com.ericsson.godzilla.cassandra.index;
+
+import com.ericsson.godzilla.cassandra.index.monitor.EsIndexMetrics;
+
+import javax.annotation.Nonnull;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded table of locks, a document is mapped to a lock by the hash of its id. Two documents may
+ * share the same lock, the more stripes the less likely it is.
+ */
+class StripedLock {
+
+  private static final int MAX_STRIPES = 1 << 16;
+
+  private final ReentrantLock[] locks;
+  private final int mask;
+  private final EsIndexMetrics metrics;
+
+  /**
+   * @param stripes number of locks, rounded up to a power of two
+   * @param metrics contention is reported there
+   */
+  StripedLock(int stripes, @Nonnull EsIndexMetrics metrics) {
+    int size = size(stripes);
+    this.locks = new ReentrantLock[size];
+    for (int i = 0; i < size; i++) {
+      locks[i] = new ReentrantLock();
+    }
+    this.mask = size - 1;
+    this.metrics = metrics;
+  }
+
+  int size() {
+    return locks.length;
+  }
+
+  /** @return number of locks of a table created with this number of stripes */
+  static int size(int stripes) {
+    int size = 1;
+    while (size < stripes && size < MAX_STRIPES) {
+      size <<= 1;
+    }
+    return size;
+  }
+
+  /**
+   * Blocks until the lock of this hash is acquired
+   *
+   * @param hash hash of the document id
+   * @return the acquired lock, caller must unlock it
+   */
+  @Nonnull
+  Lock lock(int hash) {
+    ReentrantLock lock = locks[(hash ^ (hash >>> 16)) & mask];
+
+    if (lock.tryLock()) {
+      metrics.lockAcquired(0);
+    } else {
+      long start = System.nanoTime();
+      lock.lock();
+      metrics.lockAcquired(Math.max(1, System.nanoTime() - start));
+    }
+    return lock;
+  }
+}
@@ -0,0 +1,466 @@
+/*
+ * Copyright Ericsson AB 2019 - All Rights Reserved.
+ * The copyright to the computer program(s) herein is the property of Ericsson AB.
+ * The programs may be used and/or copied only with written permission from Ericsson AB
+ * or in accordance with the terms and conditions stipulated in the agreement/contract under which the program(s) have been supplied.
+ */
+package com.ericsson.godzilla.cassandra.index;
+
+import com.ericsson.godzilla.cassandra.index.CellElement.CollectionValue.CollectionType;
+import com.ericsson.godzilla.cassandra.index.requests.ResponseHandler;
+import io.searchbox.core.DocumentResult;
+import org.apache.cassandra.db.DecoratedKey;
+import org.apache.cassandra.utils.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Holds document updates for a short window so that many updates of the same document are sent
+ * to ES as a single one. Cells of a new update replace the pending cells of the same field, map and
+ * UDT entries are merged by key like ES does with partial documents.<br>
+ * Documents are sent in the order they were first updated, by the window thread only. A version of
+ * a document is only sent once the previous one is acknowledged, so two versions of a document are
+ * never in flight at once. Callers flushing the coalescer or adding to a full one wait for the
+ * window thread.
+ */
+class WriteCoalescer implements Closeable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(WriteCoalescer.class);
+  private static final int MAX_PENDING_DOCS = 10_000;
+
+  /** Sends one document to ES, room for it is already reserved in the in flight limiter */
+  @FunctionalInterface
+  interface DocumentWriter {
+    @Nonnull
+    ResponseHandler<DocumentResult> write(
+        @Nonnull List<Pair<String, String>> partitionKeys,
+        @Nonnull DecoratedKey decoratedKey,
+        @Nonnull String docId,
+        @Nonnull List<CellElement> elements,
+        long expirationTime,
+        boolean isInsert)
+        throws IOException;
+  }
+
+  private final String typeName;
+  private final long windowNanos;
+  private final Supplier<InFlightLimiter> limiters;
+  private final DocumentWriter writer;
+  private final ScheduledExecutorService scheduler;
+
+  // Guarded by this, in first update order
+  private final LinkedHashMap<String, PendingDoc> pending = new LinkedHashMap<>();
+  // Guarded by this, last version taken from pending of each document until it is acknowledged
+  private final Map<String, PendingDoc> inFlight = new HashMap<>();
+
+  /**
+   * @param typeName used for logging
+   * @param windowMs time a document waits for other updates, at least 1ms
+   * @param limiters the current in flight limiter, null for no bound
+   * @param writer sends the merged documents
+   */
+  WriteCoalescer(
+      @Nonnull String typeName,
+      long windowMs,
+      @Nonnull Supplier<InFlightLimiter> limiters,
+      @Nonnull DocumentWriter writer) {
+    this.typeName = typeName;
+    this.limiters = limiters;
+    this.writer = writer;
+    long window = Math.max(1, windowMs);
+    this.windowNanos = TimeUnit.MILLISECONDS.toNanos(window);
+    this.scheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            r -> {
+              Thread thread = new Thread(r, "EsCoalesce-" + typeName);
+              thread.setDaemon(true);
+              return thread;
+            });
+    scheduler.scheduleWithFixedDelay(this::sendExpired, window, window, TimeUnit.MILLISECONDS);
+    LOGGER.info("Write coalescing for {} started, window:{}ms", typeName, window);
+  }
+
+  /**
+   * Merge an update into the pending document with the same id. Room for a new document is
+   * reserved in the in flight limiter by the caller, the window thread never waits for it.
+   *
+   * @return the pending document, completed when the merged document has been sent
+   * @throws org.apache.cassandra.exceptions.OverloadedException if too many writes are in flight
+   */
+  @Nonnull
+  PendingDoc add(
+      @Nonnull List<Pair<String, String>> partitionKeys,
+      @Nonnull DecoratedKey decoratedKey,
+      @Nonnull String docId,
+      @Nonnull List<CellElement> elements,
+      long expirationTime,
+      boolean isInsert) {
+    PendingDoc doc = merge(docId, elements, expirationTime, isInsert, null);
+    if (doc == null) {
+      InFlightLimiter limiter = limiters.get();
+      int permits = limiter == null ? 0 : limiter.acquire(estimateSize(elements)); // may block
+      PendingDoc created = new PendingDoc(partitionKeys, decoratedKey, docId, limiter, permits);
+      doc = merge(docId, elements, expirationTime, isInsert, created);
+      if (doc != created) {
+        created.release(); // added by another writer meanwhile
+      }
+    }
+
+    if (isFull()) {
+      onWindowThread(this::sendExpired); // the oldest documents are sent, writers are slowed down
+    }
+    return doc;
+  }
+
+  /**
+   * @param created added if there is no pending document with this id, can be null
+   * @return the pending document the update was merged into, null if there was none to merge into
+   */
+  @Nullable
+  private synchronized PendingDoc merge(
+      @Nonnull String docId,
+      @Nonnull List<CellElement> elements,
+      long expirationTime,
+      boolean isInsert,
+      @Nullable PendingDoc created) {
+    PendingDoc doc = pending.get(docId);
+    if (doc == null) {
+      if (created == null) {
+        return null;
+      }
+      doc = created;
+      pending.put(docId, doc);
+    }
+    doc.merge(elements, expirationTime, isInsert);
+    return doc;
+  }
+
+  private synchronized boolean isFull() {
+    return pending.size() > MAX_PENDING_DOCS;
+  }
+
+  /** @return number of documents waiting for the end of their window */
+  synchronized int size() {
+    return pending.size();
+  }
+
+  /** @return payload size of the first update of a document, later updates are not counted */
+  private static int estimateSize(@Nonnull List<CellElement> elements) {
+    int size = 2;
+    for (CellElement element : elements) {
+      size += element.name.length() + 8;
+      if (element.value != null) {
+        size += element.value.length();
+      } else if (element.hasValue() || element.collectionValue != null) {
+        size += 16; // a cell or collection entry, its content is not converted yet
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Drop the pending updates of the documents of a partition that is about to be deleted, the
+   * partition document and those of its rows. Sent after the delete they would re-create them.
+   * Documents already sent are not dropped.
+   *
+   * @return the dropped documents, to complete with the delete
+   */
+  @Nonnull
+  List<PendingDoc> discard(@Nonnull DecoratedKey decoratedKey) {
+    List<PendingDoc> discarded = new ArrayList<>(1);
+    onWindowThread(
+        () -> {
+          synchronized (this) {
+            Iterator<PendingDoc> it = pending.values().iterator();
+            while (it.hasNext()) {
+              PendingDoc doc = it.next();
+              if (doc.decoratedKey.equals(decoratedKey)) {
+                it.remove();
+                discarded.add(doc);
+              }
+            }
+            for (PendingDoc doc : inFlight.values()) { // waiting for their previous version
+              if (!doc.sent && !doc.discarded && doc.decoratedKey.equals(decoratedKey)) {
+                doc.discarded = true;
+                discarded.add(doc);
+              }
+            }
+          }
+        });
+    return discarded;
+  }
+
+  /**
+   * Send all pending documents now, blocks until they are sent. Documents waiting for the
+   * acknowledgment of their previous version are waited for.
+   */
+  void flush() {
+    onWindowThread(this::sendAll);
+    List<PendingDoc> waiting;
+    synchronized (this) {
+      waiting = new ArrayList<>(inFlight.values());
+    }
+    for (PendingDoc doc : waiting) {
+      doc.sentOrDropped().join();
+    }
+  }
+
+  /** Send pending documents and stop the window thread */
+  @Override
+  public void close() {
+    flush();
+    scheduler.shutdown();
+  }
+
+  /**
+   * Run a task on the window thread and wait for it, or on the caller thread once the coalescer is
+   * closed and its window thread is done
+   */
+  private void onWindowThread(@Nonnull Runnable task) {
+    try {
+      scheduler.submit(task).get();
+      return;
+    } catch (RejectedExecutionException e) {
+      LOGGER.debug("Coalescer of {} is closed", typeName);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return; // the task still runs
+    } catch (ExecutionException e) {
+      LOGGER.error("Coalescer task of {} failed", typeName, e.getCause());
+      return;
+    }
+
+    try {
+      scheduler.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    }
+    task.run();
+  }
+
+  private void sendAll() {
+    List<PendingDoc> toSend;
+    synchronized (this) {
+      toSend = drain(true);
+    }
+    send(toSend);
+  }
+
+  private void sendExpired() {
+    List<PendingDoc> toSend;
+    synchronized (this) {
+      toSend = drain(false);
+    }
+    send(toSend);
+  }
+
+  // Must hold this
+  @Nonnull
+  private List<PendingDoc> drain(boolean all) {
+    List<PendingDoc> drained = new ArrayList<>();
+    long now = System.nanoTime();
+    Iterator<PendingDoc> it = pending.values().iterator();
+
+    while (it.hasNext()) {
+      PendingDoc doc = it.next();
+      if (!all && now - doc.firstUpdateNanos < windowNanos && pending.size() <= MAX_PENDING_DOCS) {
+        break; // next ones are younger
+      }
+      drained.add(doc);
+      it.remove();
+    }
+    return drained;
+  }
+
+  /** A document is sent after its previous version is acknowledged, in its window thread turn */
+  private void send(@Nonnull List<PendingDoc> docs) {
+    for (PendingDoc doc : docs) {
+      PendingDoc previous;
+      synchronized (this) {
+        previous = inFlight.put(doc.docId, doc);
+      }
+      doc.acknowledged()
+          .whenComplete(
+              (done, error) -> {
+                synchronized (this) {
+                  inFlight.remove(doc.docId, doc);
+                }
+              });
+      if (previous == null) {
+        write(doc);
+      } else {
+        previous.acknowledged().whenComplete((done, error) -> later(() -> write(doc)));
+      }
+    }
+  }
+
+  /** Run a task on the window thread, or on the caller thread once the coalescer is closed */
+  private void later(@Nonnull Runnable task) {
+    try {
+      scheduler.execute(task);
+    } catch (RejectedExecutionException e) {
+      task.run();
+    }
+  }
+
+  private void write(@Nonnull PendingDoc doc) {
+    synchronized (this) {
+      if (doc.discarded) {
+        return; // completed with the delete that replaced it
+      }
+      doc.sent = true;
+    }
+    try {
+      ResponseHandler<DocumentResult> handler =
+          writer.write(
+              doc.partitionKeys,
+              doc.decoratedKey,
+              doc.docId,
+              doc.elements,
+              doc.expirationTime,
+              doc.isInsert);
+      handler.toFuture().whenComplete((result, error) -> doc.release());
+      doc.result.complete(handler);
+    } catch (IOException | RuntimeException e) {
+      LOGGER.error("Can't send document {} of {}", doc.docId, typeName, e);
+      doc.release();
+      doc.result.completeExceptionally(e);
+    }
+  }
+
+  /** Cells of one document waiting to be sent */
+  static class PendingDoc {
+    private final List<Pair<String, String>> partitionKeys;
+    private final DecoratedKey decoratedKey;
+    private final String docId;
+    private final InFlightLimiter limiter;
+    private final int permits;
+    private final long firstUpdateNanos = System.nanoTime();
+    private final List<CellElement> elements = new ArrayList<>();
+    private final CompletableFuture<ResponseHandler<DocumentResult>> result =
+        new CompletableFuture<>();
+    private long expirationTime;
+    private boolean isInsert;
+    private int updates;
+    private boolean sent; // guarded by the coalescer lock
+    private boolean discarded; // guarded by the coalescer lock, by a delete before it was sent
+
+    private PendingDoc(
+        List<Pair<String, String>> partitionKeys,
+        DecoratedKey decoratedKey,
+        String docId,
+        @Nullable InFlightLimiter limiter,
+        int permits) {
+      this.partitionKeys = partitionKeys;
+      this.decoratedKey = decoratedKey;
+      this.docId = docId;
+      this.limiter = limiter;
+      this.permits = permits;
+    }
+
+    /** Give back the room reserved in the in flight limiter, once the document is done with */
+    private void release() {
+      if (limiter != null) {
+        limiter.release(permits);
+      }
+    }
+
+    // Must hold the coalescer lock
+    private void merge(List<CellElement> newElements, long newExpirationTime, boolean newIsInsert) {
+      if (updates++ > 0) {
+        Set<String> replaced = new HashSet<>();
+        Set<String> merged = new HashSet<>();
+        for (CellElement element : newElements) {
+          (isMergeable(element) ? merged : replaced).add(element.name);
+        }
+        // A field that is not an object is replaced as a whole, objects are merged by key
+        elements.removeIf(
+            e -> replaced.contains(e.name) || (merged.contains(e.name) && !isMergeable(e)));
+      }
+      elements.addAll(newElements);
+      expirationTime = newExpirationTime;
+      isInsert = newIsInsert;
+    }
+
+    private static boolean isMergeable(CellElement element) {
+      if (element.collectionValue == null) {
+        return false;
+      }
+      CollectionType type = element.collectionValue.type;
+      return type == CollectionType.MAP || type == CollectionType.JSON;
+    }
+
+    /** Complete a dropped document with the outcome of the delete that replaced it */
+    void supersede(@Nonnull ResponseHandler<DocumentResult> delete) {
+      release();
+      result.complete(delete);
+    }
+
+    /** @return a future completed once the document is sent or replaced by a delete */
+    @Nonnull
+    private CompletableFuture<Void> sentOrDropped() {
+      return result.handle((handler, error) -> null);
+    }
+
+    /** @return a future completed once the document is acknowledged, whatever the outcome */
+    @Nonnull
+    private CompletableFuture<Void> acknowledged() {
+      return result
+          .thenCompose(ResponseHandler::toFuture)
+          .handle((documentResult, error) -> null);
+    }
+
+    /**
+     * Not blocking
+     *
+     * @return a future completed once the merged document is acknowledged, failed if it is lost
+     */
+    @Nonnull
+    CompletableFuture<DocumentResult> outcome() {
+      return result.thenCompose(ResponseHandler::toSuccessFuture);
+    }
+
+    /**
+     * Blocks until the merged document has been sent and acknowledged
+     *
+     * @throws IOException if the document could not be serialized
+     */
+    void waitForSuccess() throws IOException {
+      ResponseHandler<DocumentResult> handler;
+      try {
+        handler = result.join();
+      } catch (CompletionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+          throw (IOException) cause;
+        } else if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        }
+        throw e;
+      }
+      handler.waitForSuccess();
+    }
+  }
+}
@@ -105,6 +105,9 @@ public interface IndexConfig {
   String ES_PREVENT_CONCURRENT_UPDATES = "concurrent-lock";
   boolean ES_PREVENT_CONCURRENT_UPDATES_DEF = true;
 
+  String ES_CONCURRENT_LOCK_STRIPES = "concurrent-lock-stripes";
+  int ES_CONCURRENT_LOCK_STRIPES_DEF = 1024;
+
   String ES_SKIP_LOG_REPLAY = "skip-log-replay";
   boolean ES_SKIP_LOG_REPLAY_DEF = true;
 
@@ -163,6 +166,78 @@ public interface IndexConfig {
   String ES_RETRY_ON_CONFLICT = "retry-on-conflict";
   int ES_RETRY_ON_CONFLICT_DEF = 5;
 
+  String ES_BULK_WRITE = "bulk-write";
+  boolean ES_BULK_WRITE_DEF = false;
+
+  String ES_BULK_MAX_ACTIONS = "bulk-max-actions";
+  int ES_BULK_MAX_ACTIONS_DEF = 1000;
+
+  String ES_BULK_MAX_BYTES = "bulk-max-bytes";
+  int ES_BULK_MAX_BYTES_DEF = 5 * 1024 * 1024;
+
+  String ES_BULK_LINGER = "bulk-linger";
+  int ES_BULK_LINGER_DEF = 10; // ms
+
+  String ES_COALESCE_WINDOW = "coalesce-window";
+  int ES_COALESCE_WINDOW_DEF = 0; // ms, disabled
+
+  String ES_REBUILD_THREADS = "rebuild-threads";
+  int ES_REBUILD_THREADS_DEF = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+  String ES_REBUILD_CHECKPOINT_INTERVAL = "rebuild-checkpoint-interval";
+  int ES_REBUILD_CHECKPOINT_INTERVAL_DEF = 60; // seconds
+
+  String ES_READ_BATCH_SIZE = "read-batch-size";
+  int ES_READ_BATCH_SIZE_DEF = 1;
+
+  String ES_READ_AHEAD = "read-ahead";
+  int ES_READ_AHEAD_DEF = 0; // disabled
+
+  String ES_READ_AHEAD_BYTES = "read-ahead-bytes";
+  int ES_READ_AHEAD_BYTES_DEF = 16 * 1024 * 1024;
+
+  String ES_PARTITION_KEY_CACHE_SIZE = "partition-key-cache-size";
+  int ES_PARTITION_KEY_CACHE_SIZE_DEF = 0; // disabled
+
+  String ES_MAX_IN_FLIGHT_WRITES = "max-in-flight-writes";
+  int ES_MAX_IN_FLIGHT_WRITES_DEF = 10000; // 0 to disable
+
+  String ES_MAX_IN_FLIGHT_BYTES = "max-in-flight-bytes";
+  int ES_MAX_IN_FLIGHT_BYTES_DEF = 64 * 1024 * 1024;
+
+  String ES_IN_FLIGHT_POLICY = "in-flight-policy";
+  String ES_IN_FLIGHT_POLICY_DEF = "BLOCK";
+
+  String ES_WRITE_QUEUE = "write-queue";
+  boolean ES_WRITE_QUEUE_DEF = false;
+
+  String ES_WRITE_QUEUE_MAX_BYTES = "write-queue-max-bytes";
+  int ES_WRITE_QUEUE_MAX_BYTES_DEF = 1024 * 1024 * 1024;
+
+  String ES_CIRCUIT_BREAKER = "circuit-breaker";
+  boolean ES_CIRCUIT_BREAKER_DEF = false;
+
+  String ES_CIRCUIT_BREAKER_FAILURE_RATE = "circuit-breaker-failure-rate";
+  int ES_CIRCUIT_BREAKER_FAILURE_RATE_DEF = 50; // percent
+
+  String ES_CIRCUIT_BREAKER_SLOW_CALL_MS = "circuit-breaker-slow-call-ms";
+  int ES_CIRCUIT_BREAKER_SLOW_CALL_MS_DEF = 1000; // 0 to disable
+
+  String ES_CIRCUIT_BREAKER_MIN_REQUESTS = "circuit-breaker-min-requests";
+  int ES_CIRCUIT_BREAKER_MIN_REQUESTS_DEF = 20;
+
+  String ES_CIRCUIT_BREAKER_PROBE_MS = "circuit-breaker-probe-ms";
+  int ES_CIRCUIT_BREAKER_PROBE_MS_DEF = 5000;
+
+  String ES_INDEXER_ELECTION = "indexer-election";
+  String ES_INDEXER_ELECTION_DEF = "FIRST";
+
+  String ES_SEARCH_CACHE_BYTES = "search-cache-bytes";
+  int ES_SEARCH_CACHE_BYTES_DEF = 0;
+
+  String ES_SEARCH_CACHE_TTL_MS = "search-cache-ttl-ms";
+  int ES_SEARCH_CACHE_TTL_MS_DEF = 1000;
+
   @Nonnull
   Set<String> getPipelines();
 
@@ -252,6 +327,9 @@ public interface IndexConfig {
   /** @return prevent concurrent updates on the same PK for the same type */
   boolean isConcurrentLock();
 
+  /** @return number of locks shared by all documents when concurrent-lock is enabled */
+  int getConcurrentLockStripes();
+
   /** @return true for analytics mode where we disable delete operation */
   boolean isAnalyticMode();
 
@@ -299,6 +377,98 @@ public interface IndexConfig {
   /** For updates only */
   int getRetryOnConflict();
 
+  /** @return send index updates and deletes through ES _bulk requests */
+  boolean isBulkWrite();
+
+  /** @return a bulk is sent when it contains this number of actions */
+  int getBulkMaxActions();
+
+  /** @return a bulk is sent when its payload reaches this size in bytes */
+  int getBulkMaxBytes();
+
+  /** @return in milliseconds, a bulk is sent when its oldest action waited that long */
+  int getBulkLinger();
+
+  /** @return in milliseconds, updates of the same document within this window are merged, 0 to disable */
+  int getCoalesceWindow();
+
+  /** @return number of threads reading SSTables when the index is rebuilt */
+  int getRebuildThreads();
+
+  /** @return in seconds, how often the progress of a rebuild is saved */
+  int getRebuildCheckpointInterval();
+
+  /** @return number of partitions read together when loading the rows of search results */
+  int getReadBatchSize();
+
+  /** @return number of batches of search result rows read in the background, 0 to disable */
+  int getReadAhead();
+
+  /** @return max size of search result rows read in the background and not returned yet */
+  int getReadAheadBytes();
+
+  /** @return number of recently decoded partition keys kept for updates, 0 to disable */
+  int getPartitionKeyCacheSize();
+
+  /** @return max number of document writes not acknowledged by ES, 0 for no limit */
+  int getMaxInFlightWrites();
+
+  /** @return max payload bytes of the document writes not acknowledged by ES */
+  int getMaxInFlightBytes();
+
+  /** @return what to do with writes when max in flight writes or bytes are reached */
+  @Nonnull
+  InFlightPolicy getInFlightPolicy();
+
+  /** @return true if failed document writes are queued on disk and replayed later */
+  boolean isWriteQueue();
+
+  /** @return max size in bytes of the queue of failed writes */
+  int getWriteQueueMaxBytes();
+
+  /** @return true if requests are no longer sent to ES while it fails */
+  boolean isCircuitBreaker();
+
+  /** @return percentage of failed or slow requests that opens the circuit breaker */
+  int getCircuitBreakerFailureRate();
+
+  /** @return requests answered after this time count as failed, 0 to disable */
+  int getCircuitBreakerSlowCallMs();
+
+  /** @return min number of requests in 10s before the circuit breaker can open */
+  int getCircuitBreakerMinRequests();
+
+  /** @return delay between ES health probes while the circuit breaker is open */
+  int getCircuitBreakerProbeMs();
+
+  /** @return how the replica indexing a token is elected with skip-non-local-updates */
+  @Nonnull
+  IndexerElection getIndexerElection();
+
+  /** @return max estimated size in bytes of the cached search hits, 0 to disable the cache */
+  int getSearchCacheBytes();
+
+  /** @return time a cached search is returned, it should not exceed the ES refresh interval */
+  int getSearchCacheTtlMs();
+
+  /** What happens to a write when too many writes are in flight */
+  enum InFlightPolicy {
+    /** wait for in flight writes to complete, up to the Cassandra write timeout, then fail */
+    BLOCK,
+    /** fail immediately */
+    FAIL
+  }
+
+  /** Which live replica of the local datacenter indexes a token */
+  enum IndexerElection {
+    /** the first replica of the token range, in the order of the replication strategy */
+    FIRST,
+    /** a replica picked by a hash of the token, spreads the writes over all replicas */
+    TOKEN_HASH,
+    /** a rack picked by a hash of the token, then the first replica of this rack */
+    RACK_AWARE
+  }
+
   /** HOUR is for testing purposes only!!! Not for production usage */
   enum Segment {
     OFF,
@@ -16,6 +16,7 @@ import org.apache.cassandra.exceptions.ConfigurationException;
 
 import javax.annotation.Nonnull;
 import java.util.HashSet;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
@@ -245,6 +246,11 @@ public class IndexConfiguration implements IndexConfig {
     return reader.getBoolean(ES_PREVENT_CONCURRENT_UPDATES, ES_PREVENT_CONCURRENT_UPDATES_DEF);
   }
 
+  @Override
+  public int getConcurrentLockStripes() {
+    return reader.getInteger(ES_CONCURRENT_LOCK_STRIPES, ES_CONCURRENT_LOCK_STRIPES_DEF);
+  }
+
   @Override
   public String getIndexManagerName() {
     return reader.getString(ES_INDEX_MANAGEMENT, ES_INDEX_MANAGEMENT_DEF);
@@ -264,4 +270,128 @@ public class IndexConfiguration implements IndexConfig {
   public int getRetryOnConflict() {
     return reader.getInteger(ES_RETRY_ON_CONFLICT, ES_RETRY_ON_CONFLICT_DEF);
   }
+
+  @Override
+  public boolean isBulkWrite() {
+    return reader.getBoolean(ES_BULK_WRITE, ES_BULK_WRITE_DEF);
+  }
+
+  @Override
+  public int getBulkMaxActions() {
+    return reader.getInteger(ES_BULK_MAX_ACTIONS, ES_BULK_MAX_ACTIONS_DEF);
+  }
+
+  @Override
+  public int getBulkMaxBytes() {
+    return reader.getInteger(ES_BULK_MAX_BYTES, ES_BULK_MAX_BYTES_DEF);
+  }
+
+  @Override
+  public int getBulkLinger() {
+    return reader.getInteger(ES_BULK_LINGER, ES_BULK_LINGER_DEF);
+  }
+
+  @Override
+  public int getCoalesceWindow() {
+    return reader.getInteger(ES_COALESCE_WINDOW, ES_COALESCE_WINDOW_DEF);
+  }
+
+  @Override
+  public int getRebuildThreads() {
+    return reader.getInteger(ES_REBUILD_THREADS, ES_REBUILD_THREADS_DEF);
+  }
+
+  @Override
+  public int getRebuildCheckpointInterval() {
+    return reader.getInteger(ES_REBUILD_CHECKPOINT_INTERVAL, ES_REBUILD_CHECKPOINT_INTERVAL_DEF);
+  }
+
+  @Override
+  public int getReadBatchSize() {
+    return reader.getInteger(ES_READ_BATCH_SIZE, ES_READ_BATCH_SIZE_DEF);
+  }
+
+  @Override
+  public int getReadAhead() {
+    return reader.getInteger(ES_READ_AHEAD, ES_READ_AHEAD_DEF);
+  }
+
+  @Override
+  public int getReadAheadBytes() {
+    return reader.getInteger(ES_READ_AHEAD_BYTES, ES_READ_AHEAD_BYTES_DEF);
+  }
+
+  @Override
+  public int getPartitionKeyCacheSize() {
+    return reader.getInteger(ES_PARTITION_KEY_CACHE_SIZE, ES_PARTITION_KEY_CACHE_SIZE_DEF);
+  }
+
+  @Override
+  public int getMaxInFlightWrites() {
+    return reader.getInteger(ES_MAX_IN_FLIGHT_WRITES, ES_MAX_IN_FLIGHT_WRITES_DEF);
+  }
+
+  @Override
+  public int getMaxInFlightBytes() {
+    return reader.getInteger(ES_MAX_IN_FLIGHT_BYTES, ES_MAX_IN_FLIGHT_BYTES_DEF);
+  }
+
+  @Override
+  @Nonnull
+  public InFlightPolicy getInFlightPolicy() {
+    return InFlightPolicy.valueOf(
+        reader.getString(ES_IN_FLIGHT_POLICY, ES_IN_FLIGHT_POLICY_DEF).toUpperCase(Locale.ROOT));
+  }
+
+  @Override
+  public boolean isWriteQueue() {
+    return reader.getBoolean(ES_WRITE_QUEUE, ES_WRITE_QUEUE_DEF);
+  }
+
+  @Override
+  public int getWriteQueueMaxBytes() {
+    return reader.getInteger(ES_WRITE_QUEUE_MAX_BYTES, ES_WRITE_QUEUE_MAX_BYTES_DEF);
+  }
+
+  @Override
+  public boolean isCircuitBreaker() {
+    return reader.getBoolean(ES_CIRCUIT_BREAKER, ES_CIRCUIT_BREAKER_DEF);
+  }
+
+  @Override
+  public int getCircuitBreakerFailureRate() {
+    return reader.getInteger(ES_CIRCUIT_BREAKER_FAILURE_RATE, ES_CIRCUIT_BREAKER_FAILURE_RATE_DEF);
+  }
+
+  @Override
+  public int getCircuitBreakerSlowCallMs() {
+    return reader.getInteger(ES_CIRCUIT_BREAKER_SLOW_CALL_MS, ES_CIRCUIT_BREAKER_SLOW_CALL_MS_DEF);
+  }
+
+  @Override
+  public int getCircuitBreakerMinRequests() {
+    return reader.getInteger(ES_CIRCUIT_BREAKER_MIN_REQUESTS, ES_CIRCUIT_BREAKER_MIN_REQUESTS_DEF);
+  }
+
+  @Override
+  public int getCircuitBreakerProbeMs() {
+    return reader.getInteger(ES_CIRCUIT_BREAKER_PROBE_MS, ES_CIRCUIT_BREAKER_PROBE_MS_DEF);
+  }
+
+  @Override
+  @Nonnull
+  public IndexerElection getIndexerElection() {
+    return IndexerElection.valueOf(
+        reader.getString(ES_INDEXER_ELECTION, ES_INDEXER_ELECTION_DEF).toUpperCase(Locale.ROOT));
+  }
+
+  @Override
+  public int getSearchCacheBytes() {
+    return reader.getInteger(ES_SEARCH_CACHE_BYTES, ES_SEARCH_CACHE_BYTES_DEF);
+  }
+
+  @Override
+  public int getSearchCacheTtlMs() {
+    return reader.getInteger(ES_SEARCH_CACHE_TTL_MS, ES_SEARCH_CACHE_TTL_MS_DEF);
+  }
 }
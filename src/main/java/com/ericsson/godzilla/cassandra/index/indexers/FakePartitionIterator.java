@@ -23,16 +23,23 @@ import java.util.Iterator;
 /** This iterator does not load data from Cassandra and will only return PKs and ES metadata */
 public class FakePartitionIterator implements UnfilteredPartitionIterator {
 
+  private final SearchResult searchResult;
   private final Iterator<SearchResultRow> esResultIterator;
   private final ColumnFamilyStore baseCfs;
   private final ReadCommand command;
   private final String searchId;
   private final PartitionColumns returnedColumns;
 
+  /** @param hits of the search result to return */
   public FakePartitionIterator(
-      EsSecondaryIndex index, SearchResult searchResult, ReadCommand command, String searchId) {
+      EsSecondaryIndex index,
+      SearchResult searchResult,
+      Iterator<SearchResultRow> hits,
+      ReadCommand command,
+      String searchId) {
     this.baseCfs = index.baseCfs;
-    this.esResultIterator = searchResult.items.iterator();
+    this.searchResult = searchResult;
+    this.esResultIterator = hits;
     this.command = command;
     this.searchId = searchId;
     this.returnedColumns = PartitionColumns.builder().build();
@@ -51,6 +58,7 @@ public class FakePartitionIterator implements UnfilteredPartitionIterator {
 
   @Override
   public void close() {
+    searchResult.close();
     Tracing.trace("ESI {} FakePartitionIterator closed", searchId);
   }
 
@@ -65,14 +73,14 @@ public class FakePartitionIterator implements UnfilteredPartitionIterator {
       return null;
     }
 
+    SearchResultRow esResult = esResultIterator.next();
+
     // Build the minimum row
     Row.Builder rowBuilder = BTreeRow.unsortedBuilder(FBUtilities.nowInSeconds());
-    rowBuilder.newRow(Clustering.EMPTY); // FIXME support for clustering
+    rowBuilder.newRow(esResult.clustering == null ? Clustering.EMPTY : esResult.clustering);
     rowBuilder.addPrimaryKeyLivenessInfo(LivenessInfo.EMPTY);
     rowBuilder.addRowDeletion(Row.Deletion.LIVE);
 
-    SearchResultRow esResult = esResultIterator.next();
-
     // And PK value
     DecoratedKey partitionKey = baseCfs.getPartitioner().decorateKey(esResult.partitionKey);
     return new SingleRowIterator(
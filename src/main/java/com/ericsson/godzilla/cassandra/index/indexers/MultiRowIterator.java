@@ -0,0 +1,36 @@
+/*
+ * Copyright Ericsson AB 2019 - All Rights Reserved.
+ * The copyright to the computer program(s) herein is the property of Ericsson AB.
+ * The programs may be used and/or copied only with written permission from Ericsson AB
+ * or in accordance with the terms and conditions stipulated in the agreement/contract under which the program(s) have been supplied.
+ */
+package com.ericsson.godzilla.cassandra.index.indexers;
+
+import org.apache.cassandra.db.DeletionTime;
+import org.apache.cassandra.db.rows.*;
+
+import java.util.Iterator;
+import java.util.List;
+
+/** Returns rows of a partition that were already read, in the partition order */
+public class MultiRowIterator extends AbstractUnfilteredRowIterator {
+
+  private final Iterator<Row> rows;
+
+  public MultiRowIterator(RowIterator partition, List<Row> rows) {
+    super(
+        partition.metadata(),
+        partition.partitionKey(),
+        DeletionTime.LIVE,
+        partition.columns(),
+        partition.staticRow(),
+        partition.isReverseOrder(),
+        EncodingStats.NO_STATS);
+    this.rows = rows.iterator();
+  }
+
+  @Override
+  protected synchronized Unfiltered computeNext() {
+    return rows.hasNext() ? rows.next() : endOfData();
+  }
+}
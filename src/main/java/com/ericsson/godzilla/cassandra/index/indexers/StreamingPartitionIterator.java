@@ -9,9 +9,10 @@ package com.ericsson.godzilla.cassandra.index.indexers;
 import com.ericsson.godzilla.cassandra.index.EsSecondaryIndex;
 import com.ericsson.godzilla.cassandra.index.SearchResult;
 import com.ericsson.godzilla.cassandra.index.SearchResultRow;
-import com.google.gson.JsonObject;
 import org.apache.cassandra.config.CFMetaData;
 import org.apache.cassandra.db.*;
+import org.apache.cassandra.db.filter.ClusteringIndexFilter;
+import org.apache.cassandra.db.filter.ClusteringIndexNamesFilter;
 import org.apache.cassandra.db.filter.DataLimits;
 import org.apache.cassandra.db.filter.RowFilter;
 import org.apache.cassandra.db.partitions.PartitionIterator;
@@ -26,38 +27,106 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.charset.CharacterCodingException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * This a partition iterator that will read a row each time next() is called, should be the lightest
- * on resources but maybe the slowest.<br>
- * This is the equivalent of the sync read mode
+ * This a partition iterator that will read rows when next() is called, should be the lightest on
+ * resources but maybe the slowest.<br>
+ * This is the equivalent of the sync read mode. Partitions of the next read-batch-size ES hits are
+ * read with a single multi-partition read, in parallel, and returned in ES hits order. Hits of the
+ * same partition are returned together, only their rows are read.
+ * <br>
+ * With read-ahead, the next batches are read in the background while previous rows are being
+ * returned, as long as the rows read ahead fit in read-ahead-bytes. Batches that the read ahead
+ * executor of the index can't take yet are read when they are returned.
  *
  * <p>Created by Jacques-Henri Berthemet on 11/07/2017.
  */
 public class StreamingPartitionIterator implements UnfilteredPartitionIterator {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(StreamingPartitionIterator.class);
+  private static final int READ_AHEAD_QUEUE_PER_THREAD = 4; // batches
 
+  private final SearchResult searchResult;
   private final Iterator<SearchResultRow> esResultIterator;
   private final ColumnFamilyStore baseCfs;
   private final PartitionRangeReadCommand command;
   private final String searchId;
   private final ConsistencyLevel consistencyLevel;
+  private final int batchSize;
+  private final int readAhead;
+  private final long readAheadBytes;
+  private final ExecutorService readAheadExecutor;
+  private final Deque<LoadedPartition> loaded = new ArrayDeque<>();
+  private final Deque<FutureTask<List<LoadedPartition>>> reading = new ArrayDeque<>(); // hits order
+  private final AtomicLong loadedBytes = new AtomicLong(); // read and not returned yet
 
+  /** @param hits of the search result to return, the next ES pages are read as needed */
   public StreamingPartitionIterator(
       EsSecondaryIndex index,
       SearchResult searchResult,
+      Iterator<SearchResultRow> hits,
       PartitionRangeReadCommand command,
       String searchId) {
     this.baseCfs = index.baseCfs;
-    this.esResultIterator = searchResult.items.iterator();
+    this.searchResult = searchResult;
+    this.esResultIterator = hits;
     this.command = command;
     this.searchId = searchId;
     this.consistencyLevel = index.getReadConsistency();
+    this.batchSize = Math.max(1, index.getReadBatchSize());
+    this.readAhead = Math.max(0, index.getReadAhead());
+    this.readAheadBytes = index.getReadAheadBytes();
+    this.readAheadExecutor = index.getReadAheadExecutor();
     Tracing.trace("ESI {} StreamingPartitionIterator initialized", searchId);
   }
 
+  /**
+   * @param tableName name of the table of the index
+   * @return the read ahead executor of an index, one thread per core and a few batches queued per
+   *     thread, idle threads are stopped
+   */
+  public static ExecutorService newReadAheadExecutor(String tableName) {
+    int threads = Runtime.getRuntime().availableProcessors();
+    AtomicInteger threadId = new AtomicInteger();
+    ThreadPoolExecutor executor =
+        new ThreadPoolExecutor(
+            threads,
+            threads,
+            60,
+            TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(threads * READ_AHEAD_QUEUE_PER_THREAD),
+            r -> {
+              Thread thread =
+                  new Thread(r, "EsReadAhead-" + tableName + "-" + threadId.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            });
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
   @Override
   public boolean isForThrift() {
     return command.isForThrift();
@@ -70,69 +139,181 @@ public class StreamingPartitionIterator implements UnfilteredPartitionIterator {
 
   @Override
   public void close() {
+    for (FutureTask<List<LoadedPartition>> task : reading) {
+      task.cancel(false); // reads are not interrupted, their rows are dropped
+    }
+    reading.clear();
+    loaded.clear();
+    searchResult.close();
     Tracing.trace("ESI {} StreamingPartitionIterator closed", searchId);
   }
 
   @Override
   public boolean hasNext() {
-    return esResultIterator.hasNext();
+    return !loaded.isEmpty() || !reading.isEmpty() || esResultIterator.hasNext();
   }
 
   @Override
   public UnfilteredRowIterator next() {
-    JsonObject jsonMetadata = null;
-    RowIterator rowIterator = null;
-    Row row = null;
-
-    while (esResultIterator.hasNext() && row == null) {
-      SearchResultRow esResult = esResultIterator.next();
-      jsonMetadata = esResult.docMetadata;
-      DecoratedKey partitionKey = baseCfs.getPartitioner().decorateKey(esResult.partitionKey);
-
-      SinglePartitionReadCommand readCommand =
-          SinglePartitionReadCommand.create(
-              isForThrift(),
-              baseCfs.metadata,
-              command.nowInSec(),
-              command.columnFilter(), // columns that will be returned
-              RowFilter
-                  .NONE, // don't filter anything, as we pass token(id) it may prevent loading non
-                         // local rows
-              DataLimits
-                  .NONE, // don't use command DataLimits because we are only loading one partition
-              partitionKey,
-              command.clusteringIndexFilter(partitionKey));
-
-      // Cassandra has below method but not DSE:
-      // PartitionIterator partition = readCommand.execute(consistencyLevel,
-      // ClientState.forInternalCalls(), System.nanoTime());
-      // WCC-1131 Call directly this method for it is available both in open-source cassandra and in
-      // Datastax Enterprise
-      PartitionIterator partition =
-          StorageProxy.read(
-              SinglePartitionReadCommand.Group.one(readCommand),
-              consistencyLevel,
-              System.nanoTime());
-
-      if (!partition.hasNext()) {
-        logRowNotFound(partitionKey);
-        continue;
+    while (loaded.isEmpty() && (!reading.isEmpty() || esResultIterator.hasNext())) {
+      loaded.addAll(reading.isEmpty() ? read(nextBatch()) : waitFor(reading.poll()));
+      startReadAhead();
+    }
+
+    LoadedPartition partition = loaded.poll();
+    if (partition == null) { // if all ES results were expired
+      return null;
+    }
+    loadedBytes.addAndGet(-partition.size);
+    return partition.iterator;
+  }
+
+  /** Start reading the next batches in the background, within the read ahead limits */
+  private void startReadAhead() {
+    while (reading.size() < readAhead
+        && loadedBytes.get() < readAheadBytes
+        && esResultIterator.hasNext()) {
+      List<SearchResultRow> hits = nextBatch();
+      FutureTask<List<LoadedPartition>> task = new FutureTask<>(() -> read(hits));
+      try {
+        readAheadExecutor.execute(task);
+      } catch (RejectedExecutionException e) { // executor busy or index dropped
+        Tracing.trace("ESI {} read ahead rejected, batch read when needed", searchId);
       }
+      reading.add(task);
+    }
+  }
 
-      rowIterator = partition.next();
-      if (!rowIterator.hasNext()) {
-        logRowNotFound(partitionKey);
-        continue;
+  private List<LoadedPartition> waitFor(FutureTask<List<LoadedPartition>> task) {
+    task.run(); // read here if the executor did not start it yet, no-op otherwise
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause(); // like timeouts, as if the read was done here
       }
+      throw new RuntimeException(e.getCause());
+    }
+  }
 
-      row = rowIterator.next(); // FIXME clustered partitions will contain several rows
+  /** @return the next ES hits */
+  private List<SearchResultRow> nextBatch() {
+    List<SearchResultRow> hits = new ArrayList<>(batchSize);
+    while (esResultIterator.hasNext() && hits.size() < batchSize) {
+      hits.add(esResultIterator.next());
     }
+    return hits;
+  }
 
-    if (row == null) { // if all ES results were expired
-      return null;
+  /**
+   * Read the partitions of ES hits, can be called from any thread.<br>
+   * Hits are grouped by partition, only the matched rows of a partition are read when their
+   * clustering is known.
+   *
+   * @return matched rows of each partition, in order of the partition first hit
+   */
+  private List<LoadedPartition> read(List<SearchResultRow> hits) {
+    Map<DecoratedKey, NavigableSet<Clustering>> matched = new LinkedHashMap<>();
+    Set<DecoratedKey> fullPartitions = new HashSet<>();
+
+    for (SearchResultRow hit : hits) {
+      DecoratedKey partitionKey = baseCfs.getPartitioner().decorateKey(hit.partitionKey);
+      NavigableSet<Clustering> clusterings =
+          matched.computeIfAbsent(partitionKey, k -> new TreeSet<>(baseCfs.metadata.comparator));
+      if (hit.clustering == null) {
+        fullPartitions.add(partitionKey);
+      } else {
+        clusterings.add(hit.clustering);
+      }
+    }
+
+    List<SinglePartitionReadCommand> commands = new ArrayList<>(matched.size());
+    for (Map.Entry<DecoratedKey, NavigableSet<Clustering>> entry : matched.entrySet()) {
+      DecoratedKey partitionKey = entry.getKey();
+      ClusteringIndexFilter filter = command.clusteringIndexFilter(partitionKey);
+      if (!fullPartitions.contains(partitionKey)) {
+        NavigableSet<Clustering> selected = new TreeSet<>(baseCfs.metadata.comparator);
+        for (Clustering clustering : entry.getValue()) {
+          if (filter.selects(clustering)) { // rows must still match the CQL restrictions
+            selected.add(clustering);
+          }
+        }
+        if (selected.isEmpty()) {
+          continue;
+        }
+        filter = new ClusteringIndexNamesFilter(selected, filter.isReversed());
+      }
+      commands.add(readCommand(partitionKey, filter));
+    }
+    if (commands.isEmpty()) {
+      return Collections.emptyList();
+    }
+
+    // Cassandra has below method but not DSE:
+    // PartitionIterator partition = readCommand.execute(consistencyLevel,
+    // ClientState.forInternalCalls(), System.nanoTime());
+    // WCC-1131 Call directly this method for it is available both in open-source cassandra and in
+    // Datastax Enterprise
+    SinglePartitionReadCommand.Group group =
+        new SinglePartitionReadCommand.Group(commands, DataLimits.NONE);
+    PartitionIterator partitions = StorageProxy.read(group, consistencyLevel, System.nanoTime());
+
+    // Partitions that don't exist anymore are missing from the results
+    Map<DecoratedKey, LoadedPartition> loadedByKey = new HashMap<>();
+    while (partitions.hasNext()) {
+      try (RowIterator rowIterator = partitions.next()) {
+        List<Row> rows = new ArrayList<>();
+        long size = 0;
+        while (rowIterator.hasNext()) {
+          Row row = rowIterator.next();
+          rows.add(row);
+          size += row.dataSize();
+        }
+        if (!rows.isEmpty()) {
+          loadedByKey.put(
+              rowIterator.partitionKey(),
+              new LoadedPartition(new MultiRowIterator(rowIterator, rows), size));
+        }
+      }
     }
 
-    return new SingleRowIterator(rowIterator, row);
+    List<LoadedPartition> result = new ArrayList<>(matched.size());
+    for (DecoratedKey partitionKey : matched.keySet()) {
+      LoadedPartition partition = loadedByKey.get(partitionKey);
+      if (partition == null) {
+        logRowNotFound(partitionKey);
+      } else {
+        loadedBytes.addAndGet(partition.size);
+        result.add(partition);
+      }
+    }
+    return result;
+  }
+
+  private SinglePartitionReadCommand readCommand(
+      DecoratedKey partitionKey, ClusteringIndexFilter clusteringFilter) {
+    return SinglePartitionReadCommand.create(
+        isForThrift(),
+        baseCfs.metadata,
+        command.nowInSec(),
+        command.columnFilter(), // columns that will be returned
+        RowFilter.NONE, // don't filter anything, as we pass token(id) it may prevent loading non
+        // local rows
+        DataLimits.NONE, // don't use command DataLimits because we are only loading one partition
+        partitionKey,
+        clusteringFilter);
+  }
+
+  private static class LoadedPartition {
+    final UnfilteredRowIterator iterator;
+    final long size; // in bytes
+
+    LoadedPartition(UnfilteredRowIterator iterator, long size) {
+      this.iterator = iterator;
+      this.size = size;
+    }
   }
 
   private void logRowNotFound(DecoratedKey partitionKey) {
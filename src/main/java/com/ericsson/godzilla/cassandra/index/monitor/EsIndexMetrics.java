@@ -0,0 +1,224 @@
+/*
+ * Copyright Ericsson AB 2019 - All Rights Reserved.
+ * The copyright to the computer program(s) herein is the property of Ericsson AB.
+ * The programs may be used and/or copied only with written permission from Ericsson AB
+ * or in accordance with the terms and conditions stipulated in the agreement/contract under which the program(s) have been supplied.
+ */
+package com.ericsson.godzilla.cassandra.index.monitor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/** Metrics of one ES index, updated by the index and exposed through JMX */
+public class EsIndexMetrics implements EsIndexMetricsMXBean {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(EsIndexMetrics.class);
+
+  private final String name;
+  private final LongAdder lockAcquisitions = new LongAdder();
+  private final LongAdder lockContentions = new LongAdder();
+  private final LongAdder lockWaitNanos = new LongAdder();
+  private final LongAdder inFlightWrites = new LongAdder();
+  private final LongAdder inFlightBytes = new LongAdder();
+  private final LongAdder throttledWrites = new LongAdder();
+  private final LongAdder rejectedWrites = new LongAdder();
+  private final LongAdder deferredWrites = new LongAdder();
+  private final LongAdder replayedWrites = new LongAdder();
+  private final LongAdder droppedWrites = new LongAdder();
+  private volatile LongSupplier deferredWriteBytes = () -> 0;
+  private final LongAdder searchCacheHits = new LongAdder();
+  private final LongAdder searchCacheMisses = new LongAdder();
+  private volatile LongSupplier searchCacheBytes = () -> 0;
+
+  /** @param name unique name of the index, usually alias/type */
+  public EsIndexMetrics(@Nonnull String name) {
+    this.name = name;
+  }
+
+  /** Register as an MBean, replaces a previous registration of an index with the same name */
+  public void register() {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName objectName = objectName();
+      if (server.isRegistered(objectName)) {
+        server.unregisterMBean(objectName);
+      }
+      server.registerMBean(this, objectName);
+      LOGGER.info("Registration of '{}' successful", objectName);
+    } catch (JMException e) {
+      LOGGER.error("Can't register metrics of index {}", name, e);
+    }
+  }
+
+  public void unregister() {
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName());
+    } catch (InstanceNotFoundException e) {
+      LOGGER.debug("Metrics of index {} were not registered", name);
+    } catch (JMException e) {
+      LOGGER.error("Can't unregister metrics of index {}", name, e);
+    }
+  }
+
+  @Nonnull
+  private ObjectName objectName() throws JMException {
+    return new ObjectName(NAME_PREFIX + ObjectName.quote(name));
+  }
+
+  /** @param waitNanos time spent waiting for the lock, 0 if it was free */
+  public void lockAcquired(long waitNanos) {
+    lockAcquisitions.increment();
+    if (waitNanos > 0) {
+      lockContentions.increment();
+      lockWaitNanos.add(waitNanos);
+    }
+  }
+
+  @Override
+  public long getLockAcquisitions() {
+    return lockAcquisitions.sum();
+  }
+
+  @Override
+  public long getLockContentions() {
+    return lockContentions.sum();
+  }
+
+  @Override
+  public long getLockWaitMicros() {
+    return TimeUnit.NANOSECONDS.toMicros(lockWaitNanos.sum());
+  }
+
+  /** @param bytes payload size of a write sent to ES */
+  public void writeStarted(long bytes) {
+    inFlightWrites.increment();
+    inFlightBytes.add(bytes);
+  }
+
+  /** @param bytes payload size of a write acknowledged or failed */
+  public void writeCompleted(long bytes) {
+    inFlightWrites.decrement();
+    inFlightBytes.add(-bytes);
+  }
+
+  /** A write waited for other writes to complete */
+  public void writeThrottled() {
+    throttledWrites.increment();
+  }
+
+  /** A write failed because too many writes were in flight */
+  public void writeRejected() {
+    rejectedWrites.increment();
+  }
+
+  @Override
+  public long getInFlightWrites() {
+    return inFlightWrites.sum();
+  }
+
+  @Override
+  public long getInFlightBytes() {
+    return inFlightBytes.sum();
+  }
+
+  @Override
+  public long getThrottledWrites() {
+    return throttledWrites.sum();
+  }
+
+  @Override
+  public long getRejectedWrites() {
+    return rejectedWrites.sum();
+  }
+
+  /** A failed write was queued to be replayed */
+  public void writeDeferred() {
+    deferredWrites.increment();
+  }
+
+  /**
+   * @param replayed number of queued writes acknowledged by ES
+   * @param refused number of queued writes that ES refused, they are dropped
+   */
+  public void deferredWritesReplayed(int replayed, int refused) {
+    replayedWrites.add(replayed);
+    droppedWrites.add(refused);
+  }
+
+  /** A failed write could not be queued */
+  public void deferredWriteDropped() {
+    droppedWrites.increment();
+  }
+
+  /** @param bytes size of the write queue */
+  public void setDeferredWriteBytes(@Nonnull LongSupplier bytes) {
+    deferredWriteBytes = bytes;
+  }
+
+  @Override
+  public long getDeferredWrites() {
+    return deferredWrites.sum();
+  }
+
+  @Override
+  public long getReplayedWrites() {
+    return replayedWrites.sum();
+  }
+
+  @Override
+  public long getDroppedWrites() {
+    return droppedWrites.sum();
+  }
+
+  @Override
+  public long getDeferredWriteBytes() {
+    return deferredWriteBytes.getAsLong();
+  }
+
+  /** A search was answered by the search cache */
+  public void searchCacheHit() {
+    searchCacheHits.increment();
+  }
+
+  /** A search was not in the search cache */
+  public void searchCacheMiss() {
+    searchCacheMisses.increment();
+  }
+
+  /** @param bytes estimated size of the search cache */
+  public void setSearchCacheBytes(@Nonnull LongSupplier bytes) {
+    searchCacheBytes = bytes;
+  }
+
+  @Override
+  public long getSearchCacheHits() {
+    return searchCacheHits.sum();
+  }
+
+  @Override
+  public long getSearchCacheMisses() {
+    return searchCacheMisses.sum();
+  }
+
+  @Override
+  public double getSearchCacheHitRate() {
+    long hits = searchCacheHits.sum();
+    long total = hits + searchCacheMisses.sum();
+    return total == 0 ? 0 : (double) hits / total;
+  }
+
+  @Override
+  public long getSearchCacheBytes() {
+    return searchCacheBytes.getAsLong();
+  }
+}
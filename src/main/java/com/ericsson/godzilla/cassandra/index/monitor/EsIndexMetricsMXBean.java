@@ -0,0 +1,59 @@
+/*
+ * Copyright Ericsson AB 2019 - All Rights Reserved.
+ * The copyright to the computer program(s) herein is the property of Ericsson AB.
+ * The programs may be used and/or copied only with written permission from Ericsson AB
+ * or in accordance with the terms and conditions stipulated in the agreement/contract under which the program(s) have been supplied.
+ */
+package com.ericsson.godzilla.cassandra.index.monitor;
+
+/** This interface exposes the metrics of one ES index as a JMX interface */
+public interface EsIndexMetricsMXBean {
+
+  /** Followed by the quoted alias/type name of the index */
+  String NAME_PREFIX = "com.ericsson.godzilla.cassandra.index.monitor:type=EsIndexMetrics,name=";
+
+  /** @return number of document locks taken when concurrent-lock is enabled */
+  long getLockAcquisitions();
+
+  /** @return number of document locks that were already held by another writer */
+  long getLockContentions();
+
+  /** @return total time in microseconds writers waited for a document lock */
+  long getLockWaitMicros();
+
+  /** @return number of document writes sent to ES and not acknowledged yet */
+  long getInFlightWrites();
+
+  /** @return payload bytes of the writes in flight */
+  long getInFlightBytes();
+
+  /** @return number of writes that waited because max-in-flight bounds were reached */
+  long getThrottledWrites();
+
+  /** @return number of writes that failed because max-in-flight bounds were reached */
+  long getRejectedWrites();
+
+  /** @return number of failed writes queued to be replayed when write-queue is enabled */
+  long getDeferredWrites();
+
+  /** @return number of queued writes acknowledged by ES once replayed */
+  long getReplayedWrites();
+
+  /** @return number of failed writes lost, the queue being full or ES refusing them */
+  long getDroppedWrites();
+
+  /** @return size in bytes of the writes waiting in the queue */
+  long getDeferredWriteBytes();
+
+  /** @return number of searches answered by the search cache */
+  long getSearchCacheHits();
+
+  /** @return number of searches sent to ES while the search cache is enabled */
+  long getSearchCacheMisses();
+
+  /** @return ratio of searches answered by the search cache, from 0 to 1 */
+  double getSearchCacheHitRate();
+
+  /** @return estimated size in bytes of the cached search hits */
+  long getSearchCacheBytes();
+}
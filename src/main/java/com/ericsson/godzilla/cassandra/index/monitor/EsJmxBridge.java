@@ -6,6 +6,7 @@
  */
 package com.ericsson.godzilla.cassandra.index.monitor;
 
+import com.ericsson.godzilla.cassandra.index.requests.CircuitBreaker;
 import com.ericsson.godzilla.cassandra.index.requests.GenericRequest;
 import io.searchbox.action.Action;
 import io.searchbox.client.JestClient;
@@ -19,12 +20,17 @@ import javax.annotation.Nullable;
 import javax.management.*;
 import java.io.IOException;
 import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
 public class EsJmxBridge implements EsJmxBridgeMXBean {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(EsJmxBridge.class);
+  private static final ConcurrentMap<String, CircuitBreaker> BREAKERS = new ConcurrentHashMap<>();
 
   private final JestClient client;
 
@@ -88,6 +94,27 @@ public class EsJmxBridge implements EsJmxBridgeMXBean {
     return true;
   }
 
+  /**
+   * Expose the circuit breaker of an index, replaces a previous one with the same name
+   *
+   * @param name alias/type of the index
+   */
+  public static void registerCircuitBreaker(@Nonnull String name, @Nonnull CircuitBreaker breaker) {
+    BREAKERS.put(name, breaker);
+  }
+
+  public static void unregisterCircuitBreaker(@Nonnull String name) {
+    BREAKERS.remove(name);
+  }
+
+  @Override
+  @Nonnull
+  public Map<String, String> getCircuitBreakers() {
+    Map<String, String> states = new TreeMap<>();
+    BREAKERS.forEach((name, breaker) -> states.put(name, breaker.toString()));
+    return states;
+  }
+
   @Override
   @Nullable
   public byte[] execute(@Nonnull String methodPath, @Nullable byte[] request) throws IOException {
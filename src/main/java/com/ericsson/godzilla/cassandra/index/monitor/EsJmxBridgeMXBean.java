@@ -10,6 +10,7 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
+import java.util.Map;
 
 /** This interface allows to expose ES client as JMX interface */
 public interface EsJmxBridgeMXBean {
@@ -63,4 +64,8 @@ public interface EsJmxBridgeMXBean {
 
   /** @return true */
   boolean connected();
+
+  /** @return state of the circuit breaker of each index that has one, by alias/type */
+  @Nonnull
+  Map<String, String> getCircuitBreakers();
 }
@@ -0,0 +1,319 @@
+/*
+ * Copyright Ericsson AB 2019 - All Rights Reserved.
+ * The copyright to the computer program(s) herein is the property of Ericsson AB.
+ * The programs may be used and/or copied only with written permission from Ericsson AB
+ * or in accordance with the terms and conditions stipulated in the agreement/contract under which the program(s) have been supplied.
+ */
+package com.ericsson.godzilla.cassandra.index.requests;
+
+import com.google.gson.Gson;
+import io.searchbox.action.BulkableAction;
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestResultHandler;
+import io.searchbox.core.Bulk;
+import io.searchbox.core.BulkResult;
+import io.searchbox.core.DocumentResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Gathers document requests from many writers into ES _bulk requests. A bulk is sent when it
+ * reaches the max number of actions, the max size in bytes or when its oldest action has waited
+ * for the linger time.<br>
+ * Each action gets its own ResponseHandler, bulk response items are mapped back to it so that sync
+ * writers still block until their own document is acknowledged.
+ *
+ * <p>https://www.elastic.co/guide/en/elasticsearch/reference/current/docs-bulk.html
+ */
+public class BulkWriter implements Closeable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(BulkWriter.class);
+  private static final Gson GSON = new Gson();
+  private static final String ES_PIPELINE = "pipeline";
+  private static final int ACTION_OVERHEAD = 128; // bulk metadata line, in bytes
+
+  private final String typeName;
+  private final JestClient client;
+  private final String pipeline;
+  private final int maxActions;
+  private final long maxBytes;
+  private final long lingerNanos;
+  private final long timeoutMs;
+  private final ScheduledExecutorService scheduler;
+  private final LongAdder failures = new LongAdder();
+  private final LongAdder rejections = new LongAdder();
+
+  // Guarded by this
+  private List<BulkItem> pending = new ArrayList<>();
+  private long pendingBytes;
+  private long firstAddNanos;
+  private int inFlight; // added and not yet acknowledged
+
+  /**
+   * @param typeName used for logging
+   * @param client the client used to send bulks
+   * @param pipeline ingest pipeline applied to the whole bulk, can be null
+   * @param maxActions flush when this number of actions is pending
+   * @param maxBytes flush when pending payloads reach this size
+   * @param lingerMs flush when the oldest pending action waited that long, at least 1ms
+   */
+  public BulkWriter(
+      @Nonnull String typeName,
+      @Nonnull JestClient client,
+      @Nullable String pipeline,
+      int maxActions,
+      long maxBytes,
+      long lingerMs) {
+    this(typeName, client, pipeline, maxActions, maxBytes, lingerMs, 0);
+  }
+
+  /**
+   * @param timeoutMs deadline of each action from the time it is added, 0 for no deadline
+   * @see #BulkWriter(String, JestClient, String, int, long, long)
+   */
+  public BulkWriter(
+      @Nonnull String typeName,
+      @Nonnull JestClient client,
+      @Nullable String pipeline,
+      int maxActions,
+      long maxBytes,
+      long lingerMs,
+      long timeoutMs) {
+    this.typeName = typeName;
+    this.timeoutMs = timeoutMs;
+    this.client = client;
+    this.pipeline = pipeline;
+    this.maxActions = Math.max(1, maxActions);
+    this.maxBytes = Math.max(1, maxBytes);
+    long linger = Math.max(1, lingerMs);
+    this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(linger);
+    this.scheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            r -> {
+              Thread thread = new Thread(r, "EsBulk-" + typeName);
+              thread.setDaemon(true);
+              return thread;
+            });
+    scheduler.scheduleWithFixedDelay(this::flushExpired, linger, linger, TimeUnit.MILLISECONDS);
+    LOGGER.info(
+        "Bulk writer for {} started, max actions:{} max bytes:{} linger:{}ms",
+        typeName,
+        this.maxActions,
+        this.maxBytes,
+        linger);
+  }
+
+  /**
+   * Queue an action for the next bulk, may send the bulk if it is full
+   *
+   * @param action index, update or delete request
+   * @param size payload size in bytes, used to bound bulk size
+   * @return the handler that will receive this action's own result
+   */
+  @Nonnull
+  public ResponseHandler<DocumentResult> add(
+      @Nonnull BulkableAction<DocumentResult> action, int size) {
+    ResponseHandler<DocumentResult> handler = new ResponseHandler<>(typeName, action, timeoutMs);
+    List<BulkItem> toSend = null;
+
+    synchronized (this) {
+      if (pending.isEmpty()) {
+        firstAddNanos = System.nanoTime();
+      }
+      pending.add(new BulkItem(action, handler));
+      pendingBytes += size + ACTION_OVERHEAD;
+      inFlight++;
+
+      if (pending.size() >= maxActions || pendingBytes >= maxBytes) {
+        toSend = drain();
+      }
+    }
+
+    if (toSend != null) {
+      send(toSend);
+    }
+    return handler;
+  }
+
+  /** Send all pending actions now */
+  public void flush() {
+    List<BulkItem> toSend;
+    synchronized (this) {
+      toSend = drain();
+    }
+    send(toSend);
+  }
+
+  /**
+   * Blocks until at most max actions are waiting for their acknowledgment, pending actions are
+   * sent if needed
+   *
+   * @param max number of actions, 0 waits for all of them
+   */
+  public void awaitInFlight(int max) {
+    synchronized (this) {
+      if (inFlight <= max) {
+        return;
+      }
+    }
+    flush();
+
+    synchronized (this) {
+      while (inFlight > max) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    }
+  }
+
+  /** @return number of actions that were not successful */
+  public long getFailures() {
+    return failures.sum();
+  }
+
+  /**
+   * @return number of actions refused by ES in a bulk response, mapping conflicts..., a subset of
+   *     getFailures(). The other failures are bulks that failed as a whole.
+   */
+  public long getRejections() {
+    return rejections.sum();
+  }
+
+  /** Flush pending actions and stop the linger thread */
+  @Override
+  public void close() {
+    scheduler.shutdown();
+    flush();
+  }
+
+  private void flushExpired() {
+    List<BulkItem> toSend = null;
+    synchronized (this) {
+      if (!pending.isEmpty() && System.nanoTime() - firstAddNanos >= lingerNanos) {
+        toSend = drain();
+      }
+    }
+    if (toSend != null) {
+      send(toSend);
+    }
+  }
+
+  // Must hold this
+  @Nonnull
+  private List<BulkItem> drain() {
+    List<BulkItem> drained = pending;
+    pending = new ArrayList<>(Math.min(maxActions, 1024));
+    pendingBytes = 0;
+    return drained;
+  }
+
+  private void send(@Nonnull List<BulkItem> items) {
+    if (items.isEmpty()) {
+      return;
+    }
+
+    Bulk.Builder builder = new Bulk.Builder();
+    if (pipeline != null) {
+      builder.setParameter(ES_PIPELINE, pipeline);
+    }
+    for (BulkItem item : items) {
+      builder.addAction(item.action);
+    }
+
+    LOGGER.trace("Sending bulk of {} actions for {}", items.size(), typeName);
+    try {
+      client.executeAsync(builder.build(), new BulkHandler(items));
+    } catch (RuntimeException e) {
+      fail(items, e);
+    }
+  }
+
+  private void fail(@Nonnull List<BulkItem> items, @Nonnull Exception ex) {
+    LOGGER.error("Bulk of {} actions for {} failed", items.size(), typeName, ex);
+    for (BulkItem item : items) {
+      item.handler.failed(ex);
+    }
+    done(items.size(), items.size());
+  }
+
+  private synchronized void done(int count, int failed) {
+    failures.add(failed);
+    inFlight -= count;
+    notifyAll();
+  }
+
+  private static class BulkItem {
+    final BulkableAction<DocumentResult> action;
+    final ResponseHandler<DocumentResult> handler;
+
+    BulkItem(BulkableAction<DocumentResult> action, ResponseHandler<DocumentResult> handler) {
+      this.action = action;
+      this.handler = handler;
+    }
+  }
+
+  /** Maps the items of a bulk response back to the handler of each action, in request order */
+  private class BulkHandler implements JestResultHandler<BulkResult> {
+    private final List<BulkItem> items;
+
+    BulkHandler(List<BulkItem> items) {
+      this.items = items;
+    }
+
+    @Override
+    public void completed(BulkResult result) {
+      List<BulkResult.BulkResultItem> resultItems;
+      try {
+        resultItems = result.getJsonObject() == null ? null : result.getItems();
+      } catch (RuntimeException e) { // unexpected response content, don't leave writers waiting
+        fail(items, e);
+        return;
+      }
+
+      if (resultItems == null || resultItems.size() != items.size()) {
+        fail(
+            items,
+            new EsRequestExecutionException(result.getResponseCode(), result.getErrorMessage()));
+        return;
+      }
+
+      int failed = 0;
+      for (int i = 0; i < items.size(); i++) {
+        DocumentResult itemResult = toDocumentResult(resultItems.get(i));
+        if (!itemResult.isSucceeded()) {
+          failed++;
+          rejections.increment();
+        }
+        items.get(i).handler.completed(itemResult);
+      }
+      done(items.size(), failed);
+    }
+
+    @Override
+    public void failed(Exception ex) {
+      fail(items, ex);
+    }
+  }
+
+  @Nonnull
+  private static DocumentResult toDocumentResult(@Nonnull BulkResult.BulkResultItem item) {
+    DocumentResult result = new DocumentResult(GSON);
+    result.setResponseCode(item.status);
+    result.setSucceeded(item.error == null && item.status / 100 == 2);
+    result.setErrorMessage(item.error);
+    return result;
+  }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright Ericsson AB 2019 - All Rights Reserved.
+ * The copyright to the computer program(s) herein is the property of Ericsson AB.
+ * The programs may be used and/or copied only with written permission from Ericsson AB
+ * or in accordance with the terms and conditions stipulated in the agreement/contract under which the program(s) have been supplied.
+ */
+package com.ericsson.godzilla.cassandra.index.requests;
+
+import io.searchbox.client.JestResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Stops sending requests to ES while it fails or answers too slowly, so that Cassandra writes
+ * don't wait for ES timeouts during an incident.<br>
+ * The breaker opens when enough requests of the current 10s window failed or were slow, then
+ * requests are rejected without being sent. While it is open a health request probes ES in the
+ * background, the breaker closes again once the probe succeeds.
+ */
+public class CircuitBreaker implements Closeable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(CircuitBreaker.class);
+  private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+  public enum State {
+    /** requests are sent */
+    CLOSED,
+    /** requests are rejected until a probe succeeds */
+    OPEN,
+    /** a probe is in progress, requests are still rejected */
+    HALF_OPEN
+  }
+
+  private final String name;
+  private final int failureRate;
+  private final long slowCallMs;
+  private final int minRequests;
+  private final long probeMs;
+  private final Supplier<CompletableFuture<? extends JestResult>> probe;
+  private final ScheduledExecutorService scheduler;
+
+  private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+  private final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+  private final AtomicInteger requests = new AtomicInteger();
+  private final AtomicInteger failures = new AtomicInteger();
+  private final LongAdder rejected = new LongAdder();
+  private final LongAdder trips = new LongAdder();
+  private volatile long openedAt; // ms since epoch
+
+  /**
+   * @param name used for logging
+   * @param failureRate percentage of failed or slow requests that opens the breaker
+   * @param slowCallMs requests answered after this time count as failed, 0 to disable
+   * @param minRequests min number of requests in the window before the breaker can open
+   * @param probeMs delay between probes while the breaker is open
+   * @param probe sends a health request to ES
+   */
+  public CircuitBreaker(
+      @Nonnull String name,
+      int failureRate,
+      long slowCallMs,
+      int minRequests,
+      long probeMs,
+      @Nonnull Supplier<CompletableFuture<? extends JestResult>> probe) {
+    this.name = name;
+    this.failureRate = Math.max(1, Math.min(100, failureRate));
+    this.slowCallMs = Math.max(0, slowCallMs);
+    this.minRequests = Math.max(1, minRequests);
+    this.probeMs = Math.max(1, probeMs);
+    this.probe = probe;
+    this.scheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            r -> {
+              Thread thread = new Thread(r, "EsProbe-" + name);
+              thread.setDaemon(true);
+              return thread;
+            });
+    scheduler.scheduleWithFixedDelay(
+        this::probeIfOpen, this.probeMs, this.probeMs, TimeUnit.MILLISECONDS);
+  }
+
+  /** @return true if the breaker has the same settings, no need to replace it */
+  public boolean isSame(
+      int otherRate, long otherSlowCallMs, int otherMinRequests, long otherProbeMs) {
+    return failureRate == Math.max(1, Math.min(100, otherRate))
+        && slowCallMs == Math.max(0, otherSlowCallMs)
+        && minRequests == Math.max(1, otherMinRequests)
+        && probeMs == Math.max(1, otherProbeMs);
+  }
+
+  /** @return true if a request can be sent, rejections are counted */
+  public boolean allowRequest() {
+    if (state.get() == State.CLOSED) {
+      return true;
+    }
+    rejected.increment();
+    return false;
+  }
+
+  /**
+   * Record the outcome of a request sent while the breaker was closed
+   *
+   * @param result the response, null if the request failed
+   * @param error the failure, null if there is a response
+   * @param startNanos System.nanoTime() when the request was sent
+   */
+  public void record(@Nullable JestResult result, @Nullable Throwable error, long startNanos) {
+    if (state.get() != State.CLOSED) {
+      return; // late responses of requests sent before the breaker opened
+    }
+
+    long now = System.nanoTime();
+    long start = windowStart.get();
+    if (now - start >= WINDOW_NANOS && windowStart.compareAndSet(start, now)) {
+      requests.set(0);
+      failures.set(0);
+    }
+
+    int total = requests.incrementAndGet();
+    boolean failed =
+        isFailure(result, error)
+            || (slowCallMs > 0 && now - startNanos >= TimeUnit.MILLISECONDS.toNanos(slowCallMs));
+    if (failed) {
+      int failedCount = failures.incrementAndGet();
+      if (total >= minRequests && failedCount * 100L >= (long) failureRate * total) {
+        open(failedCount, total);
+      }
+    }
+  }
+
+  @Nonnull
+  public State getState() {
+    return state.get();
+  }
+
+  /** Stop probing */
+  @Override
+  public void close() {
+    scheduler.shutdownNow();
+  }
+
+  @Override
+  public String toString() {
+    State current = state.get();
+    return current
+        + (current == State.CLOSED ? "" : " since " + new Date(openedAt))
+        + ", window failures:"
+        + failures.get()
+        + "/"
+        + requests.get()
+        + ", trips:"
+        + trips.sum()
+        + ", rejected:"
+        + rejected.sum();
+  }
+
+  /** @return true if ES is unavailable or overloaded, other errors are answers from ES */
+  static boolean isFailure(@Nullable JestResult result, @Nullable Throwable error) {
+    if (error != null || result == null) {
+      return true;
+    }
+    int code = result.getResponseCode();
+    return code == 0 || code == 429 || code >= 500;
+  }
+
+  private void open(int failedCount, int total) {
+    if (state.compareAndSet(State.CLOSED, State.OPEN)) {
+      openedAt = System.currentTimeMillis();
+      trips.increment();
+      LOGGER.warn(
+          "ES circuit breaker of {} is open, {} of {} requests failed, probing every {}ms",
+          name,
+          failedCount,
+          total,
+          probeMs);
+    }
+  }
+
+  private void probeIfOpen() {
+    if (!state.compareAndSet(State.OPEN, State.HALF_OPEN)) {
+      return;
+    }
+
+    boolean healthy;
+    try {
+      JestResult result = ResponseHandler.await(probe.get(), probeMs, "health probe of " + name);
+      healthy = result.isSucceeded();
+    } catch (RuntimeException e) {
+      healthy = false;
+    }
+
+    if (healthy) {
+      requests.set(0);
+      failures.set(0);
+      windowStart.set(System.nanoTime());
+      state.set(State.CLOSED);
+      LOGGER.info("ES circuit breaker of {} is closed, ES is back", name);
+    } else {
+      state.set(State.OPEN);
+      LOGGER.debug("ES circuit breaker of {} stays open", name);
+    }
+  }
+}
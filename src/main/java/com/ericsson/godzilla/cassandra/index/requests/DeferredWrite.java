@@ -0,0 +1,112 @@
+/*
+ * Copyright Ericsson AB 2019 - All Rights Reserved.
+ * The copyright to the computer program(s) herein is the property of Ericsson AB.
+ * The programs may be used and/or copied only with written permission from Ericsson AB
+ * or in accordance with the terms and conditions stipulated in the agreement/contract under which the program(s) have been supplied.
+ */
+package com.ericsson.godzilla.cassandra.index.requests;
+
+import io.searchbox.client.JestResult;
+import org.apache.cassandra.utils.ByteBufferUtil;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A document write that could not be delivered to ES, kept in the WriteQueue to be sent again.
+ * <br>
+ * Only the partition key of the write is recorded, not its content: the replay sends the current
+ * rows of the partition, so that an old write replayed after newer ones never overwrites them.
+ */
+public class DeferredWrite {
+
+  private static final int VERSION = 2;
+
+  public enum Kind {
+    INDEX,
+    UPDATE,
+    DELETE
+  }
+
+  final Kind kind;
+  final String index;
+  final String id;
+  final byte[] key; // partition key
+
+  /** @param key partition key of the document, copied since Cassandra may reuse the buffer */
+  public DeferredWrite(
+      @Nonnull Kind kind, @Nonnull String index, @Nonnull String id, @Nonnull ByteBuffer key) {
+    this(kind, index, id, ByteBufferUtil.getArray(key));
+  }
+
+  private DeferredWrite(
+      @Nonnull Kind kind, @Nonnull String index, @Nonnull String id, @Nonnull byte[] key) {
+    this.kind = kind;
+    this.index = index;
+    this.id = id;
+    this.key = key;
+  }
+
+  /**
+   * A version conflict is not retried, the write lost against a concurrent one
+   *
+   * @param result the response, null if the request failed without response
+   * @return true if the write may succeed later, ES being unavailable or overloaded
+   */
+  public static boolean isRetryable(@Nullable JestResult result) {
+    if (result == null) {
+      return true;
+    }
+    int code = result.getResponseCode();
+    if (result.isSucceeded()) {
+      return false;
+    }
+    return code == 0 || code == 408 || code == 429 || code >= 500;
+  }
+
+  @Nonnull
+  byte[] toBytes() {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + key.length);
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeByte(VERSION);
+      out.writeByte(kind.ordinal());
+      out.writeUTF(index);
+      out.writeUTF(id);
+      out.writeInt(key.length);
+      out.write(key);
+    } catch (IOException e) { // not thrown by byte arrays
+      throw new IllegalStateException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  /** @throws IOException if the record is not a deferred write */
+  @Nonnull
+  static DeferredWrite fromBytes(@Nonnull byte[] record) throws IOException {
+    try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(record))) {
+      int version = in.readByte();
+      if (version != VERSION) {
+        throw new IOException("Unknown deferred write version " + version);
+      }
+      Kind kind = Kind.values()[in.readByte()];
+      String index = in.readUTF();
+      String id = in.readUTF();
+      byte[] key = new byte[in.readInt()];
+      in.readFully(key);
+      return new DeferredWrite(kind, index, id, key);
+    } catch (ArrayIndexOutOfBoundsException | NegativeArraySizeException e) {
+      throw new IOException("Invalid deferred write record", e);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return kind + " " + index + "/" + id;
+  }
+}
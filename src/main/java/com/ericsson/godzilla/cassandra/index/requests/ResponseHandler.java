@@ -9,16 +9,25 @@ package com.ericsson.godzilla.cassandra.index.requests;
 import io.searchbox.action.Action;
 import io.searchbox.client.JestResult;
 import io.searchbox.client.JestResultHandler;
+import org.apache.cassandra.exceptions.ExceptionCode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import static com.ericsson.godzilla.cassandra.index.EsSecondaryIndex.DEBUG_SHOW_VALUES;
 
-/** Wraps a Jest response to allow logging and blocking waiting for a response */
+/**
+ * Wraps a Jest response to allow logging, blocking waiting for a response or composing futures.
+ * <br>
+ * A request can have a deadline, blocking waits then give up when it is reached instead of
+ * pinning the calling thread on a stalled ES node.
+ */
 public class ResponseHandler<T extends JestResult> implements JestResultHandler<T> {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(ResponseHandler.class);
@@ -27,14 +36,25 @@ public class ResponseHandler<T extends JestResult> implements JestResultHandler<
 
   private final String typeName;
   private final Action<T> request;
-  private final Semaphore semaphore = new Semaphore(0);
-  private final AtomicBoolean isCompleted = new AtomicBoolean();
-  private T result;
-  private Exception exception;
+  private final CompletableFuture<T> future = new CompletableFuture<>();
+  private final long timeoutMs;
+  private final long deadlineNanos;
 
+  /** A handler without deadline */
   public ResponseHandler(@Nonnull String typeName, @Nonnull Action<T> request) {
+    this(typeName, request, 0);
+  }
+
+  /**
+   * @param typeName used for logging
+   * @param request the request of the response
+   * @param timeoutMs time given to the response from now, 0 to wait forever
+   */
+  public ResponseHandler(@Nonnull String typeName, @Nonnull Action<T> request, long timeoutMs) {
     this.typeName = typeName;
     this.request = request;
+    this.timeoutMs = Math.max(0, timeoutMs);
+    this.deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.timeoutMs);
     if (LOGGER.isTraceEnabled()) {
       LOGGER.trace(
           "Handling ES request #{} {} {}", request.hashCode(), request.toString(), typeName);
@@ -43,22 +63,60 @@ public class ResponseHandler<T extends JestResult> implements JestResultHandler<
 
   @Override
   public void completed(@Nonnull T result) {
-    this.result = result;
-    isCompleted.set(true);
-    semaphore.release();
     if (LOGGER.isTraceEnabled()) {
       LOGGER.trace(
           "Completed ES request #{} {} {}", request.hashCode(), request.toString(), typeName);
     }
+    future.complete(result);
   }
 
   @Override
   public void failed(@Nonnull Exception ex) {
-    this.exception = ex;
-    isCompleted.set(true);
-    semaphore.release();
     LOGGER.error(
         "Failed ES request #{} {} {} {}", request.hashCode(), request.toString(), typeName, ex);
+    future.completeExceptionally(ex);
+  }
+
+  /** The request was not sent, fail it without logging an error for each request */
+  public void rejected(@Nonnull Exception ex) {
+    if (LOGGER.isDebugEnabled()) {
+      LOGGER.debug("Rejected ES request {} {}: {}", request, typeName, ex.getMessage());
+    }
+    future.completeExceptionally(ex);
+  }
+
+  /**
+   * Not blocking, to compose async steps. The deadline of the request is not applied, see
+   * await() to wait for the composed future.
+   *
+   * @return a future completed with the response or failed with the request exception
+   */
+  @Nonnull
+  public CompletableFuture<T> toFuture() {
+    return future.thenApply(result -> result);
+  }
+
+  /**
+   * Not blocking, like toFuture()
+   *
+   * @return a future completed with the response, failed with an EsRequestExecutionException if
+   *     the response is not an HTTP success
+   */
+  @Nonnull
+  public CompletableFuture<T> toSuccessFuture() {
+    return future.thenApply(result -> checkResult(result, true));
+  }
+
+  /**
+   * Not blocking, like toFuture()
+   *
+   * @param codes a list of acceptable HTTP response codes
+   * @return a future completed with the response, failed with an EsRequestExecutionException if
+   *     the response is not one of the provided HTTP codes
+   */
+  @Nonnull
+  public CompletableFuture<T> toStatusFuture(int... codes) {
+    return future.thenApply(result -> checkStatus(result, codes));
   }
 
   /**
@@ -66,11 +124,12 @@ public class ResponseHandler<T extends JestResult> implements JestResultHandler<
    * blocking.
    *
    * @return the response
-   * @throws EsRequestExecutionException if response is not an HTTP success
+   * @throws EsRequestExecutionException if response is not an HTTP success or the deadline is
+   *     reached
    */
   @Nonnull
   public T waitForSuccess() {
-    return waitForResult(true);
+    return checkResult(waitForCompletion(), true);
   }
 
   /**
@@ -78,17 +137,11 @@ public class ResponseHandler<T extends JestResult> implements JestResultHandler<
    * next calls are not blocking.
    *
    * @param codes a list of acceptable HTTP response codes
-   * @throws EsRequestExecutionException if response is not one of the provided HTTP codes
+   * @throws EsRequestExecutionException if response is not one of the provided HTTP codes or the
+   *     deadline is reached
    */
   public void waitForStatus(int... codes) {
-    result = waitForResult();
-    for (int code : codes) {
-      if (code == result.getResponseCode()) {
-        return;
-      }
-    }
-
-    throw new EsRequestExecutionException(result.getResponseCode(), result.getErrorMessage());
+    checkStatus(waitForResult(), codes);
   }
 
   /**
@@ -96,26 +149,63 @@ public class ResponseHandler<T extends JestResult> implements JestResultHandler<
    * blocking.
    *
    * @return the response
+   * @throws EsRequestExecutionException if the deadline is reached
    */
   @Nonnull
   public T waitForResult() {
-    return waitForResult(false);
+    return checkResult(waitForCompletion(), false);
+  }
+
+  /**
+   * Block until a composed future is completed
+   *
+   * @param future usually composed from toFuture() or toSuccessFuture() of handlers
+   * @param timeoutMs max time to wait, 0 to wait forever
+   * @param description of the composed requests, for errors
+   * @return the result of the future
+   * @throws EsRequestExecutionException if the timeout is reached
+   */
+  public static <R> R await(
+      @Nonnull CompletableFuture<R> future, long timeoutMs, @Nonnull String description) {
+    try {
+      return timeoutMs > 0 ? future.get(timeoutMs, TimeUnit.MILLISECONDS) : future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw unwrap(e.getCause());
+    } catch (TimeoutException e) {
+      LOGGER.error("No response to ES {} after {}ms", description, timeoutMs);
+      throw timeout(description, timeoutMs);
+    }
   }
 
   @Nonnull
-  private T waitForResult(boolean assertSuccess) {
-    if (!isCompleted.get()) {
-      try {
-        semaphore.acquire();
-        semaphore.release(); // potentially release other threads
-      } catch (InterruptedException e) {
-        throw new RuntimeException(e);
+  private T waitForCompletion() {
+    try {
+      if (timeoutMs == 0) {
+        return future.get();
       }
+      long remaining = deadlineNanos - System.nanoTime();
+      return future.get(Math.max(0, remaining), TimeUnit.NANOSECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw unwrap(e.getCause());
+    } catch (TimeoutException e) {
+      LOGGER.error(
+          "No response to ES request #{} {} {} after {}ms",
+          request.hashCode(),
+          request.toString(),
+          typeName,
+          timeoutMs);
+      throw timeout(request.toString(), timeoutMs);
     }
-    if (exception != null) {
-      throw new RuntimeException(exception);
-    }
+  }
 
+  @Nonnull
+  private T checkResult(@Nonnull T result, boolean assertSuccess) {
     if (assertSuccess && !result.isSucceeded()) {
       LOGGER.error(
           "Received error to request #{} {} {}, details: {}",
@@ -137,6 +227,36 @@ public class ResponseHandler<T extends JestResult> implements JestResultHandler<
     return result;
   }
 
+  @Nonnull
+  private static <R extends JestResult> R checkStatus(@Nonnull R result, int... codes) {
+    for (int code : codes) {
+      if (code == result.getResponseCode()) {
+        return result;
+      }
+    }
+
+    throw new EsRequestExecutionException(result.getResponseCode(), result.getErrorMessage());
+  }
+
+  /** Runtime exceptions of composed steps are thrown as is, request failures are wrapped */
+  @Nonnull
+  private static RuntimeException unwrap(@Nonnull Throwable cause) {
+    while (cause instanceof CompletionException && cause.getCause() != null) {
+      cause = cause.getCause();
+    }
+    if (cause instanceof RuntimeException) {
+      return (RuntimeException) cause;
+    }
+    return new RuntimeException(cause);
+  }
+
+  @Nonnull
+  private static EsRequestExecutionException timeout(@Nonnull String description, long timeoutMs) {
+    return new EsRequestExecutionException(
+        ExceptionCode.SERVER_ERROR,
+        "No response to ES " + description + " after " + timeoutMs + "ms");
+  }
+
   @Nonnull
   private String resultString(@Nonnull T res, boolean showJson) {
     if (showJson) {
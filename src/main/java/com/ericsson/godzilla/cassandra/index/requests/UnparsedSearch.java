@@ -0,0 +1,40 @@
+/*
+ * Copyright Ericsson AB 2019 - All Rights Reserved.
+ * The copyright to the computer program(s) herein is the property of Ericsson AB.
+ * The programs may be used and/or copied only with written permission from Ericsson AB
+ * or in accordance with the terms and conditions stipulated in the agreement/contract under which the program(s) have been supplied.
+ */
+package com.ericsson.godzilla.cassandra.index.requests;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import io.searchbox.core.Search;
+import io.searchbox.core.SearchResult;
+
+import javax.annotation.Nonnull;
+
+/**
+ * A search whose successful responses are not parsed by Jest, hits are read from the JSON string
+ * without building the whole JSON tree. Error responses are parsed as usual.
+ */
+public class UnparsedSearch extends Search {
+
+  public UnparsedSearch(@Nonnull Search.Builder builder) {
+    super(builder);
+  }
+
+  @Override
+  public SearchResult createNewElasticSearchResult(
+      String responseBody, int statusCode, String reasonPhrase, Gson gson) {
+    if (!isHttpSuccessful(statusCode)) {
+      return super.createNewElasticSearchResult(responseBody, statusCode, reasonPhrase, gson);
+    }
+    SearchResult result = new SearchResult(gson);
+    result.setResponseCode(statusCode);
+    result.setJsonString(responseBody);
+    result.setJsonObject(new JsonObject());
+    result.setPathToResult(getPathToResult());
+    result.setSucceeded(true);
+    return result;
+  }
+}
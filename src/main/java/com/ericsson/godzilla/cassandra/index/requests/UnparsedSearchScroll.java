@@ -0,0 +1,37 @@
+/*
+ * Copyright Ericsson AB 2019 - All Rights Reserved.
+ * The copyright to the computer program(s) herein is the property of Ericsson AB.
+ * The programs may be used and/or copied only with written permission from Ericsson AB
+ * or in accordance with the terms and conditions stipulated in the agreement/contract under which the program(s) have been supplied.
+ */
+package com.ericsson.godzilla.cassandra.index.requests;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import io.searchbox.client.JestResult;
+import io.searchbox.core.SearchScroll;
+
+import javax.annotation.Nonnull;
+
+/** Next page of a scroll search, successful responses are not parsed like {@link UnparsedSearch} */
+public class UnparsedSearchScroll extends SearchScroll {
+
+  public UnparsedSearchScroll(@Nonnull SearchScroll.Builder builder) {
+    super(builder);
+  }
+
+  @Override
+  public JestResult createNewElasticSearchResult(
+      String responseBody, int statusCode, String reasonPhrase, Gson gson) {
+    if (!isHttpSuccessful(statusCode)) {
+      return super.createNewElasticSearchResult(responseBody, statusCode, reasonPhrase, gson);
+    }
+    JestResult result = new JestResult(gson);
+    result.setResponseCode(statusCode);
+    result.setJsonString(responseBody);
+    result.setJsonObject(new JsonObject());
+    result.setPathToResult(getPathToResult());
+    result.setSucceeded(true);
+    return result;
+  }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright Ericsson AB 2019 - All Rights Reserved.
+ * The copyright to the computer program(s) herein is the property of Ericsson AB.
+ * The programs may be used and/or copied only with written permission from Ericsson AB
+ * or in accordance with the terms and conditions stipulated in the agreement/contract under which the program(s) have been supplied.
+ */
+package com.ericsson.godzilla.cassandra.index.requests;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Append only queue of records in segment files, that survives restarts.<br>
+ * Records are appended to the active segment, a new segment is started when it is full or when
+ * the replayer takes it. Segments are read in order and deleted once all their records were
+ * replayed, records of a segment that was not fully replayed are replayed again after a restart.
+ * <br>
+ * Each record is stored as its length, its CRC32 and its bytes, a record torn by a crash ends the
+ * segment.
+ */
+public class WriteQueue implements Closeable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(WriteQueue.class);
+  private static final String SUFFIX = ".seg";
+  private static final int HEADER_SIZE = 8; // length and CRC
+  private static final int MAX_RECORD_SIZE = 256 * 1024 * 1024;
+
+  private final File dir;
+  private final long segmentSize;
+  private final long maxBytes;
+
+  // Guarded by this
+  private final TreeMap<Long, File> segments = new TreeMap<>(); // closed segments, by sequence
+  private long activeSequence;
+  private FileChannel active; // null until the first record
+  private long activeSize;
+  private long queuedBytes;
+  private boolean closed;
+
+  /**
+   * Open the queue, segments left by a previous run are replayed first
+   *
+   * @param dir directory of the segments, created if needed
+   * @param segmentSize size of a segment file before a new one is started
+   * @param maxBytes records are refused once the queue reaches this size
+   */
+  public WriteQueue(@Nonnull File dir, long segmentSize, long maxBytes) throws IOException {
+    this.dir = dir;
+    this.segmentSize = Math.max(HEADER_SIZE, segmentSize);
+    this.maxBytes = maxBytes;
+    if (!dir.exists() && !dir.mkdirs()) {
+      throw new IOException("Can't create directory " + dir);
+    }
+
+    File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+    for (File file : files == null ? new File[0] : files) {
+      String name = file.getName();
+      try {
+        segments.put(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())), file);
+        queuedBytes += file.length();
+      } catch (NumberFormatException e) {
+        LOGGER.warn("Ignoring unknown file {} in write queue {}", file, dir);
+      }
+    }
+    activeSequence = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+    if (!segments.isEmpty()) {
+      LOGGER.info("Write queue {} has {} bytes to replay", dir, queuedBytes);
+    }
+  }
+
+  /**
+   * Append a record to the active segment
+   *
+   * @return false if the queue is full, the record is not added
+   * @throws IOException if the record can't be written or the queue is closed
+   */
+  public synchronized boolean add(@Nonnull byte[] record) throws IOException {
+    if (closed) {
+      throw new IOException("Write queue " + dir + " is closed");
+    }
+    long size = HEADER_SIZE + record.length;
+    if (queuedBytes + size > maxBytes) {
+      return false;
+    }
+
+    if (active == null) {
+      File file = segmentFile(activeSequence);
+      active =
+          FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+      activeSize = active.size();
+      active.position(activeSize);
+    }
+
+    CRC32 crc = new CRC32();
+    crc.update(record, 0, record.length);
+    ByteBuffer buffer = ByteBuffer.allocate((int) size);
+    buffer.putInt(record.length).putInt((int) crc.getValue()).put(record).flip();
+    while (buffer.hasRemaining()) {
+      active.write(buffer);
+    }
+    activeSize += size;
+    queuedBytes += size;
+
+    if (activeSize >= segmentSize) {
+      closeActive();
+    }
+    return true;
+  }
+
+  /**
+   * The oldest segment to replay, the active segment is closed if there is no other one so that
+   * next records go to a new segment.
+   *
+   * @return null if the queue is empty
+   */
+  @Nullable
+  public synchronized File nextSegment() throws IOException {
+    if (segments.isEmpty() && active != null && activeSize > 0) {
+      closeActive();
+    }
+    return segments.isEmpty() ? null : segments.firstEntry().getValue();
+  }
+
+  /** Delete a segment whose records were all replayed */
+  public synchronized void delete(@Nonnull File segment) {
+    segments.values().remove(segment);
+    queuedBytes -= segment.length();
+    if (!segment.delete()) {
+      LOGGER.warn("Can't delete replayed segment {}", segment);
+    }
+  }
+
+  /** @return size in bytes of the records not replayed yet */
+  public synchronized long size() {
+    return queuedBytes;
+  }
+
+  /**
+   * Read the records of a segment
+   *
+   * @param segment not null
+   * @param offset position of the first record to read, 0 or the end of a previous record
+   * @param max max number of records to read
+   * @return records read, with the position of the end of each record
+   */
+  @Nonnull
+  public static List<Record> read(@Nonnull File segment, long offset, int max) throws IOException {
+    List<Record> records = new ArrayList<>();
+    try (FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.READ)) {
+      long position = offset;
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      while (records.size() < max && position + HEADER_SIZE <= channel.size()) {
+        header.clear();
+        readFully(channel, header, position);
+        header.flip();
+        int length = header.getInt();
+        int crc = header.getInt();
+        if (length < 0
+            || length > MAX_RECORD_SIZE
+            || position + HEADER_SIZE + length > channel.size()) {
+          LOGGER.warn("Segment {} ends with a torn record at {}", segment, position);
+          break;
+        }
+
+        ByteBuffer data = ByteBuffer.allocate(length);
+        readFully(channel, data, position + HEADER_SIZE);
+        CRC32 check = new CRC32();
+        check.update(data.array(), 0, length);
+        if ((int) check.getValue() != crc) {
+          LOGGER.warn("Segment {} has a corrupted record at {}, skipping the rest", segment,
+              position);
+          break;
+        }
+        position += HEADER_SIZE + length;
+        records.add(new Record(data.array(), position));
+      }
+    }
+    return records;
+  }
+
+  @Override
+  public synchronized void close() {
+    closed = true;
+    try {
+      closeActive();
+    } catch (IOException e) {
+      LOGGER.error("Can't close write queue {}", dir, e);
+    }
+  }
+
+  // Must hold this
+  private void closeActive() throws IOException {
+    if (active != null) {
+      active.force(false);
+      active.close();
+      active = null;
+      if (activeSize > 0) {
+        segments.put(activeSequence, segmentFile(activeSequence));
+        activeSequence++;
+      }
+      activeSize = 0;
+    }
+  }
+
+  @Nonnull
+  private File segmentFile(long sequence) {
+    return new File(dir, String.format("%020d%s", sequence, SUFFIX));
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new EOFException();
+      }
+    }
+  }
+
+  /** A record read from a segment */
+  public static class Record {
+    public final byte[] data;
+    public final long end; // position of the next record
+
+    Record(@Nonnull byte[] data, long end) {
+      this.data = data;
+      this.end = end;
+    }
+
+    @Override
+    public String toString() {
+      return Arrays.toString(data) + "@" + end;
+    }
+  }
+}
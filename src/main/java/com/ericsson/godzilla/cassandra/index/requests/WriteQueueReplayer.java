@@ -0,0 +1,327 @@
+/*
+ * Copyright Ericsson AB 2019 - All Rights Reserved.
+ * The copyright to the computer program(s) herein is the property of Ericsson AB.
+ * The programs may be used and/or copied only with written permission from Ericsson AB
+ * or in accordance with the terms and conditions stipulated in the agreement/contract under which the program(s) have been supplied.
+ */
+package com.ericsson.godzilla.cassandra.index.requests;
+
+import com.ericsson.godzilla.cassandra.index.monitor.EsIndexMetrics;
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestResult;
+import io.searchbox.core.DocumentResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the document writes that ES failed to acknowledge in a WriteQueue and sends them again in
+ * the background, in bulks, once ES is back.<br>
+ * Replays of a segment stop at the first batch with a write that may still succeed later, the
+ * batch is sent again after an exponential backoff. Writes that ES refused for good are logged and
+ * dropped, so are writes whose partition can't be read after MAX_READ_ATTEMPTS replays of their
+ * batch, the Reindexer marks them for a #repair#.<br>
+ * A replay does not send the queued write itself but deletes the documents of its partition and
+ * re-indexes its current rows, so an old write never overwrites a newer one, rows deleted meanwhile
+ * are dropped and a batch sent twice after a restart is harmless. A replay racing with a new write of the same
+ * partition may still send the rows read just before it, the next write of the partition or a
+ * #repair# fixes the document.
+ */
+public class WriteQueueReplayer implements Closeable {
+
+  /** Sends the current content of the partition of a lost write */
+  public interface Reindexer {
+    /**
+     * Delete the documents of the partitions of a batch of lost writes before re-indexing them
+     *
+     * @param keys partition keys of the lost writes
+     * @throws IOException if the documents can't be deleted now
+     */
+    void clear(@Nonnull List<ByteBuffer> keys) throws IOException;
+
+    /**
+     * @param key partition key of the lost write
+     * @param docId id of the document of the lost write, deleted if the partition has no row
+     * @param writer sends the requests of the replay
+     * @return one handler per document written or deleted
+     * @throws IOException if the partition can't be read now
+     */
+    @Nonnull
+    List<ResponseHandler<DocumentResult>> reindex(
+        @Nonnull ByteBuffer key, @Nonnull String docId, @Nonnull BulkWriter writer)
+        throws IOException;
+
+    /**
+     * A lost write dropped since its partition could not be read
+     *
+     * @param key partition key of the lost write
+     * @param isDelete true if the lost write was a delete
+     */
+    void dropped(@Nonnull ByteBuffer key, boolean isDelete);
+  }
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(WriteQueueReplayer.class);
+  private static final long SEGMENT_SIZE = 16 * 1024 * 1024;
+  private static final long MIN_BACKOFF_MS = 1000;
+  private static final long MAX_BACKOFF_MS = 60 * 1000;
+  private static final int MAX_READ_ATTEMPTS = 10; // replays of a batch with unreadable partitions
+
+  private final String typeName;
+  private final WriteQueue queue;
+  private final BulkWriter writer;
+  private final int batchSize;
+  private final int maxReadAttempts;
+  private final Reindexer reindexer;
+  private final EsIndexMetrics metrics;
+  private final ScheduledExecutorService scheduler;
+
+  // Only used by the scheduler thread
+  private File segment; // segment being replayed
+  private long offset; // end of the last replayed record of the segment
+  private long backoffMs;
+  private long retryAtNanos;
+  private int failedReads; // replays of the current batch with unreadable partitions
+
+  /**
+   * Open the queue and start replaying writes left by a previous run
+   *
+   * @param typeName ES type of the documents
+   * @param dir directory of the queue segments
+   * @param maxBytes writes are dropped once the queue reaches this size
+   * @param client the client used to replay writes
+   * @param pipeline ingest pipeline of the replayed writes, can be null
+   * @param batchSize max number of writes replayed in one bulk
+   * @param reindexer sends the current content of the partitions of lost writes
+   * @param timeoutMs deadline of each replayed bulk
+   * @param metrics deferred and replayed writes are reported there
+   * @throws IOException if the queue can't be opened
+   */
+  public WriteQueueReplayer(
+      @Nonnull String typeName,
+      @Nonnull File dir,
+      long maxBytes,
+      @Nonnull JestClient client,
+      @Nullable String pipeline,
+      int batchSize,
+      @Nonnull Reindexer reindexer,
+      long timeoutMs,
+      @Nonnull EsIndexMetrics metrics)
+      throws IOException {
+    this(
+        typeName,
+        dir,
+        maxBytes,
+        client,
+        pipeline,
+        batchSize,
+        reindexer,
+        timeoutMs,
+        metrics,
+        MAX_READ_ATTEMPTS);
+  }
+
+  WriteQueueReplayer(
+      @Nonnull String typeName,
+      @Nonnull File dir,
+      long maxBytes,
+      @Nonnull JestClient client,
+      @Nullable String pipeline,
+      int batchSize,
+      @Nonnull Reindexer reindexer,
+      long timeoutMs,
+      @Nonnull EsIndexMetrics metrics,
+      int maxReadAttempts)
+      throws IOException {
+    this.typeName = typeName;
+    this.maxReadAttempts = maxReadAttempts;
+    this.queue = new WriteQueue(dir, SEGMENT_SIZE, maxBytes);
+    this.batchSize = Math.max(1, batchSize);
+    this.reindexer = reindexer;
+    this.metrics = metrics;
+    this.writer =
+        new BulkWriter(typeName, client, pipeline, this.batchSize, Long.MAX_VALUE, 1000, timeoutMs);
+    this.scheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            r -> {
+              Thread thread = new Thread(r, "EsReplay-" + typeName);
+              thread.setDaemon(true);
+              return thread;
+            });
+    metrics.setDeferredWriteBytes(queue::size);
+    scheduler.scheduleWithFixedDelay(this::replay, 1, 1, TimeUnit.SECONDS);
+    LOGGER.info("Write queue for {} started in {}, max bytes:{}", typeName, dir, maxBytes);
+  }
+
+  /**
+   * Keep a write for replay if it failed and may succeed later
+   *
+   * @param write the failed write
+   * @param result its response, null if it failed without response
+   * @return true if the write was queued
+   */
+  public boolean defer(@Nonnull DeferredWrite write, @Nullable JestResult result) {
+    if (!DeferredWrite.isRetryable(result)) {
+      return false;
+    }
+    try {
+      if (queue.add(write.toBytes())) {
+        metrics.writeDeferred();
+        return true;
+      }
+      LOGGER.error(
+          "Write queue of {} is full, {} is lost until the index is rebuilt", typeName, write);
+    } catch (IOException e) {
+      LOGGER.error(
+          "Can't queue {} of {}, it is lost until the index is rebuilt", write, typeName, e);
+    }
+    metrics.deferredWriteDropped();
+    return false;
+  }
+
+  /** Stop replaying, writes not replayed yet stay in the queue for the next start */
+  @Override
+  public void close() {
+    scheduler.shutdown();
+    try {
+      scheduler.awaitTermination(MAX_BACKOFF_MS, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    writer.close();
+    queue.close();
+    metrics.setDeferredWriteBytes(() -> 0);
+  }
+
+  private void replay() {
+    if (backoffMs > 0 && System.nanoTime() - retryAtNanos < 0) {
+      return;
+    }
+
+    try {
+      File next;
+      while (!scheduler.isShutdown() && (next = queue.nextSegment()) != null) {
+        if (!next.equals(segment)) {
+          segment = next;
+          offset = 0;
+        }
+
+        List<WriteQueue.Record> records = WriteQueue.read(segment, offset, batchSize);
+        if (records.isEmpty()) {
+          queue.delete(segment);
+          segment = null;
+        } else if (send(records)) {
+          offset = records.get(records.size() - 1).end;
+          failedReads = 0;
+        } else {
+          backoff();
+          return;
+        }
+      }
+      backoffMs = 0;
+    } catch (IOException | RuntimeException e) {
+      LOGGER.error("Replay of the write queue of {} failed", typeName, e);
+      backoff();
+    }
+  }
+
+  /** @return false if the batch must be sent again later */
+  private boolean send(@Nonnull List<WriteQueue.Record> records) {
+    List<DeferredWrite> batch = new ArrayList<>(records.size());
+    List<ByteBuffer> keys = new ArrayList<>(records.size());
+    for (WriteQueue.Record record : records) {
+      try {
+        DeferredWrite write = DeferredWrite.fromBytes(record.data);
+        batch.add(write);
+        keys.add(ByteBuffer.wrap(write.key));
+      } catch (IOException e) {
+        LOGGER.error("Skipping unreadable record of the write queue of {}", typeName, e);
+      }
+    }
+    try {
+      reindexer.clear(keys);
+    } catch (IOException | RuntimeException e) {
+      LOGGER.warn("Can't clear the partitions replayed for {}: {}", typeName, e.toString());
+      return false;
+    }
+
+    List<DeferredWrite> writes = new ArrayList<>(batch.size());
+    List<List<ResponseHandler<DocumentResult>>> handlers = new ArrayList<>(batch.size());
+    boolean delivered = true;
+    boolean unreadable = false;
+    int refused = 0;
+    for (DeferredWrite write : batch) {
+      ByteBuffer key = ByteBuffer.wrap(write.key);
+      try {
+        handlers.add(reindexer.reindex(key, write.id, writer));
+        writes.add(write);
+      } catch (IOException | RuntimeException e) {
+        if (failedReads + 1 < maxReadAttempts) {
+          LOGGER.warn("Can't read the partition of {} of {}: {}", write, typeName, e.toString());
+          delivered = false;
+          unreadable = true;
+        } else { // parked, so that it does not block the queue
+          LOGGER.error(
+              "Dropping {} of {}, its partition can't be read, repair the index",
+              write,
+              typeName,
+              e);
+          reindexer.dropped(key, write.kind == DeferredWrite.Kind.DELETE);
+          refused++;
+        }
+      }
+    }
+    writer.flush();
+    if (unreadable) {
+      failedReads++;
+    }
+
+    int replayed = 0;
+    for (int i = 0; i < writes.size(); i++) {
+      DeferredWrite write = writes.get(i);
+      boolean isRefused = false;
+      for (ResponseHandler<DocumentResult> handler : handlers.get(i)) {
+        DocumentResult result;
+        try {
+          result = handler.waitForResult();
+        } catch (RuntimeException e) {
+          result = null;
+        }
+
+        if (DeferredWrite.isRetryable(result)) {
+          delivered = false;
+        } else if (!result.isSucceeded() && result.getResponseCode() != 404) { // already deleted
+          LOGGER.error(
+              "ES refused replayed {} of {}: {}", write, typeName, result.getErrorMessage());
+          isRefused = true;
+        }
+      }
+      if (isRefused) {
+        refused++;
+      } else {
+        replayed++;
+      }
+    }
+
+    if (delivered) { // counted once, the whole batch is sent again otherwise
+      metrics.deferredWritesReplayed(replayed, refused);
+    }
+    return delivered;
+  }
+
+  private void backoff() {
+    backoffMs = backoffMs == 0 ? MIN_BACKOFF_MS : Math.min(backoffMs * 2, MAX_BACKOFF_MS);
+    retryAtNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoffMs);
+    LOGGER.warn("Replay of the write queue of {} retried in {}ms", typeName, backoffMs);
+  }
+}
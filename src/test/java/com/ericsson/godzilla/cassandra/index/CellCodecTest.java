@@ -0,0 +1,63 @@
+package com.ericsson.godzilla.cassandra.index;
+
+import org.apache.cassandra.db.marshal.AbstractType;
+import org.apache.cassandra.db.marshal.BooleanType;
+import org.apache.cassandra.db.marshal.DecimalType;
+import org.apache.cassandra.db.marshal.DoubleType;
+import org.apache.cassandra.db.marshal.Int32Type;
+import org.apache.cassandra.db.marshal.ListType;
+import org.apache.cassandra.db.marshal.LongType;
+import org.apache.cassandra.db.marshal.UTF8Type;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+
+public class CellCodecTest {
+
+  private final JsonFactory jsonFactory = new JsonFactory();
+
+  @Test
+  public void numbersAndBooleansAreNative() throws IOException {
+    Assert.assertEquals("42", write(Int32Type.instance, Int32Type.instance.decompose(42)));
+    Assert.assertEquals("-7", write(LongType.instance, LongType.instance.decompose(-7L)));
+    Assert.assertEquals("1.5", write(DoubleType.instance, DoubleType.instance.decompose(1.5)));
+    Assert.assertEquals(
+        "12.30", write(DecimalType.instance, DecimalType.instance.decompose(new BigDecimal("12.30"))));
+    Assert.assertEquals("true", write(BooleanType.instance, BooleanType.instance.decompose(true)));
+  }
+
+  @Test
+  public void specialValuesAreStrings() throws IOException {
+    Assert.assertEquals("\"text\"", write(UTF8Type.instance, ByteBufferUtil.bytes("text")));
+    Assert.assertEquals("\"\"", write(Int32Type.instance, ByteBufferUtil.EMPTY_BYTE_BUFFER));
+    Assert.assertEquals(
+        "\"NaN\"", write(DoubleType.instance, DoubleType.instance.decompose(Double.NaN)));
+  }
+
+  @Test
+  public void collectionsUseTheirElementCodec() throws IOException {
+    ListType<Integer> list = ListType.getInstance(Int32Type.instance, true);
+    Assert.assertEquals("3", write(list, Int32Type.instance.decompose(3)));
+    Assert.assertEquals("3", CellCodec.of(list).toString(Int32Type.instance.decompose(3)));
+  }
+
+  @Test
+  public void codecsAreResolvedOnce() {
+    Assert.assertSame(CellCodec.of(LongType.instance), CellCodec.of(LongType.instance));
+  }
+
+  private String write(AbstractType<?> type, ByteBuffer value) throws IOException {
+    StringWriter writer = new StringWriter();
+    try (JsonGenerator generator = jsonFactory.createJsonGenerator(writer)) {
+      CellCodec.of(type).write(generator, value);
+    }
+    return writer.toString();
+  }
+}
@@ -0,0 +1,121 @@
+package com.ericsson.godzilla.cassandra.index;
+
+import org.apache.cassandra.dht.Murmur3Partitioner;
+import org.apache.cassandra.dht.Range;
+import org.apache.cassandra.dht.Token;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+public class DirtyRangesTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private static Token token(long value) {
+    return new Murmur3Partitioner.LongToken(value);
+  }
+
+  private DirtyRanges open() {
+    return new DirtyRanges(
+        new File(folder.getRoot(), "ks-table-idx-dirty.bin"), Murmur3Partitioner.instance);
+  }
+
+  @Test
+  public void bucketsAreInTokenOrder() {
+    DirtyRanges dirty = open();
+    Assert.assertEquals(0, dirty.bucket(token(Long.MIN_VALUE)));
+    Assert.assertEquals(DirtyRanges.BUCKETS / 2 - 1, dirty.bucket(token(-1)));
+    Assert.assertEquals(DirtyRanges.BUCKETS / 2, dirty.bucket(token(0)));
+    Assert.assertEquals(DirtyRanges.BUCKETS - 1, dirty.bucket(token(Long.MAX_VALUE)));
+  }
+
+  @Test
+  public void contiguousBucketsAreMerged() {
+    DirtyRanges dirty = open();
+    Assert.assertTrue(dirty.isEmpty());
+    Assert.assertNull(dirty.take());
+
+    dirty.mark(token(0), false);
+    dirty.mark(token(1L << 52), false); // next bucket
+    dirty.mark(token(Long.MIN_VALUE + 1), false);
+    dirty.mark(token(Long.MAX_VALUE), false);
+    Assert.assertFalse(dirty.isEmpty());
+
+    List<Range<Token>> ranges = dirty.ranges(dirty.take());
+    Assert.assertEquals(3, ranges.size());
+    Token min = Murmur3Partitioner.instance.getMinimumToken();
+    Assert.assertEquals(min, ranges.get(0).left);
+    Assert.assertTrue(ranges.get(0).contains(token(Long.MIN_VALUE + 1)));
+    Assert.assertFalse(ranges.get(1).contains(token(-1)));
+    Assert.assertTrue(ranges.get(1).contains(token(0)));
+    Assert.assertTrue(ranges.get(1).contains(token((2L << 52) - 1)));
+    Assert.assertFalse(ranges.get(1).contains(token(2L << 52)));
+    Assert.assertEquals(min, ranges.get(2).right);
+    Assert.assertTrue(ranges.get(2).contains(token(Long.MAX_VALUE)));
+    Assert.assertTrue(dirty.isEmpty());
+  }
+
+  @Test
+  public void rangesSurviveARestartUntilRepaired() {
+    DirtyRanges dirty = open();
+    dirty.mark(token(42), false);
+    Assert.assertFalse(open().isEmpty());
+
+    DirtyRanges reopened = open();
+    DirtyRanges.Snapshot snapshot = reopened.take();
+    Assert.assertNotNull(snapshot);
+    Assert.assertTrue(open().isEmpty());
+
+    reopened.restore(snapshot); // the repair failed
+    DirtyRanges restored = open();
+    Assert.assertFalse(restored.isEmpty());
+    List<Range<Token>> ranges = restored.ranges(restored.take());
+    Assert.assertEquals(1, ranges.size());
+    Assert.assertTrue(ranges.get(0).contains(token(42)));
+  }
+
+  @Test
+  public void lostDeletesAreTrackedApart() {
+    DirtyRanges dirty = open();
+    dirty.mark(token(Long.MIN_VALUE + 1), false);
+    dirty.mark(token(42), false);
+    dirty.mark(token(42), true); // same bucket, now also a lost delete
+
+    DirtyRanges reopened = open();
+    DirtyRanges.Snapshot snapshot = reopened.take();
+    Assert.assertNotNull(snapshot);
+    Assert.assertEquals(2, reopened.ranges(snapshot).size());
+    List<Range<Token>> deleted = reopened.deleteRanges(snapshot);
+    Assert.assertEquals(1, deleted.size());
+    Assert.assertTrue(deleted.get(0).contains(token(42)));
+
+    reopened.restore(snapshot);
+    DirtyRanges restored = open();
+    Assert.assertEquals(1, restored.deleteRanges(restored.take()).size());
+  }
+
+  @Test
+  public void onlyLocalPartsOfTheRangesAreKept() {
+    DirtyRanges dirty = open();
+    dirty.mark(token(42), true);
+    dirty.mark(token(Long.MIN_VALUE + 1), true);
+    List<Range<Token>> deleted = dirty.deleteRanges(dirty.take());
+
+    List<Range<Token>> local =
+        Arrays.asList(
+            new Range<>(token(0), token(100)),
+            new Range<>(token(-1L << 40), token(-1L << 30)), // not dirty
+            new Range<>(token(Long.MAX_VALUE - 10), token(Long.MIN_VALUE + 10))); // wraps
+    List<Range<Token>> parts = DirtyRanges.intersect(deleted, local);
+    Assert.assertEquals(2, parts.size());
+    Token min = Murmur3Partitioner.instance.getMinimumToken();
+    Assert.assertEquals(new Range<>(min, token(Long.MIN_VALUE + 10)), parts.get(0));
+    Assert.assertEquals(new Range<>(token(0), token(100)), parts.get(1));
+    Assert.assertTrue(DirtyRanges.intersect(deleted, local.subList(1, 2)).isEmpty());
+  }
+}
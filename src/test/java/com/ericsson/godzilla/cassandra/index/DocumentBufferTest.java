@@ -0,0 +1,41 @@
+package com.ericsson.godzilla.cassandra.index;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+
+public class DocumentBufferTest {
+
+  private final JsonFactory jsonFactory = new JsonFactory();
+
+  @Test
+  public void documentIsWrittenInItsEnvelope() throws IOException {
+    DocumentBuffer buffer = DocumentBuffer.get();
+    buffer.write("{\"doc\":");
+    buffer.startDocument();
+    try (JsonGenerator generator = jsonFactory.createJsonGenerator(buffer)) {
+      generator.writeStartObject();
+      generator.writeStringField("name", "value");
+      generator.writeEndObject();
+    }
+    buffer.endDocument();
+    buffer.write("}");
+
+    Assert.assertEquals("{\"name\":\"value\"}", buffer.document());
+    Assert.assertEquals(16, buffer.documentLength());
+    Assert.assertEquals("{\"doc\":{\"name\":\"value\"}}", buffer.payload());
+  }
+
+  @Test
+  public void bufferIsReusedByThread() throws IOException {
+    DocumentBuffer buffer = DocumentBuffer.get();
+    buffer.write("first");
+
+    DocumentBuffer next = DocumentBuffer.get();
+    Assert.assertSame(buffer, next);
+    Assert.assertEquals("", next.payload());
+  }
+}
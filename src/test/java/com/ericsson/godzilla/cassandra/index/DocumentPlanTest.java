@@ -0,0 +1,137 @@
+package com.ericsson.godzilla.cassandra.index;
+
+import com.ericsson.godzilla.cassandra.index.config.IndexConfig;
+import com.ericsson.godzilla.cassandra.index.config.IndexConfiguration;
+import com.google.common.collect.ImmutableSet;
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.config.ColumnDefinition;
+import org.apache.cassandra.config.DatabaseDescriptor;
+import org.apache.cassandra.db.Clustering;
+import org.apache.cassandra.db.marshal.Int32Type;
+import org.apache.cassandra.db.marshal.UTF8Type;
+import org.apache.cassandra.db.rows.BTreeRow;
+import org.apache.cassandra.db.rows.BufferCell;
+import org.apache.cassandra.db.rows.Row;
+import org.apache.cassandra.dht.Murmur3Partitioner;
+import org.apache.cassandra.locator.SimpleSnitch;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+public class DocumentPlanTest {
+
+  private static final int NOW = 1000;
+
+  @BeforeClass
+  public static void setupClass() {
+    DatabaseDescriptor.clientInitialization(false);
+    DatabaseDescriptor.setEndpointSnitch(new SimpleSnitch());
+  }
+
+  private final Set<String> schemaFields = ImmutableSet.of("name", "doc", "flat");
+  private final Set<String> serializedFields = ImmutableSet.of("doc", "hidden");
+  private final Set<String> flatSerializedFields = ImmutableSet.of("flat");
+
+  @Test
+  public void fieldsAreSerializedFromOptions() {
+    Assert.assertEquals(DocumentPlan.Serialization.NATIVE, serialization("name"));
+    Assert.assertEquals(DocumentPlan.Serialization.JSON, serialization("doc"));
+    Assert.assertEquals(DocumentPlan.Serialization.FLAT_JSON, serialization("flat"));
+  }
+
+  @Test
+  public void fieldsOutOfTheSchemaAreSkipped() {
+    Assert.assertEquals(DocumentPlan.Serialization.SKIPPED, serialization("hidden"));
+    Assert.assertEquals(DocumentPlan.Serialization.SKIPPED, serialization(""));
+  }
+
+  private DocumentPlan.Serialization serialization(String name) {
+    return DocumentPlan.serialization(
+        name, schemaFields, flatSerializedFields, serializedFields);
+  }
+
+  @Test
+  public void rowIsSerializedWithTheFieldsOfThePlan() throws IOException {
+    CFMetaData table = table(false);
+    DocumentPlan plan = DocumentPlan.create(table, config());
+
+    List<CellElement> elements = plan.toElements(row(table, "age", "name"), NOW, true, true);
+    Assert.assertNotNull(elements);
+    Assert.assertEquals(2, elements.size());
+    Assert.assertEquals("age", elements.get(0).name);
+    Assert.assertEquals("42", elements.get(0).stringValue());
+    Assert.assertEquals(DocumentPlan.Serialization.NATIVE, elements.get(0).field.serialization);
+    Assert.assertEquals("name", elements.get(1).name);
+    Assert.assertEquals("bob", elements.get(1).stringValue());
+  }
+
+  @Test
+  public void unknownColumnNeedsANewPlan() throws IOException {
+    DocumentPlan plan = DocumentPlan.create(table(false), config());
+    CFMetaData altered = table(true);
+    Row row = row(altered, "age", "name", "city");
+
+    Assert.assertNull(plan.toElements(row, NOW, true, true)); // rebuilt by EsSecondaryIndex
+
+    List<CellElement> elements = plan.toElements(row, NOW, true, false);
+    Assert.assertNotNull(elements);
+    Assert.assertEquals(3, elements.size());
+    Assert.assertEquals(DocumentPlan.Serialization.SKIPPED, elements.get(1).field.serialization);
+
+    DocumentPlan rebuilt = DocumentPlan.create(altered, config());
+    elements = rebuilt.toElements(row, NOW, true, true);
+    Assert.assertNotNull(elements);
+    Assert.assertEquals("city", elements.get(1).name);
+    Assert.assertEquals("paris", elements.get(1).stringValue());
+  }
+
+  private static IndexConfig config() {
+    return new IndexConfiguration(
+        "test", Collections.singletonMap(IndexConfig.ES_JSON_SCHEMA_FIELDS, "name,age"));
+  }
+
+  private static CFMetaData table(boolean withCity) {
+    CFMetaData.Builder builder =
+        CFMetaData.Builder.create("ks", "t")
+            .withId(UUID.nameUUIDFromBytes("ks.t".getBytes(UTF_8)))
+            .withPartitioner(Murmur3Partitioner.instance)
+            .addPartitionKey("id", UTF8Type.instance)
+            .addRegularColumn("name", UTF8Type.instance)
+            .addRegularColumn("age", Int32Type.instance);
+    if (withCity) {
+      builder.addRegularColumn("city", UTF8Type.instance);
+    }
+    return builder.build();
+  }
+
+  private static Row row(CFMetaData table, String... columns) {
+    Row.Builder builder = BTreeRow.unsortedBuilder(NOW);
+    builder.newRow(Clustering.EMPTY);
+    for (String name : columns) {
+      ColumnDefinition column = table.getColumnDefinition(ByteBufferUtil.bytes(name));
+      builder.addCell(BufferCell.live(column, 1, value(name)));
+    }
+    return builder.build();
+  }
+
+  private static ByteBuffer value(String column) {
+    switch (column) {
+      case "age":
+        return Int32Type.instance.decompose(42);
+      case "name":
+        return UTF8Type.instance.decompose("bob");
+      default:
+        return UTF8Type.instance.decompose("paris");
+    }
+  }
+}
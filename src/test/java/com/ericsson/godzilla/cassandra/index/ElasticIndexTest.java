@@ -0,0 +1,99 @@
+package com.ericsson.godzilla.cassandra.index;
+
+import com.ericsson.godzilla.cassandra.index.config.IndexConfig;
+import com.ericsson.godzilla.cassandra.index.config.IndexConfiguration;
+import com.ericsson.godzilla.cassandra.index.requests.ElasticClientFactory;
+import com.ericsson.godzilla.cassandra.index.test.JestClientFactoryMock;
+import com.ericsson.godzilla.cassandra.index.test.JestClientMock;
+import com.google.gson.Gson;
+import io.searchbox.core.Delete;
+import io.searchbox.core.DocumentResult;
+import org.apache.cassandra.config.DatabaseDescriptor;
+import org.apache.cassandra.db.BufferDecoratedKey;
+import org.apache.cassandra.db.DecoratedKey;
+import org.apache.cassandra.dht.Murmur3Partitioner;
+import org.apache.cassandra.locator.SimpleSnitch;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.cassandra.utils.Pair;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.annotation.Nonnull;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+public class ElasticIndexTest {
+
+  private static final DecoratedKey KEY =
+      new BufferDecoratedKey(new Murmur3Partitioner.LongToken(42), ByteBufferUtil.bytes("1"));
+  private static final List<Pair<String, String>> PARTITION_KEYS =
+      Collections.singletonList(Pair.create("id", "1"));
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private ElasticIndex index;
+
+  @BeforeClass
+  public static void setupClass() {
+    DatabaseDescriptor.clientInitialization(false);
+    DatabaseDescriptor.setEndpointSnitch(new SimpleSnitch());
+    ElasticClientFactory.setJestClientFactory(JestClientFactoryMock.INSTANCE);
+  }
+
+  @Before
+  public void setup() {
+    JestClientMock.clear();
+    DatabaseDescriptor.getRawConfig().saved_caches_directory = folder.getRoot().getPath();
+  }
+
+  @After
+  public void cleanup() {
+    if (index != null) {
+      index.drop();
+    }
+    JestClientMock.clear();
+  }
+
+  private ElasticIndex open(Map<String, String> options) {
+    index =
+        new ElasticIndex(
+            new IndexConfiguration("test", options),
+            "ks",
+            "table",
+            Collections.singletonList("id"),
+            Collections.emptyList(),
+            new ElasticIndex.PartitionReader() {
+              @Override
+              public void read(@Nonnull ByteBuffer key, @Nonnull ElasticIndex.RowWriter rows) {}
+
+              @Override
+              public void unreadable(@Nonnull ByteBuffer key, boolean isDelete) {}
+            });
+    return index;
+  }
+
+  @Test
+  public void deferredSyncDeleteSucceeds() throws Exception {
+    Map<String, String> options = new HashMap<>();
+    options.put(IndexConfig.ES_ASYNC_WRITE, "false");
+    options.put(IndexConfig.ES_WRITE_QUEUE, "true");
+    ElasticIndex elasticIndex = open(options);
+
+    DocumentResult unavailable = new DocumentResult(new Gson());
+    unavailable.setResponseCode(503);
+    unavailable.setSucceeded(false);
+    JestClientMock.addResponse(unavailable);
+
+    elasticIndex.delete(PARTITION_KEYS, KEY).get(1, TimeUnit.SECONDS); // queued for replay
+    Assert.assertTrue(JestClientMock.lastRequest instanceof Delete);
+  }
+}
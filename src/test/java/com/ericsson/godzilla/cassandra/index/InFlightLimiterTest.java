@@ -0,0 +1,72 @@
+package com.ericsson.godzilla.cassandra.index;
+
+import com.ericsson.godzilla.cassandra.index.config.IndexConfig.InFlightPolicy;
+import com.ericsson.godzilla.cassandra.index.monitor.EsIndexMetrics;
+import org.apache.cassandra.exceptions.OverloadedException;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class InFlightLimiterTest {
+
+  private final EsIndexMetrics metrics = new EsIndexMetrics("test/limiter");
+
+  @Test
+  public void writesAreBoundedInNumber() {
+    InFlightLimiter limiter = new InFlightLimiter(2, 1000, InFlightPolicy.FAIL, 0, metrics);
+    int first = limiter.acquire(10);
+    limiter.acquire(20);
+    Assert.assertEquals(2, metrics.getInFlightWrites());
+    Assert.assertEquals(30, metrics.getInFlightBytes());
+
+    try {
+      limiter.acquire(1);
+      Assert.fail("Only 2 writes can be in flight");
+    } catch (OverloadedException e) {
+      Assert.assertEquals(1, metrics.getRejectedWrites());
+    }
+
+    limiter.release(first);
+    limiter.acquire(1);
+    Assert.assertEquals(21, metrics.getInFlightBytes());
+  }
+
+  @Test
+  public void writesAreBoundedInBytes() {
+    InFlightLimiter limiter = new InFlightLimiter(10, 100, InFlightPolicy.FAIL, 0, metrics);
+    Assert.assertEquals(100, limiter.acquire(500)); // bigger payloads take all the room
+    try {
+      limiter.acquire(1);
+      Assert.fail("All bytes are in flight");
+    } catch (OverloadedException e) {
+      Assert.assertEquals(1, metrics.getInFlightWrites());
+    }
+  }
+
+  @Test
+  public void blockedWritesWaitForRoom() throws InterruptedException {
+    InFlightLimiter limiter = new InFlightLimiter(1, 100, InFlightPolicy.BLOCK, 5000, metrics);
+    int permits = limiter.acquire(10);
+    Thread releaser =
+        new Thread(
+            () -> {
+              try {
+                Thread.sleep(50);
+              } catch (InterruptedException ignored) {
+              }
+              limiter.release(permits);
+            });
+    releaser.start();
+
+    limiter.acquire(10);
+    releaser.join();
+    Assert.assertEquals(1, metrics.getThrottledWrites());
+    Assert.assertEquals(0, metrics.getRejectedWrites());
+  }
+
+  @Test(expected = OverloadedException.class)
+  public void blockedWritesFailAfterTheBlockTime() {
+    InFlightLimiter limiter = new InFlightLimiter(1, 100, InFlightPolicy.BLOCK, 20, metrics);
+    limiter.acquire(10);
+    limiter.acquire(10);
+  }
+}
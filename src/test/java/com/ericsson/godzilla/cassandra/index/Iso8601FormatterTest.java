@@ -0,0 +1,30 @@
+package com.ericsson.godzilla.cassandra.index;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+public class Iso8601FormatterTest {
+
+  @Test
+  public void formatsLikeSimpleDateFormat() {
+    SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+    dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+
+    long now = System.currentTimeMillis();
+    long[] dates = {0L, 1L, 999L, 1000L, -1L, -1001L, 1452001765143L, now, now + 1, now + 1000};
+    for (long date : dates) {
+      Assert.assertEquals(dateFormat.format(new Date(date)), Iso8601Formatter.format(date));
+    }
+  }
+
+  @Test
+  public void millisAreAppendedToTheCachedSecond() {
+    Assert.assertEquals("2016-01-05T13:49:25.143Z", Iso8601Formatter.format(1452001765143L));
+    Assert.assertEquals("2016-01-05T13:49:25.007Z", Iso8601Formatter.format(1452001765007L));
+    Assert.assertEquals("2016-01-05T13:49:26.000Z", Iso8601Formatter.format(1452001766000L));
+  }
+}
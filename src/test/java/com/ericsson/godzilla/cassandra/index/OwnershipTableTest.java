@@ -0,0 +1,111 @@
+package com.ericsson.godzilla.cassandra.index;
+
+import com.ericsson.godzilla.cassandra.index.OwnershipTable.Replicas;
+import com.ericsson.godzilla.cassandra.index.config.IndexConfig.IndexerElection;
+import org.apache.cassandra.dht.Murmur3Partitioner;
+import org.apache.cassandra.dht.Token;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class OwnershipTableTest {
+
+  private static Token token(long value) {
+    return new Murmur3Partitioner.LongToken(value);
+  }
+
+  private static InetAddress address(int last) throws UnknownHostException {
+    return InetAddress.getByAddress(new byte[] {10, 0, 0, (byte) last});
+  }
+
+  private static Replicas replicas(List<InetAddress> replicas, InetAddress local) {
+    return Replicas.of(replicas, a -> true, a -> "dc1", a -> "rack" + a.getAddress()[3], local);
+  }
+
+  @Test
+  public void tokensFallInTheRangeOfTheNextBound() throws UnknownHostException {
+    InetAddress local = address(1);
+    InetAddress other = address(2);
+    Replicas owned = replicas(Arrays.asList(local, other), local);
+    Replicas notOwned = replicas(Arrays.asList(other, local), local);
+    OwnershipTable table =
+        new OwnershipTable(
+            new Token[] {token(-100), token(0), token(100)},
+            new Replicas[] {owned, notOwned, owned});
+
+    IndexerElection first = IndexerElection.FIRST;
+    Assert.assertTrue(table.isOwner(token(-150), first));
+    Assert.assertTrue(table.isOwner(token(-100), first)); // ranges include their right bound
+    Assert.assertFalse(table.isOwner(token(-99), first));
+    Assert.assertFalse(table.isOwner(token(0), first));
+    Assert.assertTrue(table.isOwner(token(1), first));
+    Assert.assertTrue(table.isOwner(token(101), first)); // wraps to the first range
+    Assert.assertFalse(new OwnershipTable(new Token[0], new Replicas[0]).isOwner(token(1), first));
+  }
+
+  @Test
+  public void onlyLiveReplicasOfTheLocalDcAreElected() throws UnknownHostException {
+    InetAddress remote = address(1);
+    InetAddress down = address(2);
+    InetAddress local = address(3);
+    Replicas replicas =
+        Replicas.of(
+            Arrays.asList(remote, down, local),
+            a -> !a.equals(down),
+            a -> a.equals(remote) ? "dc2" : "dc1",
+            a -> "rack1",
+            local);
+    OwnershipTable table = new OwnershipTable(new Token[] {token(0)}, new Replicas[] {replicas});
+    for (IndexerElection election : IndexerElection.values()) {
+      Assert.assertTrue(table.isOwner(token(42), election));
+    }
+
+    Replicas none = Replicas.of(Collections.emptyList(), a -> true, a -> "dc1", a -> "r", local);
+    table = new OwnershipTable(new Token[] {token(0)}, new Replicas[] {none});
+    Assert.assertFalse(table.isOwner(token(42), IndexerElection.TOKEN_HASH));
+  }
+
+  @Test
+  public void electionsSpreadTokensOverReplicasWithoutDuplicates() throws UnknownHostException {
+    List<InetAddress> nodes = Arrays.asList(address(1), address(2), address(3), address(4));
+    for (IndexerElection election : IndexerElection.values()) {
+      int[] elected = new int[nodes.size()];
+      for (long value = 0; value < 4000; value++) {
+        Token token = token(value * 7919);
+        int owners = 0;
+        for (int i = 0; i < nodes.size(); i++) {
+          // each node builds its own table, rack of a node is rack1 or rack2
+          Replicas replicas =
+              Replicas.of(
+                  nodes,
+                  a -> true,
+                  a -> "dc1",
+                  a -> "rack" + (a.getAddress()[3] % 2),
+                  nodes.get(i));
+          OwnershipTable table =
+              new OwnershipTable(new Token[] {token(Long.MAX_VALUE)}, new Replicas[] {replicas});
+          if (table.isOwner(token, election)) {
+            owners++;
+            elected[i]++;
+          }
+        }
+        Assert.assertEquals(election.name(), 1, owners);
+      }
+
+      if (election == IndexerElection.FIRST) {
+        Assert.assertEquals(4000, elected[0]);
+      } else if (election == IndexerElection.TOKEN_HASH) {
+        for (int count : elected) {
+          Assert.assertTrue(election.name() + " " + count, count > 800);
+        }
+      } else { // first replica of each rack
+        Assert.assertTrue(elected[0] > 1600 && elected[1] > 1600);
+      }
+    }
+  }
+}
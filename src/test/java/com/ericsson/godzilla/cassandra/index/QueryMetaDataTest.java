@@ -1,8 +1,15 @@
 package com.ericsson.godzilla.cassandra.index;
 
+import org.apache.cassandra.dht.Murmur3Partitioner;
+import org.apache.cassandra.dht.Range;
+import org.apache.cassandra.dht.Token;
+import org.codehaus.jackson.map.ObjectMapper;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.Arrays;
+import java.util.List;
+
 public class QueryMetaDataTest {
 
   @Test
@@ -35,6 +42,52 @@ public class QueryMetaDataTest {
 
     Assert.assertEquals("Text=42#plop", meta.query);
     Assert.assertTrue(meta.loadRows());
+    Assert.assertFalse(meta.hasTokenRange());
+  }
+
+  @Test
+  public void testTokenRangeFiltersTheQuery() {
+    ObjectMapper mapper = new ObjectMapper();
+    String filter =
+        "\"filter\":{\"bool\":{\"minimum_should_match\":1,\"should\":["
+            + "{\"range\":{\"_cassandraToken\":%s}},"
+            + "{\"bool\":{\"must_not\":{\"exists\":{\"field\":\"_cassandraToken\"}}}}]}}";
+
+    Assert.assertEquals(
+        "{\"size\":10,\"query\":{\"bool\":{\"must\":{\"term\":{\"a\":1}},"
+            + String.format(filter, "{\"gte\":-5,\"lte\":7}")
+            + "}},\"sort\":[\"a\"]}",
+        ElasticIndex.withTokenRange(
+            mapper, "{\"size\":10,\"query\":{\"term\":{\"a\":1}},\"sort\":[\"a\"]}", -5L, 7L));
+
+    Assert.assertEquals(
+        "{\"aggs\":{},\"query\":{\"bool\":{\"must\":{\"match_all\":{}},"
+            + String.format(filter, "{\"gte\":3}")
+            + "}}}",
+        ElasticIndex.withTokenRange(mapper, "{\"aggs\":{}}", 3L, null));
+
+    Assert.assertEquals("{invalid", ElasticIndex.withTokenRange(mapper, "{invalid", 3L, null));
   }
 
+  @Test
+  public void testTokenRangesDeleteQuery() {
+    Token min = Murmur3Partitioner.instance.getMinimumToken();
+    List<Range<Token>> ranges =
+        Arrays.asList(
+            new Range<>(min, new Murmur3Partitioner.LongToken(-5)),
+            new Range<>(new Murmur3Partitioner.LongToken(7), min));
+
+    Assert.assertEquals(
+        "{\"conflicts\":\"proceed\",\"query\":{\"bool\":{\"minimum_should_match\":1,\"should\":["
+            + "{\"range\":{\"_cassandraToken\":{\"lte\":-5}}},"
+            + "{\"range\":{\"_cassandraToken\":{\"gt\":7}}}]}}}",
+        ElasticIndex.tokenRangesQuery(new ObjectMapper(), ranges));
+  }
+
+  @Test
+  public void testTokensDeleteQuery() {
+    Assert.assertEquals(
+        "{\"conflicts\":\"proceed\",\"query\":{\"terms\":{\"_cassandraToken\":[-5,7]}}}",
+        ElasticIndex.tokensQuery(new ObjectMapper(), Arrays.asList(-5L, 7L)));
+  }
 }
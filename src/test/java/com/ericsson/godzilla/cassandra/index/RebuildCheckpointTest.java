@@ -0,0 +1,64 @@
+package com.ericsson.godzilla.cassandra.index;
+
+import com.ericsson.godzilla.cassandra.index.RebuildCheckpoint.Position;
+import org.apache.cassandra.dht.Murmur3Partitioner;
+import org.apache.cassandra.dht.Range;
+import org.apache.cassandra.dht.Token;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+public class RebuildCheckpointTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private static Token token(long value) {
+    return new Murmur3Partitioner.LongToken(value);
+  }
+
+  @Test
+  public void savedPositionsAreLoaded() throws IOException {
+    File file = new File(folder.getRoot(), "ks-table-idx-rebuild.properties");
+    RebuildCheckpoint checkpoint =
+        new RebuildCheckpoint(file, Murmur3Partitioner.instance.getTokenFactory());
+    Assert.assertFalse(checkpoint.exists());
+    Assert.assertTrue(checkpoint.load().isEmpty());
+
+    Token min = Murmur3Partitioner.instance.getMinimumToken();
+    Position started = new Position(7, new Range<>(min, token(-10)));
+    started.last = token(-100);
+    Position done = new Position(7, new Range<>(token(-10), min));
+    done.done = true;
+    Position notStarted = new Position(8, new Range<>(min, min));
+    checkpoint.save(Arrays.asList(started, done, notStarted));
+
+    Map<Integer, List<Position>> loaded = checkpoint.load();
+    Assert.assertEquals(2, loaded.size());
+    Assert.assertEquals(2, loaded.get(7).size());
+    for (Position position : loaded.get(7)) {
+      if (position.range.right.equals(token(-10))) {
+        Assert.assertEquals(new Range<>(token(-100), token(-10)), position.remaining());
+      } else {
+        Assert.assertNull(position.remaining());
+      }
+    }
+    Assert.assertEquals(new Range<>(min, min), loaded.get(8).get(0).remaining());
+
+    checkpoint.delete();
+    Assert.assertFalse(checkpoint.exists());
+  }
+
+  @Test
+  public void rangeEndingAtLastTokenIsDone() {
+    Position position = new Position(1, new Range<>(token(1), token(10)));
+    position.last = token(10);
+    Assert.assertNull(position.remaining());
+  }
+}
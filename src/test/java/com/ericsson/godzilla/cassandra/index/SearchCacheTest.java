@@ -0,0 +1,88 @@
+package com.ericsson.godzilla.cassandra.index;
+
+import com.ericsson.godzilla.cassandra.index.monitor.EsIndexMetrics;
+import com.google.gson.JsonObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+public class SearchCacheTest {
+
+  private static final Map<String, String> NO_OPTIONS = Collections.emptyMap();
+
+  private final EsIndexMetrics metrics = new EsIndexMetrics("test");
+
+  private static List<SearchResultRow> rows(int count) {
+    List<SearchResultRow> rows = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      rows.add(new SearchResultRow(new String[] {"pk" + i}, new JsonObject()));
+    }
+    return rows;
+  }
+
+  @Test
+  public void hitsAreCopiedAndCountedPerKey() {
+    SearchCache cache = new SearchCache(1 << 20, 60000, metrics);
+    SearchCache.Key key = cache.key("{\"query\":{}}", NO_OPTIONS, false);
+    Assert.assertNull(cache.get(key));
+
+    List<SearchResultRow> rows = rows(2);
+    cache.put(key, rows, new JsonObject());
+    rows.get(0).clusteringKeys = new String[] {"ck"}; // filled by the search
+
+    SearchResult cached = cache.get(cache.key("{\"query\":{}}", NO_OPTIONS, false));
+    Assert.assertNotNull(cached);
+    Assert.assertEquals(2, cached.items.size());
+    Assert.assertEquals("pk0", cached.items.get(0).primaryKey[0]);
+    Assert.assertNull(cached.items.get(0).clusteringKeys);
+    Assert.assertNotSame(rows.get(0), cached.items.get(0));
+
+    Map<String, String> loadSource = Collections.singletonMap("load-source", "true");
+    Assert.assertNull(cache.get(cache.key("{\"query\":{}}", loadSource, false)));
+    Assert.assertNull(cache.get(cache.key("{\"query\":{}}", NO_OPTIONS, true)));
+    Assert.assertEquals(1, metrics.getSearchCacheHits());
+    Assert.assertEquals(3, metrics.getSearchCacheMisses());
+    Assert.assertEquals(0.25, metrics.getSearchCacheHitRate(), 0.001);
+  }
+
+  @Test
+  public void invalidationForgetsSearchesInFlight() throws InterruptedException {
+    SearchCache cache = new SearchCache(1 << 20, 60000, metrics);
+    SearchCache.Key key = cache.key("q", NO_OPTIONS, false);
+    cache.put(key, rows(1), new JsonObject());
+    Assert.assertTrue(cache.bytes() > 0);
+
+    SearchCache.Key inFlight = cache.key("q2", NO_OPTIONS, false);
+    cache.invalidate();
+    Assert.assertEquals(0, cache.bytes());
+    Assert.assertNull(cache.get(cache.key("q", NO_OPTIONS, false)));
+    cache.put(inFlight, rows(1), new JsonObject()); // sent before the invalidation
+    Assert.assertNull(cache.get(cache.key("q2", NO_OPTIONS, false)));
+
+    SearchCache expiring = new SearchCache(1 << 20, 1, metrics);
+    expiring.put(expiring.key("q", NO_OPTIONS, false), rows(1), new JsonObject());
+    Thread.sleep(5);
+    Assert.assertNull(expiring.get(expiring.key("q", NO_OPTIONS, false)));
+    Assert.assertEquals(0, expiring.bytes());
+  }
+
+  @Test
+  public void leastRecentlyUsedSearchesAreEvicted() {
+    SearchCache cache = new SearchCache(8 * 1024, 60000, metrics);
+    Assert.assertTrue(cache.isSame(8 * 1024, 60000));
+    cache.put(cache.key("big", NO_OPTIONS, false), rows(100), new JsonObject());
+    Assert.assertEquals(0, cache.bytes()); // more than an eighth of the cache
+
+    for (int i = 0; i < 100; i++) {
+      cache.put(cache.key("q" + i, NO_OPTIONS, false), rows(1), new JsonObject());
+      Assert.assertNotNull(cache.get(cache.key("q0", NO_OPTIONS, false))); // keep it used
+    }
+    Assert.assertTrue(cache.bytes() <= 8 * 1024);
+    Assert.assertNull(cache.get(cache.key("q1", NO_OPTIONS, false)));
+    Assert.assertNotNull(cache.get(cache.key("q99", NO_OPTIONS, false)));
+  }
+}
@@ -0,0 +1,58 @@
+package com.ericsson.godzilla.cassandra.index;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class SearchResponseReaderTest {
+
+  private static final String RESPONSE =
+      "{\"_scroll_id\":\"abc\",\"took\":3,\"timed_out\":false,"
+          + "\"hits\":{\"total\":3,\"max_score\":1.5,\"hits\":["
+          + "{\"_index\":\"ks\",\"_id\":\"1\",\"_score\":1.5,"
+          + "\"_source\":{\"id\":\"a\",\"rank\":7,\"name\":\"x\"},\"highlight\":{\"name\":[\"x\"]}},"
+          + "{\"_id\":\"2\",\"_score\":null,\"_source\":{\"rank\":8}},"
+          + "{\"_id\":\"3\",\"_score\":1.0,\"_source\":{\"rank\":[9],\"id\":\"c\"}}]},"
+          + "\"aggregations\":{\"count\":{\"value\":3}}}";
+
+  private final SearchResponseReader reader =
+      new SearchResponseReader(Arrays.asList("id", "rank"));
+
+  @Test
+  public void hitsAreRead() {
+    SearchResponseReader.Page page = reader.read(RESPONSE, false);
+
+    Assert.assertEquals(3, page.hits);
+    Assert.assertEquals(2, page.rows.size()); // second hit has no id
+    Assert.assertArrayEquals(new String[] {"a", "7"}, page.rows.get(0).primaryKey);
+    Assert.assertArrayEquals(new String[] {"c", "9"}, page.rows.get(1).primaryKey);
+
+    Assert.assertEquals("1", page.rows.get(0).docMetadata.get("_id").getAsString());
+    Assert.assertEquals(1.5, page.rows.get(0).docMetadata.get("_score").getAsDouble(), 0);
+    Assert.assertFalse(page.rows.get(0).docMetadata.has("_source"));
+    Assert.assertFalse(page.rows.get(0).docMetadata.has("highlight"));
+  }
+
+  @Test
+  public void metadataHasNoHits() {
+    SearchResponseReader.Page page = reader.read(RESPONSE, false);
+
+    Assert.assertEquals("abc", page.scrollId);
+    Assert.assertEquals(3, page.metadata.get("took").getAsInt());
+    Assert.assertEquals(3, page.metadata.getAsJsonObject("hits").get("total").getAsInt());
+    Assert.assertFalse(page.metadata.getAsJsonObject("hits").has("hits"));
+    Assert.assertTrue(page.metadata.has("aggregations"));
+    Assert.assertEquals("abc", page.metadata.get("_scroll_id").getAsString());
+  }
+
+  @Test
+  public void sourceIsLoaded() {
+    SearchResponseReader.Page page = reader.read(RESPONSE, true);
+
+    Assert.assertEquals(2, page.rows.size());
+    Assert.assertArrayEquals(new String[] {"a", "7"}, page.rows.get(0).primaryKey);
+    Assert.assertEquals(
+        "x", page.rows.get(0).docMetadata.getAsJsonObject("_source").get("name").getAsString());
+  }
+}
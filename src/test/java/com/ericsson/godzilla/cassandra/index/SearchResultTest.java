@@ -0,0 +1,73 @@
+package com.ericsson.godzilla.cassandra.index;
+
+import com.google.gson.JsonObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+public class SearchResultTest {
+
+  @Test
+  public void nextPagesAreFetchedWhenNeeded() {
+    TestPages pages = new TestPages(Arrays.asList(row("2"), row("3")), Collections.emptyList());
+    SearchResult result = new SearchResult(Collections.singletonList(row("1")), null, pages);
+
+    Iterator<SearchResultRow> hits = result.iterator();
+    Assert.assertEquals("1", hits.next().primaryKey[0]);
+    Assert.assertEquals(0, pages.fetched);
+
+    Assert.assertEquals("2", hits.next().primaryKey[0]);
+    Assert.assertEquals("3", hits.next().primaryKey[0]);
+    Assert.assertEquals(1, pages.fetched);
+
+    Assert.assertFalse(hits.hasNext());
+    Assert.assertEquals(2, pages.fetched);
+
+    result.close();
+    Assert.assertTrue(pages.closed);
+  }
+
+  @Test
+  public void resultWithoutPagesOnlyHasItems() {
+    SearchResult result = new SearchResult(Arrays.asList(row("1"), row("2")), null);
+
+    List<String> keys = new ArrayList<>();
+    result.forEach(hit -> keys.add(hit.primaryKey[0]));
+    result.close();
+
+    Assert.assertEquals(Arrays.asList("1", "2"), keys);
+  }
+
+  private static SearchResultRow row(String key) {
+    return new SearchResultRow(new String[] {key}, new JsonObject());
+  }
+
+  private static class TestPages implements SearchResult.Pages {
+    private final Deque<List<SearchResultRow>> pages = new ArrayDeque<>();
+    private int fetched;
+    private boolean closed;
+
+    @SafeVarargs
+    TestPages(List<SearchResultRow>... pages) {
+      this.pages.addAll(Arrays.asList(pages));
+    }
+
+    @Override
+    public List<SearchResultRow> next() {
+      fetched++;
+      return pages.isEmpty() ? Collections.emptyList() : pages.poll();
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+  }
+}
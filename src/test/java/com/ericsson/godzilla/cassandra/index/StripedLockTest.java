@@ -0,0 +1,44 @@
+package com.ericsson.godzilla.cassandra.index;
+
+import com.ericsson.godzilla.cassandra.index.monitor.EsIndexMetrics;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+public class StripedLockTest {
+
+  @Test
+  public void sizeIsRoundedToPowerOfTwo() {
+    EsIndexMetrics metrics = new EsIndexMetrics("test");
+    Assert.assertEquals(1, new StripedLock(0, metrics).size());
+    Assert.assertEquals(1024, new StripedLock(1000, metrics).size());
+    Assert.assertEquals(1 << 16, new StripedLock(Integer.MAX_VALUE, metrics).size());
+    Assert.assertEquals(1024, StripedLock.size(1000));
+  }
+
+  @Test
+  public void contentionIsCounted() throws InterruptedException {
+    EsIndexMetrics metrics = new EsIndexMetrics("test");
+    StripedLock locks = new StripedLock(16, metrics);
+
+    Lock lock = locks.lock("0001".hashCode());
+    CountDownLatch acquired = new CountDownLatch(1);
+    Thread other =
+        new Thread(
+            () -> {
+              locks.lock("0001".hashCode()).unlock();
+              acquired.countDown();
+            });
+    other.start();
+
+    Assert.assertFalse(acquired.await(50, TimeUnit.MILLISECONDS));
+    lock.unlock();
+    Assert.assertTrue(acquired.await(5, TimeUnit.SECONDS));
+
+    Assert.assertEquals(2, metrics.getLockAcquisitions());
+    Assert.assertEquals(1, metrics.getLockContentions());
+  }
+}
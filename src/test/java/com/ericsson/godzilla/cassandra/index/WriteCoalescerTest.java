@@ -0,0 +1,275 @@
+package com.ericsson.godzilla.cassandra.index;
+
+import com.ericsson.godzilla.cassandra.index.CellElement.CollectionValue;
+import com.ericsson.godzilla.cassandra.index.CellElement.CollectionValue.CollectionType;
+import com.ericsson.godzilla.cassandra.index.config.IndexConfig.InFlightPolicy;
+import com.ericsson.godzilla.cassandra.index.monitor.EsIndexMetrics;
+import com.ericsson.godzilla.cassandra.index.requests.ResponseHandler;
+import com.google.gson.Gson;
+import io.searchbox.core.Delete;
+import io.searchbox.core.DocumentResult;
+import org.apache.cassandra.db.BufferDecoratedKey;
+import org.apache.cassandra.db.DecoratedKey;
+import org.apache.cassandra.dht.Murmur3Partitioner;
+import org.apache.cassandra.exceptions.OverloadedException;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.cassandra.utils.Pair;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
+
+public class WriteCoalescerTest {
+
+  private static final List<Pair<String, String>> PK =
+      Collections.singletonList(Pair.create("id", "1"));
+  private static final DecoratedKey KEY =
+      new BufferDecoratedKey(new Murmur3Partitioner.LongToken(42), ByteBufferUtil.bytes("1"));
+  private static final DecoratedKey OTHER_KEY =
+      new BufferDecoratedKey(new Murmur3Partitioner.LongToken(43), ByteBufferUtil.bytes("2"));
+
+  private final List<List<CellElement>> sent = new ArrayList<>();
+  private final Set<String> senders = new HashSet<>();
+
+  private ResponseHandler<DocumentResult> record(
+      List<Pair<String, String>> partitionKeys,
+      DecoratedKey decoratedKey,
+      String docId,
+      List<CellElement> elements,
+      long expirationTime,
+      boolean isInsert) {
+    sent.add(new ArrayList<>(elements));
+    senders.add(Thread.currentThread().getName());
+    ResponseHandler<DocumentResult> handler =
+        new ResponseHandler<>("Contact", new Delete.Builder(docId).build());
+    DocumentResult result = new DocumentResult(new Gson());
+    result.setResponseCode(200);
+    result.setSucceeded(true);
+    handler.completed(result);
+    return handler;
+  }
+
+  private static String describe(List<CellElement> elements) {
+    return elements
+        .stream()
+        .map(e -> e.name + "=" + (e.collectionValue == null ? e.value : e.collectionValue.name))
+        .collect(Collectors.joining(","));
+  }
+
+  @Test
+  public void lastValueOfEachFieldIsSent() throws IOException {
+    try (WriteCoalescer coalescer =
+        new WriteCoalescer("Contact", 60000, () -> null, this::record)) {
+      WriteCoalescer.PendingDoc first =
+          coalescer.add(
+              PK,
+              KEY,
+              "1",
+              Arrays.asList(CellElement.create("a", "1", null), CellElement.create("b", "1", null)),
+              0,
+              false);
+      WriteCoalescer.PendingDoc second =
+          coalescer.add(
+              PK,
+              KEY,
+              "1",
+              Collections.singletonList(CellElement.create("a", "2", null)),
+              0,
+              false);
+      Assert.assertSame(first, second);
+      Assert.assertTrue(sent.isEmpty());
+
+      coalescer.flush();
+      first.waitForSuccess();
+      Assert.assertEquals(1, sent.size());
+      Assert.assertEquals("b=1,a=2", describe(sent.get(0)));
+      Assert.assertEquals(Collections.singleton("EsCoalesce-Contact"), senders); // not the caller
+    }
+  }
+
+  @Test
+  public void mapsAreMergedListsAreReplaced() throws IOException {
+    try (WriteCoalescer coalescer =
+        new WriteCoalescer("Contact", 60000, () -> null, this::record)) {
+      coalescer.add(
+          PK,
+          KEY,
+          "1",
+          Arrays.asList(
+              CellElement.create("m", null, CollectionValue.create("k1", "v", CollectionType.MAP)),
+              CellElement.create("l", null, CollectionValue.create("x", null, CollectionType.LIST))),
+          0,
+          false);
+      coalescer
+          .add(
+              PK,
+              KEY,
+              "1",
+              Arrays.asList(
+                  CellElement.create("m", null, CollectionValue.create("k2", "v", CollectionType.MAP)),
+                  CellElement.create("l", null, CollectionValue.create("y", null, CollectionType.LIST))),
+              0,
+              false);
+
+      coalescer.flush();
+      Assert.assertEquals("m=k1,m=k2,l=y", describe(sent.get(0)));
+    }
+  }
+
+  @Test
+  public void deleteDropsThePendingDocument() throws IOException {
+    try (WriteCoalescer coalescer =
+        new WriteCoalescer("Contact", 60000, () -> null, this::record)) {
+      WriteCoalescer.PendingDoc doc =
+          coalescer.add(
+              PK,
+              KEY,
+              "1",
+              Collections.singletonList(CellElement.create("a", "1", null)),
+              0,
+              false);
+      WriteCoalescer.PendingDoc row =
+          coalescer.add(
+              PK,
+              KEY,
+              "1-ck",
+              Collections.singletonList(CellElement.create("a", "1", null)),
+              0,
+              false);
+      Assert.assertTrue(coalescer.discard(OTHER_KEY).isEmpty());
+      Assert.assertEquals(Arrays.asList(doc, row), coalescer.discard(KEY)); // and its rows
+
+      coalescer.flush();
+      Assert.assertTrue(sent.isEmpty()); // the upsert would re-create the deleted document
+
+      ResponseHandler<DocumentResult> delete =
+          record(PK, KEY, "1", Collections.emptyList(), 0, false);
+      doc.supersede(delete);
+      row.supersede(delete);
+      doc.waitForSuccess();
+      row.waitForSuccess();
+    }
+  }
+
+  @Test
+  public void nextVersionIsSentOnceThePreviousOneIsAcknowledged() throws Exception {
+    List<ResponseHandler<DocumentResult>> handlers = new CopyOnWriteArrayList<>();
+    List<CellElement> first = Collections.singletonList(CellElement.create("a", "1", null));
+    List<CellElement> second = Collections.singletonList(CellElement.create("a", "2", null));
+    try (WriteCoalescer coalescer =
+        new WriteCoalescer("Contact", 60000, () -> null, unacknowledged(handlers))) {
+      coalescer.add(PK, KEY, "1", first, 0, false);
+      coalescer.flush();
+      Assert.assertEquals(1, sent.size());
+
+      WriteCoalescer.PendingDoc next = coalescer.add(PK, KEY, "1", second, 0, false);
+      Thread flusher = new Thread(coalescer::flush);
+      flusher.start();
+      flusher.join(100);
+      Assert.assertEquals(1, sent.size()); // two versions are never in flight at once
+
+      handlers.get(0).completed(ok());
+      flusher.join();
+      Assert.assertEquals(2, sent.size());
+      Assert.assertEquals("a=2", describe(sent.get(1)));
+      handlers.get(1).completed(ok());
+      next.waitForSuccess();
+    }
+  }
+
+  @Test
+  public void versionWaitingForThePreviousOneIsDroppedByADelete() throws Exception {
+    List<ResponseHandler<DocumentResult>> handlers = new CopyOnWriteArrayList<>();
+    List<CellElement> cells = Collections.singletonList(CellElement.create("a", "1", null));
+    try (WriteCoalescer coalescer =
+        new WriteCoalescer("Contact", 1, () -> null, unacknowledged(handlers))) {
+      coalescer.add(PK, KEY, "1", cells, 0, false);
+      while (handlers.isEmpty()) {
+        Thread.sleep(1);
+      }
+      WriteCoalescer.PendingDoc waiting = coalescer.add(PK, KEY, "1", cells, 0, false);
+      while (coalescer.size() > 0) {
+        Thread.sleep(1); // taken by the window thread, not sent
+      }
+
+      Assert.assertEquals(Collections.singletonList(waiting), coalescer.discard(KEY));
+      ResponseHandler<DocumentResult> delete =
+          new ResponseHandler<>("Contact", new Delete.Builder("1").build());
+      waiting.supersede(delete);
+      delete.completed(ok());
+      handlers.get(0).completed(ok());
+      coalescer.flush();
+      waiting.waitForSuccess();
+      Assert.assertEquals(1, handlers.size());
+    }
+  }
+
+  /** @return a writer that leaves the documents it sends in flight */
+  private WriteCoalescer.DocumentWriter unacknowledged(
+      List<ResponseHandler<DocumentResult>> handlers) {
+    return (partitionKeys, decoratedKey, docId, elements, expirationTime, isInsert) -> {
+      sent.add(new ArrayList<>(elements));
+      ResponseHandler<DocumentResult> handler =
+          new ResponseHandler<>("Contact", new Delete.Builder(docId).build());
+      handlers.add(handler);
+      return handler;
+    };
+  }
+
+  private static DocumentResult ok() {
+    DocumentResult result = new DocumentResult(new Gson());
+    result.setResponseCode(200);
+    result.setSucceeded(true);
+    return result;
+  }
+
+  @Test
+  public void roomIsReservedWhenADocumentIsAdded() throws IOException {
+    EsIndexMetrics metrics = new EsIndexMetrics("test/coalescer");
+    InFlightLimiter limiter = new InFlightLimiter(1, 1 << 20, InFlightPolicy.FAIL, 0, metrics);
+    List<CellElement> cells = Collections.singletonList(CellElement.create("a", "1", null));
+    try (WriteCoalescer coalescer =
+        new WriteCoalescer("Contact", 60000, () -> limiter, this::record)) {
+      coalescer.add(PK, KEY, "1", cells, 0, false);
+      coalescer.add(PK, KEY, "1", cells, 0, false); // merged, no more room needed
+      Assert.assertEquals(1, metrics.getInFlightWrites());
+
+      try {
+        coalescer.add(PK, KEY, "2", cells, 0, false);
+        Assert.fail("Only 1 document can be in flight");
+      } catch (OverloadedException e) {
+        Assert.assertTrue(sent.isEmpty()); // the caller is told, not the window thread
+      }
+
+      coalescer.flush();
+      Assert.assertEquals(0, metrics.getInFlightWrites());
+      coalescer.add(PK, KEY, "2", cells, 0, false);
+      Assert.assertEquals(1, metrics.getInFlightWrites());
+    }
+  }
+
+  @Test
+  public void documentIsSentAfterWindow() throws IOException {
+    try (WriteCoalescer coalescer =
+        new WriteCoalescer("Contact", 5, () -> null, this::record)) {
+      coalescer
+          .add(
+              PK,
+              KEY,
+              "1",
+              Collections.singletonList(CellElement.create("a", "1", null)),
+              0,
+              false)
+          .waitForSuccess();
+      Assert.assertEquals(1, sent.size());
+    }
+  }
+}
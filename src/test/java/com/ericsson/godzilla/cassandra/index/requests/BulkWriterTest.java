@@ -0,0 +1,130 @@
+package com.ericsson.godzilla.cassandra.index.requests;
+
+import com.ericsson.godzilla.cassandra.index.test.JestClientMock;
+import com.google.gson.Gson;
+import com.google.gson.JsonParser;
+import io.searchbox.core.Bulk;
+import io.searchbox.core.BulkResult;
+import io.searchbox.core.Delete;
+import io.searchbox.core.DocumentResult;
+import io.searchbox.core.Index;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BulkWriterTest {
+
+  private final JestClientMock client = new JestClientMock();
+
+  @Before
+  public void setup() {
+    JestClientMock.clear();
+  }
+
+  @After
+  public void cleanup() {
+    JestClientMock.clear();
+  }
+
+  private static BulkResult bulkResult(String json) {
+    BulkResult result = new BulkResult(new Gson());
+    result.setJsonObject(new JsonParser().parse(json).getAsJsonObject());
+    result.setResponseCode(200);
+    result.setSucceeded(true);
+    return result;
+  }
+
+  @Test
+  public void flushOnMaxActionsMapsItemsBack() {
+    JestClientMock.addResponse(
+        bulkResult(
+            "{\"errors\":true,\"items\":["
+                + "{\"index\":{\"_index\":\"ucs\",\"_type\":\"Contact\",\"_id\":\"1\",\"status\":201}},"
+                + "{\"delete\":{\"_index\":\"ucs\",\"_type\":\"Contact\",\"_id\":\"2\",\"status\":404}}]}"));
+
+    try (BulkWriter writer = new BulkWriter("Contact", client, null, 2, 1 << 20, 60000)) {
+      ResponseHandler<DocumentResult> first =
+          writer.add(new Index.Builder("{}").index("ucs").type("Contact").id("1").build(), 2);
+      Assert.assertTrue(JestClientMock.receivedRequests.isEmpty());
+
+      ResponseHandler<DocumentResult> second =
+          writer.add(new Delete.Builder("2").index("ucs").type("Contact").build(), 1);
+
+      Assert.assertEquals(1, JestClientMock.receivedRequests.size());
+      Assert.assertTrue(JestClientMock.lastRequest instanceof Bulk);
+      Assert.assertEquals(201, first.waitForSuccess().getResponseCode());
+      second.waitForStatus(200, 404, 204);
+    }
+  }
+
+  @Test
+  public void flushOnLinger() {
+    JestClientMock.addResponse(
+        bulkResult("{\"errors\":false,\"items\":[{\"index\":{\"_index\":\"ucs\",\"_type\":\"Contact\",\"_id\":\"1\",\"status\":200}}]}"));
+
+    try (BulkWriter writer = new BulkWriter("Contact", client, "Contact", 100, 1 << 20, 5)) {
+      ResponseHandler<DocumentResult> handler =
+          writer.add(new Index.Builder("{}").index("ucs").type("Contact").id("1").build(), 2);
+
+      Assert.assertTrue(handler.waitForSuccess().isSucceeded());
+      Assert.assertTrue(JestClientMock.lastRequest.getURI().contains("pipeline=Contact"));
+    }
+  }
+
+  @Test
+  public void failedItemIsReportedToItsWriter() {
+    JestClientMock.addResponse(
+        bulkResult(
+            "{\"errors\":true,\"items\":[{\"update\":{\"_index\":\"ucs\",\"_type\":\"Contact\",\"_id\":\"1\",\"status\":409,"
+                + "\"error\":{\"type\":\"version_conflict_engine_exception\"}}}]}"));
+
+    try (BulkWriter writer = new BulkWriter("Contact", client, null, 1, 1 << 20, 60000)) {
+      ResponseHandler<DocumentResult> handler =
+          writer.add(new Index.Builder("{}").index("ucs").type("Contact").id("1").build(), 2);
+
+      Assert.assertFalse(handler.waitForResult().isSucceeded());
+      Assert.assertEquals(409, handler.waitForResult().getResponseCode());
+    }
+  }
+
+  @Test
+  public void awaitInFlightSendsAndCountsFailures() {
+    JestClientMock.addResponse(
+        bulkResult(
+            "{\"errors\":true,\"items\":["
+                + "{\"index\":{\"_index\":\"ucs\",\"_type\":\"Contact\",\"_id\":\"1\",\"status\":201}},"
+                + "{\"index\":{\"_index\":\"ucs\",\"_type\":\"Contact\",\"_id\":\"2\",\"status\":400,"
+                + "\"error\":{\"type\":\"mapper_parsing_exception\"}}}]}"));
+
+    try (BulkWriter writer = new BulkWriter("Contact", client, null, 100, 1 << 20, 60000)) {
+      writer.add(new Index.Builder("{}").index("ucs").type("Contact").id("1").build(), 2);
+      writer.add(new Index.Builder("{}").index("ucs").type("Contact").id("2").build(), 2);
+      writer.awaitInFlight(2); // nothing to wait for
+      Assert.assertTrue(JestClientMock.receivedRequests.isEmpty());
+
+      writer.awaitInFlight(0);
+      Assert.assertEquals(1, JestClientMock.receivedRequests.size());
+      Assert.assertEquals(1, writer.getFailures());
+      Assert.assertEquals(1, writer.getRejections());
+    }
+  }
+
+  @Test
+  public void failedBulkIsNotCountedAsRejections() {
+    try (BulkWriter writer = new BulkWriter("Contact", client, null, 100, 1 << 20, 60000)) {
+      writer.add(new Index.Builder("{}").index("ucs").type("Contact").id("1").build(), 2);
+      writer.awaitInFlight(0); // no response queued in the mock, the whole bulk fails
+      Assert.assertEquals(1, writer.getFailures());
+      Assert.assertEquals(0, writer.getRejections());
+    }
+  }
+
+  @Test(expected = RuntimeException.class)
+  public void missingItemsFailAllWriters() {
+    try (BulkWriter writer = new BulkWriter("Contact", client, null, 1, 1 << 20, 60000)) {
+      writer.add(new Index.Builder("{}").index("ucs").type("Contact").id("1").build(), 2)
+          .waitForResult();
+    }
+  }
+}
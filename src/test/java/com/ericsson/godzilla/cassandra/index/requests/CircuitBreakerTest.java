@@ -0,0 +1,80 @@
+package com.ericsson.godzilla.cassandra.index.requests;
+
+import com.google.gson.Gson;
+import io.searchbox.client.JestResult;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class CircuitBreakerTest {
+
+  private static JestResult result(int code) {
+    JestResult result = new JestResult(new Gson());
+    result.setResponseCode(code);
+    result.setSucceeded(code < 300);
+    return result;
+  }
+
+  private static CircuitBreaker breaker(long slowCallMs, AtomicBoolean healthy) {
+    return new CircuitBreaker(
+        "test",
+        50,
+        slowCallMs,
+        4,
+        10,
+        () -> CompletableFuture.completedFuture(result(healthy.get() ? 200 : 503)));
+  }
+
+  @Test
+  public void opensOnFailureRateAndClosesOnceProbed() throws InterruptedException {
+    AtomicBoolean healthy = new AtomicBoolean(false);
+    try (CircuitBreaker breaker = breaker(0, healthy)) {
+      long now = System.nanoTime();
+      breaker.record(result(200), null, now);
+      breaker.record(null, new IOException("refused"), now);
+      breaker.record(result(404), null, now); // ES answered
+      Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+      breaker.record(result(503), null, now); // 2 failures of 4 requests
+      Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+      Assert.assertFalse(breaker.allowRequest());
+
+      Thread.sleep(50); // failed probes keep it open
+      Assert.assertNotEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+      healthy.set(true);
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+      while (breaker.getState() != CircuitBreaker.State.CLOSED && System.nanoTime() < deadline) {
+        Thread.sleep(5);
+      }
+      Assert.assertTrue(breaker.allowRequest());
+    }
+  }
+
+  @Test
+  public void slowRequestsCountAsFailures() {
+    try (CircuitBreaker breaker = breaker(100, new AtomicBoolean(false))) {
+      long slowStart = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(200);
+      breaker.record(result(200), null, System.nanoTime());
+      breaker.record(result(200), null, slowStart);
+      breaker.record(result(200), null, System.nanoTime());
+      Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState()); // 1 of 3
+      breaker.record(result(200), null, slowStart);
+      Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+  }
+
+  @Test
+  public void onlyUnavailabilityIsAFailure() {
+    Assert.assertTrue(CircuitBreaker.isFailure(null, new IOException()));
+    Assert.assertTrue(CircuitBreaker.isFailure(result(0), null));
+    Assert.assertTrue(CircuitBreaker.isFailure(result(429), null));
+    Assert.assertTrue(CircuitBreaker.isFailure(result(502), null));
+    Assert.assertFalse(CircuitBreaker.isFailure(result(400), null));
+    Assert.assertFalse(CircuitBreaker.isFailure(result(201), null));
+  }
+}
@@ -0,0 +1,87 @@
+package com.ericsson.godzilla.cassandra.index.requests;
+
+import com.google.gson.Gson;
+import io.searchbox.core.Delete;
+import io.searchbox.core.DocumentResult;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+public class ResponseHandlerTest {
+
+  private static DocumentResult result(int code) {
+    DocumentResult result = new DocumentResult(new Gson());
+    result.setResponseCode(code);
+    result.setSucceeded(code < 300);
+    return result;
+  }
+
+  private static ResponseHandler<DocumentResult> handler(long timeoutMs) {
+    return new ResponseHandler<>("Contact", new Delete.Builder("1").build(), timeoutMs);
+  }
+
+  @Test
+  public void waitGivesUpAtTheDeadline() {
+    ResponseHandler<DocumentResult> handler = handler(50);
+    long start = System.nanoTime();
+    try {
+      handler.waitForResult();
+      Assert.fail("No response was received");
+    } catch (EsRequestExecutionException e) {
+      Assert.assertTrue(e.getMessage().contains("after 50ms"));
+    }
+    Assert.assertTrue(System.nanoTime() - start >= 50_000_000L);
+
+    handler.completed(result(200)); // a late response is still returned to next waits
+    Assert.assertEquals(200, handler.waitForResult().getResponseCode());
+  }
+
+  @Test
+  public void completedResponsesAreComposed() {
+    ResponseHandler<DocumentResult> first = handler(0);
+    ResponseHandler<DocumentResult> second = handler(0);
+    CompletableFuture<Integer> composed =
+        first
+            .toSuccessFuture()
+            .thenCompose(res -> second.toFuture())
+            .thenApply(DocumentResult::getResponseCode);
+
+    first.completed(result(201));
+    Assert.assertFalse(composed.isDone());
+    second.completed(result(404));
+    Assert.assertEquals(404, (int) ResponseHandler.await(composed, 1000, "test"));
+  }
+
+  @Test
+  public void errorsStopComposedSteps() {
+    ResponseHandler<DocumentResult> first = handler(0);
+    CompletableFuture<DocumentResult> composed =
+        first.toSuccessFuture().thenCompose(res -> handler(0).toFuture());
+
+    first.completed(result(409));
+    try {
+      ResponseHandler.await(composed, 1000, "test");
+      Assert.fail("First step failed");
+    } catch (EsRequestExecutionException e) {
+      Assert.assertTrue(e.getMessage().startsWith("409"));
+    }
+  }
+
+  @Test(expected = RuntimeException.class)
+  public void failuresAreThrown() {
+    ResponseHandler<DocumentResult> handler = handler(1000);
+    handler.failed(new IOException("connection refused"));
+    handler.waitForResult();
+  }
+
+  @Test
+  public void futuresAreNotCompletedByCallers() {
+    ResponseHandler<DocumentResult> handler = handler(0);
+    handler.toFuture().completeExceptionally(new CompletionException(new IOException()));
+    handler.completed(result(200));
+    Assert.assertEquals(200, handler.waitForSuccess().getResponseCode());
+  }
+}
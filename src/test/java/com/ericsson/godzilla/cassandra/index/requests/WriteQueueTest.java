@@ -0,0 +1,267 @@
+package com.ericsson.godzilla.cassandra.index.requests;
+
+import com.ericsson.godzilla.cassandra.index.monitor.EsIndexMetrics;
+import com.ericsson.godzilla.cassandra.index.test.JestClientMock;
+import com.google.gson.Gson;
+import io.searchbox.core.Delete;
+import io.searchbox.core.DocumentResult;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+public class WriteQueueTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private static byte[] bytes(String value) {
+    return value.getBytes(UTF_8);
+  }
+
+  private static String string(WriteQueue.Record record) {
+    return new String(record.data, UTF_8);
+  }
+
+  @Test
+  public void recordsAreReadInOrderFromAnOffset() throws IOException {
+    WriteQueue queue = new WriteQueue(folder.getRoot(), 1024, 1024 * 1024);
+    Assert.assertNull(queue.nextSegment());
+    queue.add(bytes("a"));
+    queue.add(bytes("bb"));
+    queue.add(bytes("ccc"));
+
+    File segment = queue.nextSegment();
+    Assert.assertNotNull(segment);
+    List<WriteQueue.Record> records = WriteQueue.read(segment, 0, 2);
+    Assert.assertEquals(2, records.size());
+    Assert.assertEquals("a", string(records.get(0)));
+    Assert.assertEquals("bb", string(records.get(1)));
+
+    records = WriteQueue.read(segment, records.get(1).end, 10);
+    Assert.assertEquals(1, records.size());
+    Assert.assertEquals("ccc", string(records.get(0)));
+
+    queue.add(bytes("d")); // goes to a new segment
+    queue.delete(segment);
+    File next = queue.nextSegment();
+    Assert.assertNotEquals(segment, next);
+    Assert.assertEquals("d", string(WriteQueue.read(next, 0, 10).get(0)));
+    queue.delete(next);
+    Assert.assertNull(queue.nextSegment());
+    Assert.assertEquals(0, queue.size());
+  }
+
+  @Test
+  public void recordsSurviveARestart() throws IOException {
+    WriteQueue queue = new WriteQueue(folder.getRoot(), 16, 1024 * 1024);
+    for (int i = 0; i < 5; i++) {
+      queue.add(bytes("record-" + i)); // one segment per record
+    }
+    long size = queue.size();
+    queue.close();
+
+    WriteQueue reopened = new WriteQueue(folder.getRoot(), 16, 1024 * 1024);
+    Assert.assertEquals(size, reopened.size());
+    for (int i = 0; i < 5; i++) {
+      File segment = reopened.nextSegment();
+      Assert.assertEquals("record-" + i, string(WriteQueue.read(segment, 0, 10).get(0)));
+      reopened.delete(segment);
+    }
+    Assert.assertNull(reopened.nextSegment());
+  }
+
+  @Test
+  public void tornAndCorruptedRecordsEndTheSegment() throws IOException {
+    WriteQueue queue = new WriteQueue(folder.getRoot(), 1024, 1024 * 1024);
+    queue.add(bytes("first"));
+    queue.add(bytes("second"));
+    queue.add(bytes("third"));
+    File segment = queue.nextSegment();
+
+    try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+      file.setLength(file.length() - 2); // crash while writing the last record
+      file.seek(8 + 5 + 8); // first byte of the second record
+      file.write('S');
+    }
+    List<WriteQueue.Record> records = WriteQueue.read(segment, 0, 10);
+    Assert.assertEquals(1, records.size());
+    Assert.assertEquals("first", string(records.get(0)));
+  }
+
+  @Test
+  public void fullQueueRefusesRecords() throws IOException {
+    WriteQueue queue = new WriteQueue(folder.getRoot(), 1024, 30);
+    Assert.assertTrue(queue.add(bytes("0123456789")));
+    Assert.assertFalse(queue.add(bytes("0123456789ABCDEF")));
+    queue.close();
+    try {
+      queue.add(bytes("0"));
+      Assert.fail("Queue is closed");
+    } catch (IOException expected) {
+    }
+  }
+
+  @Test
+  public void deferredWritesRoundTrip() throws IOException {
+    ByteBuffer key = ByteBuffer.wrap(bytes("é"));
+    DeferredWrite update = new DeferredWrite(DeferredWrite.Kind.UPDATE, "idx", "[\"1\"]", key);
+    DeferredWrite copy = DeferredWrite.fromBytes(update.toBytes());
+    Assert.assertEquals(DeferredWrite.Kind.UPDATE, copy.kind);
+    Assert.assertEquals("idx", copy.index);
+    Assert.assertEquals("[\"1\"]", copy.id);
+    Assert.assertArrayEquals(bytes("é"), copy.key);
+  }
+
+  @Test
+  public void onlyTransientFailuresAreRetried() {
+    Assert.assertTrue(DeferredWrite.isRetryable(null));
+    Assert.assertTrue(DeferredWrite.isRetryable(result(429)));
+    Assert.assertTrue(DeferredWrite.isRetryable(result(503)));
+    Assert.assertFalse(DeferredWrite.isRetryable(result(200)));
+    Assert.assertFalse(DeferredWrite.isRetryable(result(400)));
+    Assert.assertFalse(DeferredWrite.isRetryable(result(404)));
+    Assert.assertFalse(DeferredWrite.isRetryable(result(409))); // lost against a newer write
+  }
+
+  @Test
+  public void replayReindexesThePartition() throws IOException, InterruptedException {
+    EsIndexMetrics metrics = new EsIndexMetrics("test/replay");
+    BlockingQueue<String> reindexed = new LinkedBlockingQueue<>();
+    WriteQueueReplayer.Reindexer reindexer =
+        new TestReindexer() {
+          @Override
+          public void clear(@Nonnull List<ByteBuffer> keys) {
+            reindexed.add("clear " + string(keys.get(0)));
+          }
+
+          @Nonnull
+          @Override
+          public List<ResponseHandler<DocumentResult>> reindex(
+              @Nonnull ByteBuffer key, @Nonnull String docId, @Nonnull BulkWriter writer) {
+            reindexed.add(string(key) + "/" + docId);
+            ResponseHandler<DocumentResult> handler =
+                new ResponseHandler<>("Contact", new Delete.Builder(docId).build());
+            handler.completed(result(404)); // the partition and its document are gone
+            return Collections.singletonList(handler);
+          }
+        };
+
+    WriteQueueReplayer replayer =
+        new WriteQueueReplayer(
+            "Contact",
+            folder.getRoot(),
+            1 << 20,
+            new JestClientMock(),
+            null,
+            10,
+            reindexer,
+            1000,
+            metrics);
+    try {
+      DeferredWrite delete =
+          new DeferredWrite(DeferredWrite.Kind.DELETE, "idx", "1", ByteBuffer.wrap(bytes("k1")));
+      Assert.assertFalse(replayer.defer(delete, result(409)));
+      Assert.assertTrue(replayer.defer(delete, null));
+
+      Assert.assertEquals("clear k1", reindexed.poll(10, TimeUnit.SECONDS));
+      Assert.assertEquals("k1/1", reindexed.poll(10, TimeUnit.SECONDS));
+      for (int i = 0; i < 100 && metrics.getReplayedWrites() == 0; i++) {
+        Thread.sleep(50);
+      }
+      Assert.assertEquals(1, metrics.getReplayedWrites());
+    } finally {
+      replayer.close();
+    }
+  }
+
+  @Test
+  public void unreadablePartitionIsDroppedAfterMaxAttempts()
+      throws IOException, InterruptedException {
+    EsIndexMetrics metrics = new EsIndexMetrics("test/unreadable");
+    BlockingQueue<String> reindexed = new LinkedBlockingQueue<>();
+    BlockingQueue<String> dropped = new LinkedBlockingQueue<>();
+    WriteQueueReplayer.Reindexer reindexer =
+        new TestReindexer() {
+          @Nonnull
+          @Override
+          public List<ResponseHandler<DocumentResult>> reindex(
+              @Nonnull ByteBuffer key, @Nonnull String docId, @Nonnull BulkWriter writer)
+              throws IOException {
+            reindexed.add(string(key));
+            if ("bad".equals(string(key))) {
+              throw new IOException("corrupt sstable");
+            }
+            return Collections.emptyList();
+          }
+
+          @Override
+          public void dropped(@Nonnull ByteBuffer key, boolean isDelete) {
+            dropped.add(string(key) + (isDelete ? " delete" : ""));
+          }
+        };
+
+    WriteQueueReplayer replayer =
+        new WriteQueueReplayer(
+            "Contact",
+            folder.getRoot(),
+            1 << 20,
+            new JestClientMock(),
+            null,
+            1,
+            reindexer,
+            1000,
+            metrics,
+            2);
+    try {
+      replayer.defer(
+          new DeferredWrite(DeferredWrite.Kind.DELETE, "idx", "1", ByteBuffer.wrap(bytes("bad"))),
+          null);
+      replayer.defer(
+          new DeferredWrite(DeferredWrite.Kind.INDEX, "idx", "2", ByteBuffer.wrap(bytes("ok"))),
+          null);
+
+      Assert.assertEquals("bad", reindexed.poll(10, TimeUnit.SECONDS));
+      Assert.assertEquals("bad", reindexed.poll(10, TimeUnit.SECONDS)); // after a backoff
+      Assert.assertEquals("bad delete", dropped.poll(10, TimeUnit.SECONDS));
+      Assert.assertEquals("ok", reindexed.poll(10, TimeUnit.SECONDS)); // not blocked
+      Assert.assertTrue(dropped.isEmpty());
+    } finally {
+      replayer.close();
+    }
+  }
+
+  private static String string(ByteBuffer key) {
+    return new String(ByteBufferUtil.getArray(key), UTF_8);
+  }
+
+  private abstract static class TestReindexer implements WriteQueueReplayer.Reindexer {
+    @Override
+    public void clear(@Nonnull List<ByteBuffer> keys) {}
+
+    @Override
+    public void dropped(@Nonnull ByteBuffer key, boolean isDelete) {
+      Assert.fail("unexpected drop of " + string(key));
+    }
+  }
+
+  private static DocumentResult result(int code) {
+    DocumentResult result = new DocumentResult(new Gson());
+    result.setResponseCode(code);
+    result.setSucceeded(code < 300);
+    return result;
+  }
+}